@@ -0,0 +1,55 @@
+public class AdminBenchmarkWorkload implements bench.AdminBenchmark.Workload {
+    private Menu menu;
+    private Admin admin;
+    private int added;
+
+    @Override
+    public void setUp(int items) {
+        menu = CatalogGenerator.menu(items);
+        admin = new Admin(menu);
+    }
+
+    // every id stays taken: a removed item's id goes to the item added after it
+    @Override
+    public void updateItem(int id) {
+        MenuItem item = menu.getItemById(id);
+        admin.updateItem(item.getKey(), item.getName(), otherPrice(item));
+    }
+
+    @Override
+    public void removeAndAddItem(int id) {
+        admin.removeItem(menu.getItemById(id).getKey());
+        admin.addItem(newItem());
+    }
+
+    @Override
+    public void updateItems(int[] ids) {
+        MenuVersion version = menu.current();
+        long[] keys = new long[ids.length];
+        long[] prices = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            MenuItem item = version.getItemById(ids[i]);
+            keys[i] = item.getKey();
+            prices[i] = otherPrice(item);
+        }
+        admin.updatePrices(keys, prices);
+    }
+
+    @Override
+    public void removeAndAddItems(int[] ids) {
+        admin.applyBatch(batch -> {
+            for (int id : ids) {
+                batch.removeItem(batch.getItemById(id).getKey());
+                batch.addItem(newItem());
+            }
+        });
+    }
+
+    private static long otherPrice(MenuItem item) {
+        return item.getPrice() == Money.of(5000) ? Money.of(6000) : Money.of(5000);
+    }
+
+    private Food newItem() {
+        return new Food("Added Dish " + added++, Money.of(25000), "Indonesian");
+    }
+}
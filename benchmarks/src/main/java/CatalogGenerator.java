@@ -0,0 +1,60 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Builds synthetic menus of any size for the benchmarks, the same every time for the same size and
+// seed. Names are two dish words and a number ("Crispy Noodle 4711"), so they are unique and
+// realistic enough for the name index and the search index; every fourth item is a drink. Some
+// words are accented ("Sautéed Rösti 4711", "Gyōza"), so the search index's Normalizer path is
+// measured too.
+public class CatalogGenerator {
+    static final long SEED = 42;
+
+    private static final String[] STYLES = {
+            "Spicy", "Grilled", "Crispy", "Sweet", "Smoked", "Fried", "Roasted", "Steamed",
+            "Creamy", "Garlic", "Flambé", "Baked", "Braised", "Glazed", "Sautéed", "Hot",
+    };
+    private static final String[] DISHES = {
+            "Chicken", "Beef", "Noodle", "Rice", "Tofu", "Shrimp", "Pork", "Salad",
+            "Soup", "Curry", "Satay", "Dumpling", "Crêpe", "Rösti", "Gyōza", "Tempeh",
+    };
+    private static final String[] DRINKS = {"Tea", "Café", "Juice", "Soda", "Smoothie", "Lemonade"};
+    private static final String[] FOOD_TYPES = {"Italian", "American", "Indonesian", "Chinese", "Indian"};
+    private static final String[] DRINK_TYPES = {"Hot", "Cold", "Fruit", "Carbonated"};
+
+    public static List<MenuDisplayable> items(int count) {
+        return items(count, SEED);
+    }
+
+    public static List<MenuDisplayable> items(int count, long seed) {
+        Random random = new Random(seed);
+        List<MenuDisplayable> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            items.add(item(random, i));
+        }
+        return items;
+    }
+
+    // the name of the i-th item items() gives
+    public static String name(int i) {
+        String style = STYLES[i % STYLES.length];
+        int kind = i / STYLES.length;
+        return style + " " + (isDrink(i) ? DRINKS[kind % DRINKS.length] : DISHES[kind % DISHES.length]) + " " + i;
+    }
+
+    private static boolean isDrink(int i) {
+        return i % 4 == 3;
+    }
+
+    private static MenuDisplayable item(Random random, int i) {
+        long price = Money.of(1000 + random.nextInt(99) * 1000);
+        if (isDrink(i)) {
+            return new Drink(name(i), price, DRINK_TYPES[random.nextInt(DRINK_TYPES.length)]);
+        }
+        return new Food(name(i), price, FOOD_TYPES[random.nextInt(FOOD_TYPES.length)]);
+    }
+
+    public static Menu menu(int count) {
+        return new Menu(items(count));
+    }
+}
@@ -0,0 +1,61 @@
+public class ContentionBenchmarkWorkload implements bench.ContentionBenchmark.Workload {
+    private Menu menu;
+    private SynchronizedMenu lockedMenu;
+    private String[] names;
+
+    @Override
+    public void setUp(int items) {
+        menu = CatalogGenerator.menu(items);
+        lockedMenu = new SynchronizedMenu(CatalogGenerator.menu(items));
+        names = new String[items];
+        for (int i = 0; i < items; i++) {
+            // lower case, as customers type them
+            names[i] = CatalogGenerator.name(i).toLowerCase();
+        }
+    }
+
+    @Override
+    public Object findItem(int i) {
+        return menu.findItem(names[i]);
+    }
+
+    @Override
+    public void updateItem(int i) {
+        MenuItem item = menu.getItemById(i);
+        menu.edit(batch -> batch.updatePrice(item.getKey(), otherPrice(item)));
+    }
+
+    @Override
+    public Object findItemSynchronized(int i) {
+        return lockedMenu.findItem(names[i]);
+    }
+
+    @Override
+    public void updateItemSynchronized(int i) {
+        lockedMenu.updateItem(i);
+    }
+
+    private static long otherPrice(MenuItem item) {
+        return item.getPrice() == Money.of(5000) ? Money.of(6000) : Money.of(5000);
+    }
+
+    // The baseline: a menu of its own, with every read and edit going through one lock, the way a
+    // menu changed in place has to be guarded. The menu underneath is the same, so the only
+    // difference the benchmark sees is the lock.
+    private static class SynchronizedMenu {
+        private final Menu menu;
+
+        SynchronizedMenu(Menu menu) {
+            this.menu = menu;
+        }
+
+        synchronized MenuItem findItem(String name) {
+            return menu.findItem(name);
+        }
+
+        synchronized void updateItem(int id) {
+            MenuItem item = menu.getItemById(id);
+            menu.edit(batch -> batch.updatePrice(item.getKey(), otherPrice(item)));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+public class FileBenchmarkWorkload implements bench.FileBenchmark.Workload {
+    private Path directory;
+    private Path csv;
+    private Path export;
+    private Path snapshot;
+    private Menu menu;
+    private String name; // of an item in the middle of the catalog
+
+    @Override
+    public void setUp(int items) throws IOException {
+        menu = CatalogGenerator.menu(items);
+        name = CatalogGenerator.name(items / 2);
+        directory = Files.createTempDirectory("menu-bench");
+        csv = directory.resolve("menu.csv");
+        export = directory.resolve("export.csv");
+        snapshot = directory.resolve("menu.snapshot");
+        MenuExporter.export(menu, csv, MenuExporter.CSV);
+        MenuSnapshot.write(menu, snapshot);
+    }
+
+    @Override
+    public int exportCsv() throws IOException {
+        return MenuExporter.export(menu, export, MenuExporter.CSV).getItems();
+    }
+
+    @Override
+    public int importCsv() throws IOException {
+        return MenuImporter.importFile(csv, new Admin(new Menu(Collections.emptyList()))).getAdded();
+    }
+
+    @Override
+    public int reimportCsv() throws IOException {
+        return MenuImporter.importFile(csv, new Admin(menu)).getUnchanged();
+    }
+
+    @Override
+    public int loadSnapshot() throws IOException {
+        Menu loaded = MenuSnapshot.open(snapshot).toMenu();
+        if (loaded.findItem(name) == null) {
+            throw new IllegalStateException("Not in the snapshot: " + name);
+        }
+        return loaded.current().getItemCount();
+    }
+
+    @Override
+    public long csvBytes() throws IOException {
+        return Files.size(csv);
+    }
+
+    @Override
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(csv);
+        Files.deleteIfExists(export);
+        Files.deleteIfExists(snapshot);
+        Files.deleteIfExists(directory.resolve("menu.csv.rejects.txt"));
+        Files.deleteIfExists(directory);
+    }
+}
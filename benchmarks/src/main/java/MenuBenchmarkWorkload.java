@@ -0,0 +1,89 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MenuBenchmarkWorkload implements bench.MenuBenchmark.Workload {
+    private static final int PAGE = 20;
+
+    private final PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+    private Menu menu;
+    private String[] names;
+    private String[] missing;
+
+    @Override
+    public void setUp(int items) {
+        menu = CatalogGenerator.menu(items);
+        names = new String[items];
+        missing = new String[items];
+        for (int i = 0; i < items; i++) {
+            // lower case, as customers type them
+            names[i] = CatalogGenerator.name(i).toLowerCase();
+            missing[i] = CatalogGenerator.name(i) + "x";
+        }
+    }
+
+    @Override
+    public void displayMenu() {
+        menu.current().displayMenu(out);
+    }
+
+    @Override
+    public Object findItem(int i) {
+        return menu.findItem(names[i]);
+    }
+
+    @Override
+    public Object findMissingItem(int i) {
+        return menu.findItem(missing[i]);
+    }
+
+    @Override
+    public Object getItemById(int i) {
+        return menu.getItemById(i);
+    }
+
+    @Override
+    public Object findItemByScan(int i) {
+        MenuVersion version = menu.current();
+        for (int id = 0; id < version.getItemCount(); id++) {
+            MenuItem item = version.getItemById(id);
+            if (item.getName().equalsIgnoreCase(names[i])) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Object firstPageAfterEdit(int i) {
+        List<MenuItem> page = new ArrayList<>(PAGE);
+        for (MenuItem item : changePrice(i).getItemsByCategory(Category.DRINK)) {
+            if (page.size() == PAGE) {
+                break;
+            }
+            page.add(item);
+        }
+        return page;
+    }
+
+    @Override
+    public Object firstPageAfterEditByScan(int i) {
+        // what the version had to do before showing the first item: sort every item into its category
+        MenuVersion version = changePrice(i);
+        List<MenuItem> drinks = new ArrayList<>();
+        for (int id = 0; id < version.getItemCount(); id++) {
+            MenuItem item = version.getItemById(id);
+            if (item.getCategory() == Category.DRINK) {
+                drinks.add(item);
+            }
+        }
+        return drinks.subList(0, Math.min(PAGE, drinks.size()));
+    }
+
+    private MenuVersion changePrice(int i) {
+        MenuItem item = menu.getItemById(i);
+        long price = item.getPrice() == Money.of(5000) ? Money.of(6000) : Money.of(5000);
+        return menu.edit(batch -> batch.updatePrice(item.getKey(), price));
+    }
+}
@@ -0,0 +1,93 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class OrderBenchmarkWorkload implements bench.OrderBenchmark.Workload {
+    static final int MENU_ITEMS = 10000; // more than the longest order, so every line is a different item
+
+    private final PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+    private PrintStream systemOut;
+    private PromotionEngine promotions;
+    private MenuVersion version;
+    private MenuItem[] items;
+    private Order order;
+    private SalesAnalytics analytics;
+    private Map<MenuItem, Integer> orderedItems; // the order as it was kept before prices were in cents
+
+    @Override
+    public void setUp(int lines) {
+        Menu menu = new Menu();
+        menu.addItems(CatalogGenerator.items(MENU_ITEMS));
+        promotions = Main.createPromotions(menu);
+        version = menu.current();
+        List<MenuDisplayable> all = version.getMenuItems();
+        items = new MenuItem[lines];
+        for (int line = 0, i = 0; line < lines; i++) {
+            if (all.get(i % all.size()) instanceof MenuItem) {
+                items[line++] = (MenuItem) all.get(i % all.size());
+            }
+        }
+        order = newOrder();
+        order.getPriceBreakdown();
+        analytics = new SalesAnalytics();
+        orderedItems = new HashMap<>();
+        for (int line = 0; line < items.length; line++) {
+            orderedItems.merge(items[line], 1 + line % 3, Integer::sum);
+        }
+        systemOut = System.out;
+        System.setOut(discard);
+    }
+
+    private Order newOrder() {
+        Order order = new Order(promotions, version);
+        for (int line = 0; line < items.length; line++) {
+            order.addItem(items[line], 1 + line % 3);
+        }
+        return order;
+    }
+
+    @Override
+    public long takeOrder() {
+        Order order = newOrder();
+        long total = order.getTotalPrice();
+        order.release();
+        return total;
+    }
+
+    @Override
+    public void displayOrder() {
+        order.displayOrder();
+    }
+
+    @Override
+    public void recordSale() {
+        analytics.record(order, order.getPriceBreakdown(), System.currentTimeMillis());
+    }
+
+    @Override
+    public long priceOrder() {
+        return promotions.currentPlan().price(order.getLines(), Order.TAX_PERCENT, Order.SERVICE_FEE).getTotal();
+    }
+
+    @Override
+    public double priceOrderWithDoubles() {
+        double total = 0;
+        for (Map.Entry<MenuItem, Integer> entry : orderedItems.entrySet()) {
+            total += entry.getKey().getPrice() / 100.0 * entry.getValue();
+        }
+        double discount = (total > 100000) ? total * 0.10 : 0; // 10% discount if total exceeds 100000
+        total -= discount;
+        double tax = total * 0.10; // 10% tax
+        double serviceFee = 20000; // fixed service fee
+        total += tax + serviceFee;
+        return total;
+    }
+
+    @Override
+    public void tearDown() {
+        System.setOut(systemOut);
+        order.release();
+    }
+}
@@ -0,0 +1,56 @@
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PromotionBenchmarkWorkload implements bench.PromotionBenchmark.Workload {
+    static final int MENU_ITEMS = 10000;
+    static final int ORDER_LINES = 10;
+
+    private PromotionEngine promotions;
+    private Order order;
+
+    @Override
+    public void setUp(int ruleCount) {
+        Menu menu = new Menu(CatalogGenerator.items(MENU_ITEMS));
+        List<MenuDisplayable> items = menu.getMenuItems();
+        // every kind of rule in turn, with thresholds spread from 0 to 200000, all active all day
+        List<PromotionRule> rules = new ArrayList<>();
+        for (int i = 0; i < ruleCount; i++) {
+            long threshold = Money.of(i * 200000L / ruleCount);
+            Category category = Category.values()[i % Category.values().length];
+            switch (i % 4) {
+                case 0:
+                    rules.add(PromotionRule.orderDiscount("order " + i, threshold, 1 + i % 15));
+                    break;
+                case 1:
+                    rules.add(PromotionRule.categoryDiscount("category " + i, category, threshold, 1 + i % 10));
+                    break;
+                case 2:
+                    rules.add(PromotionRule.categoryAmountOff("amount " + i, category, threshold, Money.of(1000 + i % 50 * 100)));
+                    break;
+                default:
+                    rules.add(PromotionRule.buyOneGetOne("bogo " + i, (MenuItem) items.get(i * 7919 % items.size()), threshold));
+                    break;
+            }
+        }
+        promotions = new PromotionEngine(rules);
+        // ten lines, half of them items with a buy-one-get-one rule when there are enough rules
+        order = new Order(promotions, menu.current());
+        for (int line = 0; line < ORDER_LINES; line++) {
+            int bogo = 3 + 4 * line;
+            int index = line % 2 == 0 && bogo < ruleCount ? bogo * 7919 % items.size() : line * 131 % items.size();
+            order.addItem((MenuItem) items.get(index), 1 + line % 3);
+        }
+    }
+
+    @Override
+    public long priceOrder() {
+        return promotions.currentPlan().price(order.getLines(), Order.TAX_PERCENT, Order.SERVICE_FEE).getDiscount();
+    }
+
+    @Override
+    public int compilePlan() {
+        LocalDateTime now = LocalDateTime.now();
+        return new PromotionPlan(promotions.getRules(), now.getDayOfWeek(), 0, PromotionRule.minutesPerDay()).getRuleNames().size();
+    }
+}
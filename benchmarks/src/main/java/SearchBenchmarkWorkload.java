@@ -0,0 +1,75 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.ref.Reference;
+
+public class SearchBenchmarkWorkload implements bench.SearchBenchmark.Workload {
+    static final int LIMIT = 5;
+
+    private Menu menu;
+    private MenuVersion version;
+    private MenuSearchIndex index;
+    private String[] shortPrefixes;
+    private String[] longPrefixes;
+    private String[] oneTypo;
+    private String[] twoTypos;
+
+    @Override
+    public void setUp(int items) {
+        menu = CatalogGenerator.menu(items);
+        version = menu.current();
+        index = new MenuSearchIndex(menu);
+        shortPrefixes = new String[items];
+        longPrefixes = new String[items];
+        oneTypo = new String[items];
+        twoTypos = new String[items];
+        for (int i = 0; i < items; i++) {
+            String name = CatalogGenerator.name(i);
+            int end = name.length();
+            shortPrefixes[i] = name.substring(0, 3);
+            longPrefixes[i] = name.substring(0, end - 2);
+            // drops the second character: "Crispy Noodle 12" -> "Cispy Noodle 12"
+            oneTypo[i] = name.charAt(0) + name.substring(2);
+            // and swaps the last two: "Cispy Noodle 21"
+            twoTypos[i] = name.charAt(0) + name.substring(2, end - 2) + name.charAt(end - 1) + name.charAt(end - 2);
+        }
+    }
+
+    @Override
+    public Object completeShortPrefix(int i) {
+        return index.complete(version, shortPrefixes[i], LIMIT);
+    }
+
+    @Override
+    public Object completeLongPrefix(int i) {
+        return index.complete(version, longPrefixes[i], LIMIT);
+    }
+
+    @Override
+    public Object suggestOneTypo(int i) {
+        return index.suggest(version, oneTypo[i], LIMIT);
+    }
+
+    @Override
+    public Object suggestTwoTypos(int i) {
+        return index.suggest(version, twoTypos[i], LIMIT);
+    }
+
+    @Override
+    public Object build() {
+        MenuSearchIndex built = new MenuSearchIndex(menu);
+        menu.removeChangeListener(built); // or every build would stay reachable from the menu
+        return built;
+    }
+
+    @Override
+    public double indexMegabytes() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        Object built = build();
+        memory.gc();
+        long held = memory.getHeapMemoryUsage().getUsed();
+        Reference.reachabilityFence(built);
+        built = null;
+        memory.gc();
+        return (held - memory.getHeapMemoryUsage().getUsed()) / 1e6;
+    }
+}
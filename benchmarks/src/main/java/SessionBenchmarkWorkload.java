@@ -0,0 +1,35 @@
+public class SessionBenchmarkWorkload implements bench.SessionBenchmark.Workload {
+    private static final String[][] SCRIPTS = {
+            {"Pizza", "Soda", "Tea", "Juice"},
+            {"Burger", "Juice", "Tea", "Coffee"},
+            {"Pasta", "Coffee", "Steak", "Soda"},
+    };
+
+    private OrderService service;
+    private boolean wasEnabled;
+
+    @Override
+    public void setUp(boolean metrics) {
+        Menu menu = new Menu();
+        service = new OrderService(menu, Main.createPromotions(menu));
+        wasEnabled = Metrics.DEFAULT.isEnabled();
+        Metrics.DEFAULT.setEnabled(metrics);
+    }
+
+    @Override
+    public long session(int number) {
+        int n = number & Integer.MAX_VALUE;
+        OrderService.Session session = service.openSession();
+        for (String name : SCRIPTS[n % SCRIPTS.length]) {
+            session.addItem(name, 1 + n % 3);
+        }
+        long total = session.checkout().getTotal();
+        session.getOrder().release();
+        return total;
+    }
+
+    @Override
+    public void tearDown() {
+        Metrics.DEFAULT.setEnabled(wasEnabled);
+    }
+}
@@ -0,0 +1,76 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Admin edits (options 2 and 3) on catalogs of 10 to 1M items, one per menu version and in
+// batches of BATCH edits published as one version. The batch benchmarks report the time per edit.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class AdminBenchmark {
+    static final int BATCH = 10000;
+
+    public interface Workload {
+        void setUp(int items);
+
+        // reprices the item with the given id
+        void updateItem(int id);
+
+        // removes the item with the given id and adds a new one, which gets the freed id
+        void removeAndAddItem(int id);
+
+        // reprices the items with the given ids in one edit
+        void updateItems(int[] ids);
+
+        // removes the items with the given ids and adds as many new ones, in one edit
+        void removeAndAddItems(int[] ids);
+    }
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int items;
+
+    private Workload workload;
+    private int next;
+    private final int[] batch = new int[BATCH];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        workload = Workloads.create(Workload.class);
+        workload.setUp(items);
+    }
+
+    private int nextId() {
+        next = (next + 7919) % items;
+        return next;
+    }
+
+    private int[] nextBatch() {
+        for (int i = 0; i < BATCH; i++) {
+            batch[i] = nextId();
+        }
+        return batch;
+    }
+
+    @Benchmark
+    public void updateItem() {
+        workload.updateItem(nextId());
+    }
+
+    @Benchmark
+    public void removeAndAddItem() {
+        workload.removeAndAddItem(nextId());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void updateBatch() {
+        workload.updateItems(nextBatch());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void removeAndAddBatch() {
+        workload.removeAndAddItems(nextBatch());
+    }
+}
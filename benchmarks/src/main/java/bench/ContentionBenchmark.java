@@ -0,0 +1,77 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Menu lookups while an admin keeps repricing items: three threads find items by name and one
+// edits, against the copy-on-write menu and against the same menu with every call behind one
+// synchronized lock, as a menu changed in place would need. Each group's row is the operations per
+// millisecond of all four threads; its find and edit rows split that up. Readers only wait for each
+// other and for the admin in the synchronized group, which shows on a machine with a core per thread.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Group)
+public class ContentionBenchmark {
+    public interface Workload {
+        void setUp(int items);
+
+        Object findItem(int i);
+
+        // reprices the i-th item
+        void updateItem(int i);
+
+        Object findItemSynchronized(int i);
+
+        void updateItemSynchronized(int i);
+    }
+
+    @Param({"1000", "1000000"})
+    public int items;
+
+    private Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        workload = Workloads.create(Workload.class);
+        workload.setUp(items);
+    }
+
+    // each thread's own walk over the catalog
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        int nextItem(int items) {
+            next = (next + 7919) % items;
+            return next;
+        }
+    }
+
+    @Benchmark
+    @Group("versioned")
+    @GroupThreads(3)
+    public Object find(Cursor cursor) {
+        return workload.findItem(cursor.nextItem(items));
+    }
+
+    @Benchmark
+    @Group("versioned")
+    @GroupThreads(1)
+    public void edit(Cursor cursor) {
+        workload.updateItem(cursor.nextItem(items));
+    }
+
+    @Benchmark
+    @Group("synchronized")
+    @GroupThreads(3)
+    public Object findSynchronized(Cursor cursor) {
+        return workload.findItemSynchronized(cursor.nextItem(items));
+    }
+
+    @Benchmark
+    @Group("synchronized")
+    @GroupThreads(1)
+    public void editSynchronized(Cursor cursor) {
+        workload.updateItemSynchronized(cursor.nextItem(items));
+    }
+}
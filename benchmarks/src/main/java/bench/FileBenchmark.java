@@ -0,0 +1,100 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Menu files through the same code as admin options 4 (import), 5 (export) and 6 (snapshot), and
+// loading a catalog at startup from a CSV file against loading it from a snapshot. The *Rate
+// benchmarks run the CSV import and export again in throughput mode and count the file's bytes, so
+// their "megabytes" row is the rate in MB/s (JMH labels the unit "#").
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class FileBenchmark {
+    public interface Workload {
+        void setUp(int items) throws Exception;
+
+        // returns the number of items written
+        int exportCsv() throws Exception;
+
+        // imports the CSV file into an empty menu; returns the number of items added
+        int importCsv() throws Exception;
+
+        // imports the CSV file into the menu it came from, so every row is already there
+        int reimportCsv() throws Exception;
+
+        // a menu from the snapshot file, as at startup, and one name looked up in it; returns its size
+        int loadSnapshot() throws Exception;
+
+        // size of the CSV file that importCsv reads and exportCsv writes
+        long csvBytes() throws Exception;
+
+        void tearDown() throws Exception;
+    }
+
+    @Param({"1000", "100000", "1000000"})
+    public int items;
+
+    private Workload workload;
+    private double csvMegabytes;
+
+    // megabytes of CSV read or written, reported per second
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Megabytes {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workload = Workloads.create(Workload.class);
+        workload.setUp(items);
+        csvMegabytes = workload.csvBytes() / 1e6;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        workload.tearDown();
+    }
+
+    @Benchmark
+    public int exportCsv() throws Exception {
+        return workload.exportCsv();
+    }
+
+    @Benchmark
+    public int importCsv() throws Exception {
+        return workload.importCsv();
+    }
+
+    @Benchmark
+    public int reimportCsv() throws Exception {
+        return workload.reimportCsv();
+    }
+
+    @Benchmark
+    public int loadSnapshot() throws Exception {
+        return workload.loadSnapshot();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int exportCsvRate(Megabytes counter) throws Exception {
+        counter.megabytes += csvMegabytes;
+        return workload.exportCsv();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int importCsvRate(Megabytes counter) throws Exception {
+        counter.megabytes += csvMegabytes;
+        return workload.importCsv();
+    }
+}
@@ -0,0 +1,84 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Reading the menu: showing it (customer option 1), finding items by name and id, and listing a
+// category right after an admin edit, on catalogs of 10 to 1M items. The ...ByScan benchmarks do
+// the same by walking every item, the way the menu did before it kept indexes.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class MenuBenchmark {
+    public interface Workload {
+        void setUp(int items);
+
+        void displayMenu();
+
+        Object findItem(int i);
+
+        Object findMissingItem(int i);
+
+        Object getItemById(int i);
+
+        Object findItemByScan(int i);
+
+        // changes item i's price, then reads the first page of drinks from the new version
+        Object firstPageAfterEdit(int i);
+
+        Object firstPageAfterEditByScan(int i);
+    }
+
+    @Param({"10", "1000", "10000", "100000", "1000000"})
+    public int items;
+
+    private Workload workload;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        workload = Workloads.create(Workload.class);
+        workload.setUp(items);
+    }
+
+    // i-th call's item, spread over the whole catalog
+    private int nextItem() {
+        next = (next + 7919) % items;
+        return next;
+    }
+
+    @Benchmark
+    public void displayMenu() {
+        workload.displayMenu();
+    }
+
+    @Benchmark
+    public Object findItem() {
+        return workload.findItem(nextItem());
+    }
+
+    @Benchmark
+    public Object findMissingItem() {
+        return workload.findMissingItem(nextItem());
+    }
+
+    @Benchmark
+    public Object getItemById() {
+        return workload.getItemById(nextItem());
+    }
+
+    @Benchmark
+    public Object findItemByScan() {
+        return workload.findItemByScan(nextItem());
+    }
+
+    @Benchmark
+    public Object firstPageAfterEdit() {
+        return workload.firstPageAfterEdit(nextItem());
+    }
+
+    @Benchmark
+    public Object firstPageAfterEditByScan() {
+        return workload.firstPageAfterEditByScan(nextItem());
+    }
+}
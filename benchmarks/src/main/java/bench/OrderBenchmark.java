@@ -0,0 +1,88 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Taking, pricing and printing one order of a given number of lines, from a 10,000-item menu with
+// the usual promotions. Run with -prof gc to see the allocation per order. priceOrder and
+// priceOrderWithDoubles are orders priced per second now and before prices were kept in cents.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class OrderBenchmark {
+    public interface Workload {
+        void setUp(int lines);
+
+        // a new order with the lines added, priced and released; returns the total
+        long takeOrder();
+
+        // Order.displayOrder() of a ready order, with System.out thrown away
+        void displayOrder();
+
+        // SalesAnalytics.record() of a ready order; safe to call from several threads at once
+        void recordSale();
+
+        // prices a ready order from scratch with the current promotion plan; returns the total
+        long priceOrder();
+
+        // prices the same lines the way Order did before money was kept in cents: a
+        // Map<MenuItem, Integer> of boxed quantities, summed up in double
+        double priceOrderWithDoubles();
+
+        void tearDown();
+    }
+
+    @Param({"1", "4", "100", "5000"})
+    public int lines;
+
+    private Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        workload = Workloads.create(Workload.class);
+        workload.setUp(lines);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        workload.tearDown();
+    }
+
+    @Benchmark
+    public long takeOrder() {
+        return workload.takeOrder();
+    }
+
+    @Benchmark
+    public void displayOrder() {
+        workload.displayOrder();
+    }
+
+    @Benchmark
+    public void recordSale() {
+        workload.recordSale();
+    }
+
+    // four checkout threads recording into the same SalesAnalytics at once
+    @Benchmark
+    @Threads(4)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void recordSaleContended() {
+        workload.recordSale();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long priceOrder() {
+        return workload.priceOrder();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public double priceOrderWithDoubles() {
+        return workload.priceOrderWithDoubles();
+    }
+}
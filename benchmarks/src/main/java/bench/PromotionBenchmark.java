@@ -0,0 +1,44 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Pricing one order against 10 to 10,000 active promotion rules of every kind, and compiling
+// them into a plan. Pricing should stay flat as the rules grow; compiling happens once per time
+// segment, so it only has to be reasonable.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class PromotionBenchmark {
+    public interface Workload {
+        void setUp(int rules);
+
+        // prices a ready ten-line order with the current plan; returns the discount
+        long priceOrder();
+
+        // compiles the rules into a new plan; returns how many rules are active in it
+        int compilePlan();
+    }
+
+    @Param({"10", "100", "1000", "10000"})
+    public int rules;
+
+    private Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        workload = Workloads.create(Workload.class);
+        workload.setUp(rules);
+    }
+
+    @Benchmark
+    public long priceOrder() {
+        return workload.priceOrder();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int compilePlan() {
+        return workload.compilePlan();
+    }
+}
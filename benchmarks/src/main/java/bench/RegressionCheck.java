@@ -0,0 +1,186 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Compares a JMH run (-rf csv) against the baseline results and exits with 1 if any benchmark got
+// slower by more than the threshold percentage. Prints a line per benchmark either way, marking
+// the ones whose error margins are wider than the threshold: a short run can't tell those apart
+// from a regression, so run them again with more forks and iterations before believing either.
+//
+//   java -cp target/benchmarks.jar bench.RegressionCheck baseline.csv results.csv [threshold %]   default: 15
+//
+// To take a run as the new baseline, copy its results.csv over baseline.csv. Record it with more
+// forks and iterations than the quick run, so its own errors are small:
+//   mvn -Pbenchmark verify -Dbenchmark.options="-f 2 -wi 3 -w 2s -i 5 -r 2s"
+// Baselines are only comparable with runs on the same machine and JDK.
+public class RegressionCheck {
+    static final double DEFAULT_THRESHOLD = 15;
+
+    // one row of a JMH CSV result
+    static class Result {
+        final String key; // benchmark, mode and parameters
+        final String mode;
+        final double score;
+        final double error; // 0 if JMH couldn't work it out
+        final String unit;
+
+        Result(String key, String mode, double score, double error, String unit) {
+            this.key = key;
+            this.mode = mode;
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+
+        boolean higherIsBetter() {
+            return mode.equals("thrpt");
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: RegressionCheck <baseline.csv> <results.csv> [threshold %]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD;
+        Map<String, Result> baseline;
+        try {
+            baseline = read(Paths.get(args[0]));
+        } catch (NoSuchFileException e) {
+            System.out.println("No baseline at " + args[0] + ". Copy " + args[1] + " there to make this run the baseline.");
+            System.exit(2);
+            return;
+        }
+        Map<String, Result> current = read(Paths.get(args[1]));
+        int regressions = compare(baseline, current, threshold);
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    // prints the report and returns the number of regressions
+    static int compare(Map<String, Result> baseline, Map<String, Result> current, double threshold) {
+        int width = 10;
+        for (String key : current.keySet()) {
+            width = Math.max(width, key.length());
+        }
+        String row = "%-" + width + "s  %14s  %14s  %-10s  %8s  %s%n";
+        System.out.printf(row, "benchmark", "baseline", "current", "unit", "change", "");
+        int regressions = 0;
+        int faster = 0;
+        for (Result now : current.values()) {
+            Result before = baseline.get(now.key);
+            if (before == null) {
+                System.out.printf(row, now.key, "-", format(now.score), now.unit, "", "new");
+                continue;
+            }
+            if (!before.unit.equals(now.unit)) {
+                System.out.printf(row, now.key, format(before.score), format(now.score), now.unit, "", "unit was " + before.unit);
+                continue;
+            }
+            double change = (now.score - before.score) / before.score * 100;
+            double worse = now.higherIsBetter() ? before.score - now.score : now.score - before.score;
+            String status = "";
+            if (worse * 100 / before.score > threshold) {
+                status = "REGRESSED";
+                regressions++;
+            } else if (-worse * 100 / before.score > threshold) {
+                status = "faster";
+                faster++;
+            }
+            double margin = (before.error + now.error) * 100 / before.score;
+            if (margin > threshold) {
+                status += String.format(Locale.ROOT, "%s(noisy: +-%.0f%%)", status.isEmpty() ? "" : " ", margin);
+            }
+            System.out.printf(row, now.key, format(before.score), format(now.score), now.unit,
+                    String.format(Locale.ROOT, "%+.1f%%", change), status);
+        }
+        for (Result before : baseline.values()) {
+            if (!current.containsKey(before.key)) {
+                System.out.printf(row, before.key, format(before.score), "-", before.unit, "", "not run");
+            }
+        }
+        System.out.println();
+        System.out.printf("%d benchmarks compared with a %.0f%% threshold: %d regressed, %d faster.%n",
+                current.size(), threshold, regressions, faster);
+        if (regressions > 0) {
+            System.out.println("PERFORMANCE REGRESSION: " + regressions + " benchmarks are slower than the baseline.");
+        }
+        return regressions;
+    }
+
+    static Map<String, Result> read(Path path) throws IOException {
+        List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        Map<String, Result> results = new LinkedHashMap<>();
+        if (lines.isEmpty()) {
+            return results;
+        }
+        List<String> header = split(lines.get(0));
+        int benchmark = header.indexOf("Benchmark");
+        int mode = header.indexOf("Mode");
+        int score = header.indexOf("Score");
+        int error = header.indexOf("Score Error (99.9%)");
+        int unit = header.indexOf("Unit");
+        if (benchmark < 0 || mode < 0 || score < 0 || unit < 0) {
+            throw new IOException(path + " isn't a JMH CSV result");
+        }
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isBlank()) {
+                continue;
+            }
+            List<String> fields = split(line);
+            StringBuilder key = new StringBuilder(fields.get(benchmark)).append(' ').append(fields.get(mode));
+            for (int column = 0; column < header.size(); column++) {
+                String name = header.get(column);
+                if (name.startsWith("Param: ") && column < fields.size() && !fields.get(column).isEmpty()) {
+                    key.append(' ').append(name.substring("Param: ".length())).append('=').append(fields.get(column));
+                }
+            }
+            double errorValue = error >= 0 ? parse(fields.get(error)) : Double.NaN;
+            results.put(key.toString(), new Result(key.toString(), fields.get(mode), parse(fields.get(score)),
+                    Double.isNaN(errorValue) ? 0 : errorValue, fields.get(unit)));
+        }
+        return results;
+    }
+
+    private static double parse(String number) {
+        return number.isEmpty() ? Double.NaN : Double.parseDouble(number.replace(',', '.'));
+    }
+
+    // a CSV line, with "quoted" fields
+    static List<String> split(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private static String format(double score) {
+        return String.format(Locale.ROOT, score >= 100 ? "%.0f" : "%.3f", score);
+    }
+}
@@ -0,0 +1,85 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// The "Did you mean" search over item names: completions of a prefix and suggestions for names
+// with one or two typos, and building the index over the catalog at startup. The build benchmark
+// also reports the heap an index holds as its "megabytes" row (JMH labels the unit "#").
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+    public interface Workload {
+        void setUp(int items);
+
+        // completions of a short prefix that many items share
+        Object completeShortPrefix(int i);
+
+        // completions of all but the last two characters of the i-th name
+        Object completeLongPrefix(int i);
+
+        Object suggestOneTypo(int i);
+
+        Object suggestTwoTypos(int i);
+
+        // a new index over the catalog, not following the menu's edits
+        Object build();
+
+        // heap held by an index over the catalog, measured between full garbage collections
+        double indexMegabytes();
+    }
+
+    @Param({"1000", "100000", "1000000"})
+    public int items;
+
+    private Workload workload;
+    private int next;
+    private double indexMegabytes;
+
+    // the heap an index holds, reported with build
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        public double megabytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        workload = Workloads.create(Workload.class);
+        workload.setUp(items);
+        indexMegabytes = workload.indexMegabytes();
+    }
+
+    private int nextItem() {
+        next = (next + 7919) % items;
+        return next;
+    }
+
+    @Benchmark
+    public Object completeShortPrefix() {
+        return workload.completeShortPrefix(nextItem());
+    }
+
+    @Benchmark
+    public Object completeLongPrefix() {
+        return workload.completeLongPrefix(nextItem());
+    }
+
+    @Benchmark
+    public Object suggestOneTypo() {
+        return workload.suggestOneTypo(nextItem());
+    }
+
+    @Benchmark
+    public Object suggestTwoTypos() {
+        return workload.suggestTwoTypos(nextItem());
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Object build(Footprint footprint) {
+        footprint.megabytes = indexMegabytes;
+        return workload.build();
+    }
+}
@@ -0,0 +1,43 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Whole ordering sessions through OrderService, as OrderLoadGenerator runs them but without the
+// executor: open, add four items by name, check out. Run with and without the hot-path metrics
+// to see what they cost.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class SessionBenchmark {
+    public interface Workload {
+        void setUp(boolean metrics);
+
+        // returns the order's total
+        long session(int number);
+
+        void tearDown();
+    }
+
+    @Param({"true", "false"})
+    public boolean metrics;
+
+    private Workload workload;
+    private int number;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        workload = Workloads.create(Workload.class);
+        workload.setUp(metrics);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        workload.tearDown();
+    }
+
+    @Benchmark
+    public long session() {
+        return workload.session(number++);
+    }
+}
@@ -0,0 +1,20 @@
+package bench;
+
+// JMH won't run benchmarks from the default package, and code in a named package can't refer to the
+// program's classes, which are all in the default package. So each benchmark talks to the program
+// through its nested Workload interface, implemented by a default-package class of this module
+// named after both: MenuBenchmark.Workload is implemented by MenuBenchmarkWorkload. Every
+// interface has one implementation, so the JIT inlines the calls and they cost nothing.
+public final class Workloads {
+    private Workloads() {
+    }
+
+    public static <T> T create(Class<T> type) {
+        String name = type.getEnclosingClass().getSimpleName() + type.getSimpleName();
+        try {
+            return type.cast(Class.forName(name).getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No workload class " + name + " for " + type.getName(), e);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+import java.util.Arrays;
+
+// An array that menu versions can share. Elements live in fixed-size chunks; an Editor copies
+// the table of chunks once and then only the chunks it writes to, so a version with one changed
+// element costs a copy of the table (a thousand entries for a million elements) and one chunk,
+// not of the whole array. Chunks nobody has written to are left null and read as nulls.
+//
+// A ChunkedArray never changes once built. An Editor may write to its chunks in place until
+// build() is called; after that its next write copies again, so an array it built stays as it was.
+final class ChunkedArray<T> implements ChunkedReader<T> {
+    static final int CHUNK_BITS = 10;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final Object[][] NO_CHUNKS = new Object[0][];
+
+    private final Object[][] chunks;
+
+    ChunkedArray() {
+        this(NO_CHUNKS);
+    }
+
+    private ChunkedArray(Object[][] chunks) {
+        this.chunks = chunks;
+    }
+
+    // null for an index past the end
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        int chunk = index >>> CHUNK_BITS;
+        if (chunk >= chunks.length) {
+            return null;
+        }
+        Object[] elements = chunks[chunk];
+        return elements != null ? (T) elements[index & CHUNK_MASK] : null;
+    }
+
+    // number of indexes get() can return a non-null element for
+    public int capacity() {
+        return chunks.length << CHUNK_BITS;
+    }
+
+    // the first index from this one on that holds an element, or -1; skips chunks nobody wrote to
+    public int nextIndex(int from) {
+        for (int chunk = from >>> CHUNK_BITS; chunk < chunks.length; chunk++) {
+            Object[] elements = chunks[chunk];
+            if (elements == null) {
+                continue;
+            }
+            for (int i = chunk == from >>> CHUNK_BITS ? from & CHUNK_MASK : 0; i < CHUNK_SIZE; i++) {
+                if (elements[i] != null) {
+                    return (chunk << CHUNK_BITS) | i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    public Editor<T> edit() {
+        return new Editor<>(chunks);
+    }
+
+    static final class Editor<T> implements ChunkedReader<T> {
+        private Object[][] chunks;
+        private boolean ownsTable;
+        private boolean[] ownsChunk;
+
+        private Editor(Object[][] chunks) {
+            this.chunks = chunks;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T get(int index) {
+            int chunk = index >>> CHUNK_BITS;
+            if (chunk >= chunks.length) {
+                return null;
+            }
+            Object[] elements = chunks[chunk];
+            return elements != null ? (T) elements[index & CHUNK_MASK] : null;
+        }
+
+        public void set(int index, T value) {
+            if (index < 0) {
+                throw new IndexOutOfBoundsException("Index " + index);
+            }
+            int chunk = index >>> CHUNK_BITS;
+            if (!ownsTable || chunk >= chunks.length) {
+                if (value == null && chunk >= chunks.length) {
+                    return; // already reads as null
+                }
+                int length = Math.max(chunks.length, chunk >= chunks.length ? Math.max(chunk + 1, chunks.length * 2) : 0);
+                chunks = Arrays.copyOf(chunks, length);
+                ownsChunk = ownsChunk != null ? Arrays.copyOf(ownsChunk, length) : new boolean[length];
+                ownsTable = true;
+            }
+            Object[] elements = chunks[chunk];
+            if (!ownsChunk[chunk]) {
+                elements = elements != null ? elements.clone() : new Object[CHUNK_SIZE];
+                chunks[chunk] = elements;
+                ownsChunk[chunk] = true;
+            }
+            elements[index & CHUNK_MASK] = value;
+        }
+
+        public ChunkedArray<T> build() {
+            ownsTable = false;
+            ownsChunk = null;
+            return new ChunkedArray<>(chunks);
+        }
+    }
+}
+
+// Reading a ChunkedArray, the same for a built one and for an Editor part way through its writes.
+interface ChunkedReader<T> {
+    T get(int index);
+}
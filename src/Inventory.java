@@ -0,0 +1,292 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// Stock counts per menu item, by item key (MenuItem.getKey()). Items start out untracked
+// (unlimited) until setStock() is called.
+//
+// Counts live in pages of atomic int arrays indexed by item id, and each item's stock is split
+// over a few stripes: a reservation takes from the calling thread's stripe with a single CAS. That
+// way many threads selling the same popular item mostly update different cache lines, and no
+// stripe ever goes below zero, so the item can't be oversold. Only when its own stripe can't cover
+// the quantity does a reservation gather from the other stripes, and that slow path takes a lock
+// for the item (one of a page's SLOW_LOCKS), so two reservations near the end of an item's stock
+// can't each hold part of it and both fail where either alone would have fit. Releases and the
+// fast path never lock.
+//
+// Counts are kept per item id, together with the generation of the item they belong to, and a
+// key of any other generation reads as untracked. So a session still holding a removed item can't
+// reserve or release the stock of the new item that reused its id. Registered with the menu
+// (menu.addChangeListener), it also stops tracking an item when the item is removed.
+class Inventory implements MenuChangeListener {
+    static final int UNLIMITED = Integer.MAX_VALUE;
+    static final int DEFAULT_LOW_STOCK = 5;
+
+    private static final int PAGE_BITS = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int SLOW_LOCKS = 64; // per page; items share them by offset
+    static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) * 2;
+
+    // told when an item's stock drops to its low-stock level, once until it is restocked above it
+    interface LowStockListener {
+        void lowStock(long itemKey, int remaining);
+    }
+
+    // one page of PAGE_SIZE items
+    private static class Page {
+        final AtomicIntegerArray[] stripes = new AtomicIntegerArray[STRIPES];
+        final AtomicIntegerArray generations = new AtomicIntegerArray(PAGE_SIZE); // whose stock it is
+        final AtomicIntegerArray lowStock = new AtomicIntegerArray(PAGE_SIZE);
+        final AtomicIntegerArray alerted = new AtomicIntegerArray(PAGE_SIZE);
+        final Object[] slowLocks = new Object[SLOW_LOCKS];
+
+        Page() {
+            for (int i = 0; i < SLOW_LOCKS; i++) {
+                slowLocks[i] = new Object();
+            }
+            for (int stripe = 0; stripe < STRIPES; stripe++) {
+                stripes[stripe] = new AtomicIntegerArray(PAGE_SIZE);
+                for (int i = 0; i < PAGE_SIZE; i++) {
+                    stripes[stripe].set(i, UNLIMITED);
+                }
+            }
+        }
+    }
+
+    private volatile Page[] pages = new Page[0];
+    private final Object growLock = new Object();
+    private final CopyOnWriteArrayList<LowStockListener> listeners = new CopyOnWriteArrayList<>();
+
+    public void addLowStockListener(LowStockListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void menuChanged(MenuVersion version, List<MenuChange> changes) {
+        for (MenuChange change : changes) {
+            long itemKey = change.getItem().getKey();
+            if (change.getKind() == MenuChange.Kind.REMOVED && isTracked(itemKey)) {
+                setStock(itemKey, UNLIMITED);
+            }
+        }
+    }
+
+    public boolean isTracked(long itemKey) {
+        Page page = page(itemKey);
+        return page != null && page.stripes[0].get(offset(itemKey)) != UNLIMITED;
+    }
+
+    public void setStock(long itemKey, int count) {
+        setStock(itemKey, count, DEFAULT_LOW_STOCK);
+    }
+
+    // Sets the item's stock (UNLIMITED to stop tracking it) and the level at which a low-stock
+    // event is sent. Reservations made while this runs count against the new stock.
+    public void setStock(long itemKey, int count, int lowStock) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Stock can't be negative: " + count);
+        }
+        Page page = pageForWrite(Menu.keyId(itemKey));
+        int offset = offset(itemKey);
+        page.generations.set(offset, Menu.keyGeneration(itemKey));
+        page.lowStock.set(offset, lowStock);
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            int share = count == UNLIMITED ? UNLIMITED : count / STRIPES + (stripe < count % STRIPES ? 1 : 0);
+            page.stripes[stripe].set(offset, share);
+        }
+        page.alerted.set(offset, 0);
+        checkLowStock(page, itemKey, offset);
+    }
+
+    // adds to a tracked item's stock; does nothing for untracked items
+    public void addStock(long itemKey, int count) {
+        release(itemKey, count);
+    }
+
+    // Total stock of the item, or UNLIMITED if it isn't tracked.
+    public int getStock(long itemKey) {
+        Page page = page(itemKey);
+        if (page == null) {
+            return UNLIMITED;
+        }
+        return total(page, offset(itemKey));
+    }
+
+    // Takes quantity off the item's stock if that much is left. Returns false, and takes nothing,
+    // if there isn't enough.
+    public boolean reserve(long itemKey, int quantity) {
+        if (quantity <= 0) {
+            return quantity == 0;
+        }
+        Page page = page(itemKey);
+        if (page == null) {
+            return true;
+        }
+        int offset = offset(itemKey);
+        int home = stripe();
+        AtomicIntegerArray own = page.stripes[home];
+        while (true) {
+            int available = own.get(offset);
+            if (available == UNLIMITED) {
+                return true;
+            }
+            if (available < quantity) {
+                if (!reserveFromAllStripes(page, offset, home, quantity)) {
+                    return false;
+                }
+                break;
+            }
+            if (own.compareAndSet(offset, available, available - quantity)) {
+                break;
+            }
+        }
+        if (page.generations.get(offset) != Menu.keyGeneration(itemKey)) {
+            // the item was removed and its id given to another while this ran: not ours to take
+            add(page.stripes[home], offset, quantity);
+            return true;
+        }
+        checkLowStock(page, itemKey, offset);
+        return true;
+    }
+
+    // Puts back stock taken by reserve(), e.g. when an order is cancelled.
+    public void release(long itemKey, int quantity) {
+        if (quantity <= 0) {
+            return;
+        }
+        Page page = page(itemKey);
+        if (page == null) {
+            return;
+        }
+        int offset = offset(itemKey);
+        if (add(page.stripes[stripe()], offset, quantity) && page.alerted.get(offset) != 0
+                && total(page, offset) > page.lowStock.get(offset)) {
+            page.alerted.set(offset, 0);
+        }
+    }
+
+    // Gathers quantity from all the stripes, own stripe first. Serialized per item, so the only
+    // stock missing from the stripes while it runs is stock that fast-path reservations took for
+    // good: if the stripes don't add up to quantity, there really isn't enough.
+    private static boolean reserveFromAllStripes(Page page, int offset, int home, int quantity) {
+        synchronized (page.slowLocks[offset & (SLOW_LOCKS - 1)]) {
+            int needed = quantity;
+            for (int i = 0; i < STRIPES && needed > 0; i++) {
+                needed -= take(page.stripes[(home + i) & (STRIPES - 1)], offset, needed);
+            }
+            if (needed > 0) {
+                // not enough in total: give back what was taken
+                add(page.stripes[home], offset, quantity - needed);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    // Takes up to wanted from one stripe, returns how much it got. A stripe that has become
+    // UNLIMITED (the item stopped being tracked) gives everything and stays UNLIMITED.
+    private static int take(AtomicIntegerArray stripe, int offset, int wanted) {
+        while (true) {
+            int available = stripe.get(offset);
+            if (available == UNLIMITED) {
+                return wanted;
+            }
+            if (available == 0) {
+                return 0;
+            }
+            int taken = Math.min(available, wanted);
+            if (stripe.compareAndSet(offset, available, available - taken)) {
+                return taken;
+            }
+        }
+    }
+
+    // returns false if the item isn't tracked
+    private static boolean add(AtomicIntegerArray stripe, int offset, int quantity) {
+        while (true) {
+            int available = stripe.get(offset);
+            if (available == UNLIMITED) {
+                return false;
+            }
+            int updated = (int) Math.min((long) available + quantity, UNLIMITED - 1);
+            if (stripe.compareAndSet(offset, available, updated)) {
+                return true;
+            }
+        }
+    }
+
+    private void checkLowStock(Page page, long itemKey, int offset) {
+        int lowStock = page.lowStock.get(offset);
+        if (page.stripes[stripe()].get(offset) > lowStock || page.alerted.get(offset) != 0) {
+            return; // plenty left in this stripe alone, or the admin already knows
+        }
+        int remaining = total(page, offset);
+        if (remaining != UNLIMITED && remaining <= lowStock && page.alerted.compareAndSet(offset, 0, 1)) {
+            for (LowStockListener listener : listeners) {
+                listener.lowStock(itemKey, remaining);
+            }
+        }
+    }
+
+    private static int total(Page page, int offset) {
+        long total = 0;
+        for (AtomicIntegerArray stripe : page.stripes) {
+            int count = stripe.get(offset);
+            if (count == UNLIMITED) {
+                return UNLIMITED;
+            }
+            total += count;
+        }
+        return (int) Math.min(total, UNLIMITED - 1);
+    }
+
+    // the item's page, or null if the id has no counts or they belong to another generation
+    private Page page(long itemKey) {
+        Page[] current = pages;
+        int itemId = Menu.keyId(itemKey);
+        int index = itemId >>> PAGE_BITS;
+        if (itemId < 0 || index >= current.length) {
+            return null;
+        }
+        Page page = current[index];
+        return page != null && page.generations.get(offset(itemKey)) == Menu.keyGeneration(itemKey) ? page : null;
+    }
+
+    private Page pageAt(int itemId) {
+        Page[] current = pages;
+        int index = itemId >>> PAGE_BITS;
+        return index < current.length ? current[index] : null;
+    }
+
+    private Page pageForWrite(int itemId) {
+        if (itemId < 0) {
+            throw new IllegalArgumentException("Item has no id yet: " + itemId);
+        }
+        Page page = pageAt(itemId);
+        if (page != null) {
+            return page;
+        }
+        // Pages are made the first time one of their items is written, and published by copying
+        // the array: ids nobody tracks stock for cost a null, not STRIPES arrays of counts.
+        synchronized (growLock) {
+            Page[] current = pages;
+            int index = itemId >>> PAGE_BITS;
+            if (index < current.length && current[index] != null) {
+                return current[index];
+            }
+            Page[] grown = Arrays.copyOf(current, Math.max(current.length, index + 1));
+            grown[index] = new Page();
+            pages = grown;
+            return grown[index];
+        }
+    }
+
+    private static int offset(long itemKey) {
+        return Menu.keyId(itemKey) & (PAGE_SIZE - 1);
+    }
+
+    private static int stripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+}
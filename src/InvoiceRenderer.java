@@ -0,0 +1,301 @@
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Renders an order's invoice from a template that is compiled once into literal byte chunks and
+// field slots. Rendering writes straight into a pooled InvoiceBuffer; nothing is formatted through
+// String.format, so a busy till doesn't produce garbage per invoice line.
+//
+// Templates use {field} or {field:-width} (left-aligned, padded to width like %-20s). The order
+// template has a {lines} slot that is filled with the line template once per ordered item.
+class InvoiceRenderer {
+    static final String ORDER_TEMPLATE = "\n"
+            + "----------------------------------------\n"
+            + "               YOUR ORDER               \n"
+            + "----------------------------------------\n"
+            + "{lines}"
+            + "----------------------------------------\n"
+            + "SUBTOTAL: ${subtotal:-30}\n"
+            + "DISCOUNT: ${discount:-30}\n"
+            + "TAX (10%): ${tax:-30}\n"
+            + "SERVICE FEE: ${serviceFee:-30}\n"
+            + "----------------------------------------\n"
+            + "TOTAL: ${total:-30}\n"
+            + "----------------------------------------\n"
+            + "\n";
+    static final String LINE_TEMPLATE = "{name:-20} ${price:-5} x{quantity:-2} ${amount:-5}\n";
+
+    static final InvoiceRenderer DEFAULT = new InvoiceRenderer(ORDER_TEMPLATE, LINE_TEMPLATE);
+
+    private static final int MAX_POOLED_BUFFERS = 256;
+
+    enum Field {
+        LINES, NAME, PRICE, QUANTITY, AMOUNT, SUBTOTAL, DISCOUNT, TAX, SERVICE_FEE, TOTAL;
+
+        static Field forName(String name) {
+            switch (name) {
+                case "lines": return LINES;
+                case "name": return NAME;
+                case "price": return PRICE;
+                case "quantity": return QUANTITY;
+                case "amount": return AMOUNT;
+                case "subtotal": return SUBTOTAL;
+                case "discount": return DISCOUNT;
+                case "tax": return TAX;
+                case "serviceFee": return SERVICE_FEE;
+                case "total": return TOTAL;
+                default: throw new IllegalArgumentException("Unknown invoice field: " + name);
+            }
+        }
+    }
+
+    // either a literal chunk or a field slot
+    private static class Segment {
+        final byte[] literal;
+        final Field field;
+        final int width;
+
+        Segment(byte[] literal, Field field, int width) {
+            this.literal = literal;
+            this.field = field;
+            this.width = width;
+        }
+    }
+
+    private final Segment[] orderSegments;
+    private final Segment[] lineSegments;
+    private final ConcurrentLinkedQueue<InvoiceBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger(); // pool.size() walks the whole queue
+
+    public InvoiceRenderer(String orderTemplate, String lineTemplate) {
+        this.orderSegments = compile(orderTemplate);
+        this.lineSegments = compile(lineTemplate);
+    }
+
+    // Renders into a buffer from the pool; call release() on it when it has been written out.
+    public InvoiceBuffer render(Order order) {
+        InvoiceBuffer buffer = pool.poll();
+        if (buffer == null) {
+            buffer = new InvoiceBuffer(this);
+        } else {
+            pooled.decrementAndGet();
+        }
+        PriceBreakdown price = order.getPriceBreakdown();
+        for (Segment segment : orderSegments) {
+            if (segment.literal != null) {
+                buffer.write(segment.literal);
+                continue;
+            }
+            switch (segment.field) {
+                case LINES:
+                    OrderLines lines = order.getLines();
+                    for (int line = 0; line < lines.size(); line++) {
+                        renderLine(buffer, lines, line);
+                    }
+                    break;
+                case SUBTOTAL:
+                    buffer.writeMoney(price.getSubtotal(), segment.width);
+                    break;
+                case DISCOUNT:
+                    buffer.writeMoney(price.getDiscount(), segment.width);
+                    break;
+                case TAX:
+                    buffer.writeMoney(price.getTax(), segment.width);
+                    break;
+                case SERVICE_FEE:
+                    buffer.writeMoney(price.getServiceFee(), segment.width);
+                    break;
+                case TOTAL:
+                    buffer.writeMoney(price.getTotal(), segment.width);
+                    break;
+                default:
+                    throw new IllegalStateException(segment.field + " can only be used in the line template");
+            }
+        }
+        return buffer;
+    }
+
+    public void print(Order order, PrintStream out) {
+        InvoiceBuffer buffer = render(order);
+        out.write(buffer.array(), 0, buffer.length());
+        out.flush();
+        buffer.release();
+    }
+
+    private void renderLine(InvoiceBuffer buffer, OrderLines lines, int line) {
+        for (Segment segment : lineSegments) {
+            if (segment.literal != null) {
+                buffer.write(segment.literal);
+                continue;
+            }
+            switch (segment.field) {
+                case NAME:
+                    buffer.writeText(lines.getItem(line).getName(), segment.width);
+                    break;
+                case PRICE:
+                    buffer.writeMoney(lines.getPrice(line), segment.width);
+                    break;
+                case QUANTITY:
+                    buffer.writeNumber(lines.getQuantity(line), segment.width);
+                    break;
+                case AMOUNT:
+                    buffer.writeMoney(lines.getAmount(line), segment.width);
+                    break;
+                default:
+                    throw new IllegalStateException(segment.field + " can't be used in the line template");
+            }
+        }
+    }
+
+    void recycle(InvoiceBuffer buffer) {
+        if (pooled.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            buffer.reset();
+            pool.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    private static Segment[] compile(String template) {
+        template = template.replace("\n", System.lineSeparator());
+        List<Segment> segments = new ArrayList<>();
+        int position = 0;
+        while (position < template.length()) {
+            int open = template.indexOf('{', position);
+            if (open < 0) {
+                open = template.length();
+            }
+            if (open > position) {
+                segments.add(new Segment(template.substring(position, open).getBytes(StandardCharsets.UTF_8), null, 0));
+            }
+            if (open == template.length()) {
+                break;
+            }
+            int close = template.indexOf('}', open);
+            if (close < 0) {
+                throw new IllegalArgumentException("Unclosed field in invoice template at " + open);
+            }
+            String spec = template.substring(open + 1, close);
+            int colon = spec.indexOf(":-");
+            String name = colon < 0 ? spec : spec.substring(0, colon);
+            int width = colon < 0 ? 0 : Integer.parseInt(spec.substring(colon + 2));
+            segments.add(new Segment(null, Field.forName(name), width));
+            position = close + 1;
+        }
+        return segments.toArray(new Segment[0]);
+    }
+}
+
+// A growable byte buffer an invoice is rendered into. Comes from and goes back to a renderer's pool.
+class InvoiceBuffer {
+    private final InvoiceRenderer owner;
+    private byte[] bytes = new byte[1024];
+    private int length;
+
+    InvoiceBuffer(InvoiceRenderer owner) {
+        this.owner = owner;
+    }
+
+    public byte[] array() {
+        return bytes;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(bytes, 0, length);
+    }
+
+    // hands the buffer back to the pool; it must not be used afterwards
+    public void release() {
+        owner.recycle(this);
+    }
+
+    void reset() {
+        length = 0;
+    }
+
+    void write(byte[] chunk) {
+        ensure(chunk.length);
+        System.arraycopy(chunk, 0, bytes, length, chunk.length);
+        length += chunk.length;
+    }
+
+    // like %-{width}s
+    void writeText(String text, int width) {
+        ensure(text.length() * 3 + width);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes[length++] = (byte) c;
+            } else {
+                byte[] encoded = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+                if (Character.isHighSurrogate(c) && i + 1 < text.length()) {
+                    encoded = text.substring(i, i + 2).getBytes(StandardCharsets.UTF_8);
+                    i++;
+                }
+                System.arraycopy(encoded, 0, bytes, length, encoded.length);
+                length += encoded.length;
+            }
+        }
+        pad(text.length(), width);
+    }
+
+    // like %-{width}d
+    void writeNumber(long value, int width) {
+        int start = length;
+        appendDigits(value);
+        pad(length - start, width);
+    }
+
+    // cents as 12345.67, like %-{width}s of Money.format()
+    void writeMoney(long cents, int width) {
+        int start = length;
+        ensure(24);
+        if (cents < 0) {
+            bytes[length++] = '-';
+            cents = -cents;
+        }
+        appendDigits(cents / 100);
+        bytes[length++] = '.';
+        bytes[length++] = (byte) ('0' + (cents % 100) / 10);
+        bytes[length++] = (byte) ('0' + cents % 10);
+        pad(length - start, width);
+    }
+
+    private void appendDigits(long value) {
+        ensure(21);
+        if (value < 0) {
+            bytes[length++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        for (int i = length + digits - 1; i >= length; i--) {
+            bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void pad(int written, int width) {
+        ensure(Math.max(0, width - written));
+        while (written < width) {
+            bytes[length++] = ' ';
+            written++;
+        }
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+        }
+    }
+}
@@ -0,0 +1,240 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+// Writes rendered invoices to disk on a background thread, so the ordering thread only queues them.
+// Queueing never waits: if the disk has fallen a whole queue behind, the invoice is refused and its
+// future fails with RejectedExecutionException.
+// An invoice goes either to its own file (invoice-<order id>.txt) or to the rolling archive
+// (invoices-000001.txt, ...). Archived invoices queued together are appended with one gathering
+// write; a segment rolls over to the next file once it passes the segment size.
+class InvoiceWriter implements Closeable {
+    static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final int QUEUE_SIZE = 65536;
+    private static final int MAX_BATCH = 1024;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private static class Job {
+        final Path file; // null for the archive
+        final InvoiceBuffer invoice;
+        final CompletableFuture<Path> done = new CompletableFuture<>();
+
+        Job(Path file, InvoiceBuffer invoice) {
+            this.file = file;
+            this.invoice = invoice;
+        }
+    }
+
+    private static final Job STOP = new Job(null, null);
+
+    private final Path directory;
+    private final long segmentSize;
+    private final BlockingQueue<Job> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Thread writer;
+    private boolean closed; // guarded by this, so nothing is queued behind STOP
+    private int segmentNumber;
+    private Path segmentPath;
+    private FileChannel segment;
+    private final ByteBuffer archiveBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    public InvoiceWriter(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public InvoiceWriter(Path directory, long segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        // carry on appending to the newest archive segment
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "invoices-*.txt")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segmentNumber = Math.max(segmentNumber, Integer.parseInt(name.substring(9, name.length() - 4)));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        this.writer = new Thread(this::run, "invoice-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public Path invoicePath(long orderId) {
+        return directory.resolve("invoice-" + orderId + ".txt");
+    }
+
+    // Queues the invoice for its own file. The buffer goes back to its pool once written.
+    public CompletableFuture<Path> write(long orderId, InvoiceBuffer invoice) {
+        return submit(new Job(invoicePath(orderId), invoice));
+    }
+
+    // Queues the invoice for the rolling archive. The future gives the segment it was appended to.
+    public CompletableFuture<Path> archive(InvoiceBuffer invoice) {
+        return submit(new Job(null, invoice));
+    }
+
+    private CompletableFuture<Path> submit(Job job) {
+        RuntimeException refused = null;
+        synchronized (this) {
+            if (closed) {
+                refused = new IllegalStateException("Invoice writer is closed");
+            } else if (!queue.offer(job)) {
+                refused = new RejectedExecutionException("Invoice queue is full");
+            }
+        }
+        if (refused != null) {
+            job.invoice.release();
+            job.done.completeExceptionally(refused);
+        }
+        return job.done;
+    }
+
+    private void run() {
+        List<Job> batch = new ArrayList<>(MAX_BATCH);
+        List<Job> archived = new ArrayList<>(MAX_BATCH);
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            for (Job job : batch) {
+                if (job == STOP) {
+                    stopping = true;
+                } else if (job.file == null) {
+                    archived.add(job);
+                } else {
+                    writeFile(job);
+                }
+            }
+            if (!archived.isEmpty()) {
+                appendToArchive(archived);
+            }
+            batch.clear();
+            archived.clear();
+        }
+        closeSegment();
+    }
+
+    private void writeFile(Job job) {
+        long start = Metrics.INVOICE_WRITE.start();
+        try (FileChannel channel = FileChannel.open(job.file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer bytes = job.invoice.asByteBuffer();
+            Metrics.INVOICE_BYTES.add(bytes.remaining());
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            Metrics.INVOICE_WRITE.stop(start);
+            job.done.complete(job.file);
+        } catch (IOException e) {
+            job.done.completeExceptionally(new UncheckedIOException("Could not write " + job.file, e));
+        } finally {
+            job.invoice.release();
+        }
+    }
+
+    private void appendToArchive(List<Job> jobs) {
+        long start = Metrics.INVOICE_WRITE.start();
+        Path written = null;
+        IOException failure = null;
+        try {
+            if (segment == null || segment.size() >= segmentSize) {
+                openNextSegment();
+            }
+            written = segmentPath;
+            // copied into one direct buffer: a gathering write of heap buffers would copy each
+            // into a temporary direct buffer anyway
+            for (Job job : jobs) {
+                ByteBuffer bytes = job.invoice.asByteBuffer();
+                Metrics.INVOICE_BYTES.add(bytes.remaining());
+                while (bytes.hasRemaining()) {
+                    if (!archiveBuffer.hasRemaining()) {
+                        flushArchiveBuffer();
+                    }
+                    int length = Math.min(bytes.remaining(), archiveBuffer.remaining());
+                    archiveBuffer.put(bytes.array(), bytes.position(), length);
+                    bytes.position(bytes.position() + length);
+                }
+            }
+            flushArchiveBuffer();
+            Metrics.INVOICE_WRITE.stop(start);
+        } catch (IOException e) {
+            archiveBuffer.clear();
+            failure = e;
+        }
+        for (Job job : jobs) {
+            job.invoice.release();
+            if (failure == null) {
+                job.done.complete(written);
+            } else {
+                job.done.completeExceptionally(new UncheckedIOException("Could not archive invoice", failure));
+            }
+        }
+    }
+
+    private void flushArchiveBuffer() throws IOException {
+        archiveBuffer.flip();
+        while (archiveBuffer.hasRemaining()) {
+            segment.write(archiveBuffer);
+        }
+        archiveBuffer.clear();
+    }
+
+    private void openNextSegment() throws IOException {
+        closeSegment();
+        if (segmentNumber == 0 || Files.exists(segmentPath(segmentNumber)) && Files.size(segmentPath(segmentNumber)) >= segmentSize) {
+            segmentNumber++;
+        }
+        segmentPath = segmentPath(segmentNumber);
+        segment = FileChannel.open(segmentPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private Path segmentPath(int number) {
+        return directory.resolve(String.format("invoices-%06d.txt", number));
+    }
+
+    private void closeSegment() {
+        if (segment != null) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                System.out.println("Could not close " + segmentPath + ": " + e.getMessage());
+            }
+            segment = null;
+        }
+    }
+
+    // Writes out everything already queued, then stops the writer thread.
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            queue.put(STOP);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
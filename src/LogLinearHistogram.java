@@ -0,0 +1,134 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+// Counts non-negative long values in log-linear buckets: each power of two is split into
+// SUB_BUCKETS equal parts, so a reported percentile is within about 3% of the real value.
+// Recording is lock free; the counts are striped by thread so busy recorders don't share a
+// cache line. Histograms with the same layout can be merged, and snapshot() gives a plain copy.
+class LogLinearHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values below SUB_BUCKETS get a bucket each, then SUB_BUCKETS buckets per power of two
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) * 2;
+
+    private final AtomicLongArray[] stripes;
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public LogLinearHistogram() {
+        this(STRIPES);
+    }
+
+    private LogLinearHistogram(int stripeCount) {
+        stripes = new AtomicLongArray[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    public void record(long value) {
+        record(value, 1);
+    }
+
+    public void record(long value, long count) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Histogram values can't be negative: " + value);
+        }
+        int stripe = (int) Thread.currentThread().getId() & (stripes.length - 1);
+        stripes[stripe].addAndGet(bucketOf(value), count);
+        if (value > max.get()) {
+            max.accumulate(value);
+        }
+    }
+
+    // adds the other histogram's counts to this one
+    public void merge(LogLinearHistogram other) {
+        for (AtomicLongArray source : other.stripes) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                long count = source.get(bucket);
+                if (count != 0) {
+                    stripes[0].addAndGet(bucket, count);
+                }
+            }
+        }
+        max.accumulate(other.max.get());
+    }
+
+    // a single-stripe copy of the counts so far, for reading percentiles from one consistent view
+    public LogLinearHistogram snapshot() {
+        LogLinearHistogram copy = new LogLinearHistogram(1);
+        copy.merge(this);
+        return copy;
+    }
+
+    public void reset() {
+        for (AtomicLongArray stripe : stripes) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                stripe.set(bucket, 0);
+            }
+        }
+        max.reset();
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                count += stripe.get(bucket);
+            }
+        }
+        return count;
+    }
+
+    // The value at the given percentile (0-100), reported as the upper end of its bucket but never
+    // above the largest value recorded; 0 if empty.
+    // Call it on a snapshot() when asking for several percentiles of a histogram still being recorded.
+    public long getPercentile(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                long count = stripe.get(bucket);
+                counts[bucket] += count;
+                total += count;
+            }
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return Math.min(highestValueIn(bucket), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    // the largest value recorded, exactly
+    public long getMax() {
+        return max.get();
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value); // >= SUB_BUCKET_BITS
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        long width = 1L << shift;
+        return lowest + (width - 1) < 0 ? Long.MAX_VALUE : lowest + (width - 1);
+    }
+}
@@ -1,52 +1,136 @@
 import java.io.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 enum Category {
     DRINK,
     FOOD
 }
 
+// Money is kept as a long number of cents so prices and totals add up exactly.
+final class Money {
+    private Money() {
+    }
+
+    public static long of(long amount) {
+        return amount * 100;
+    }
+
+    public static long fromDouble(double amount) {
+        return Math.round(amount * 100);
+    }
+
+    // percent of an amount, rounded half up to the nearest cent
+    public static long percent(long amount, int percent) {
+        return (amount * percent + 50) / 100;
+    }
+
+    public static String format(long cents) {
+        String sign = cents < 0 ? "-" : "";
+        cents = Math.abs(cents);
+        long fraction = cents % 100;
+        return sign + (cents / 100) + (fraction < 10 ? ".0" : ".") + fraction;
+    }
+}
+
 interface MenuDisplayable {
     void showMenu();
+
+    // the line showMenu() prints
+    String toMenuLine();
 }
 
+// Menu items are immutable once they are on a menu: an admin edit replaces the item with a copy
+// that keeps the same id, so orders holding the old item keep the price they were given.
+//
+// The id is the item's slot on the menu. When an item is removed its slot is given to a later
+// item, so the id alone can name different items over time; the generation counts how often the
+// slot has been reused. The key (getKey(), shown on the menu as Menu.keyText()) holds both, so an
+// admin edit naming an item that has since been removed fails instead of hitting its successor.
 class MenuItem {
-    private String name;
-    private double price;
-    private Category category;
+    private int id = -1; // assigned by Menu when the item is added
+    private int generation;
+    private final String name;
+    private final int nameHash; // Menu.nameHash(name)
+    private final long price; // in cents
+    private final Category category;
 
-    public MenuItem(String name, double price, Category category) {
+    public MenuItem(String name, long price, Category category) {
         this.name = name;
+        this.nameHash = Menu.nameHash(name);
         this.price = price;
         this.category = category;
     }
 
-    // getters and setters
-    public String getName() {
-        return name;
+    // getters
+    public int getId() {
+        return id;
     }
 
-    public void setName(String name) {
-        this.name = name;
+    void setId(int id) {
+        this.id = id;
     }
 
-    public void setPrice(double price) {
-        this.price = price;
+    public int getGeneration() {
+        return generation;
+    }
+
+    void setGeneration(int generation) {
+        this.generation = generation;
+    }
+
+    // id and generation together; stays the same while the item is updated, never names another item
+    public long getKey() {
+        return Menu.key(id, generation);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    int getNameHash() {
+        return nameHash;
     }
 
-    public double getPrice() {
+    public long getPrice() {
         return price;
     }
 
     public Category getCategory() {
         return category;
     }
+
+    // list price before any subclass adjustment, used when copying
+    protected long getBasePrice() {
+        return price;
+    }
+
+    // a copy with the same key and a new name and price
+    public MenuItem withNameAndPrice(String name, long price) {
+        return sameKey(new MenuItem(name, price, category));
+    }
+
+    // gives the copy this item's id and generation
+    protected <T extends MenuItem> T sameKey(T copy) {
+        copy.setId(id);
+        copy.setGeneration(generation);
+        return copy;
+    }
+
+    // same kind of item with the same fields, ignoring the key
+    public boolean hasSameContent(MenuItem other) {
+        return other != null && other.getClass() == getClass() && other.name.equals(name)
+                && other.price == price && other.category == category;
+    }
 }
 
 class Food extends MenuItem implements MenuDisplayable {
-    private String type;
+    private final String type;
 
-    public Food(String name, double price, String type) {
+    public Food(String name, long price, String type) {
         super(name, price, Category.FOOD);
         this.type = type;
     }
@@ -55,20 +139,31 @@ class Food extends MenuItem implements MenuDisplayable {
         return type;
     }
 
-    public void setType(String type) {
-        this.type = type;
+    @Override
+    public Food withNameAndPrice(String name, long price) {
+        return sameKey(new Food(name, price, type));
+    }
+
+    @Override
+    public boolean hasSameContent(MenuItem other) {
+        return super.hasSameContent(other) && ((Food) other).type.equals(type);
     }
 
     @Override
     public void showMenu() {
-        System.out.println(String.format("%-20s $%-10.2f %-10s", getName(), getPrice(), getType()));
+        System.out.println(toMenuLine());
+    }
+
+    @Override
+    public String toMenuLine() {
+        return String.format("%-20s $%-10s %-10s", getName(), Money.format(getPrice()), getType());
     }
 }
 
 class Drink extends MenuItem implements MenuDisplayable {
-    private String type;
+    private final String type;
 
-    public Drink(String name, double price, String type) {
+    public Drink(String name, long price, String type) {
         super(name, price, Category.DRINK);
         this.type = type;
     }
@@ -77,185 +172,1194 @@ class Drink extends MenuItem implements MenuDisplayable {
         return type;
     }
 
-    public void setType(String type) {
-        this.type = type;
+    @Override
+    public Drink withNameAndPrice(String name, long price) {
+        return sameKey(new Drink(name, price, type));
+    }
+
+    @Override
+    public boolean hasSameContent(MenuItem other) {
+        return super.hasSameContent(other) && ((Drink) other).type.equals(type);
     }
 
     @Override
     public void showMenu() {
-        System.out.println(String.format("%-20s $%-10.2f %-10s", getName(), getPrice(), getType()));
+        System.out.println(toMenuLine());
+    }
+
+    @Override
+    public String toMenuLine() {
+        return String.format("%-20s $%-10s %-10s", getName(), Money.format(getPrice()), getType());
     }
 }
 
 class Discount extends MenuItem implements MenuDisplayable {
-    private double discount;
+    private final long discount; // in cents
 
-    public Discount(String name, double price, Category category, double discount) {
+    public Discount(String name, long price, Category category, long discount) {
         super(name, price, category);
         this.discount = discount;
     }
 
-    public double getDiscount() {
+    public long getDiscount() {
         return discount;
     }
 
-    public void setDiscount(double discount) {
-        this.discount = discount;
+    @Override
+    public long getPrice() {
+        return super.getPrice() - discount;
     }
 
     @Override
-    public double getPrice() {
-        return super.getPrice() - discount;
+    public Discount withNameAndPrice(String name, long price) {
+        return sameKey(new Discount(name, price, getCategory(), discount));
+    }
+
+    @Override
+    public boolean hasSameContent(MenuItem other) {
+        return super.hasSameContent(other) && ((Discount) other).discount == discount;
     }
 
     @Override
     public void showMenu() {
-        System.out.printf("Discount Name: %s, Price: %.2f, Category: %s, Discount: %.2f\n", getName(), getPrice(), getCategory(), getDiscount());
+        System.out.println(toMenuLine());
+    }
+
+    @Override
+    public String toMenuLine() {
+        return String.format("Discount Name: %s, Price: %s, Category: %s, Discount: %s", getName(), Money.format(getPrice()), getCategory(), Money.format(getDiscount()));
     }
 }
 
-class Menu {
-    private List<MenuDisplayable> menuItems;
+// An immutable copy of the menu with its indexes. Readers get one from Menu.current() and can use
+// it for as long as they like; admin edits publish a new version instead of changing this one.
+// Versions share the parts of their tables an edit didn't touch (see ChunkedArray), so publishing
+// a new version costs about as much on a million-item menu as on a small one. getItemsByCategory()
+// is kept up to date by the edits the same way; getMenuItems() is put together the first time it
+// is asked for.
+//
+// A menu loaded from a MenuSnapshot starts with empty tables over the snapshot: a slot the edits
+// haven't written to holds whatever the snapshot has under that id, and name and category lookups
+// search the snapshot's indexes as well as the version's own, skipping ids the edits have written.
+final class MenuVersion {
+    static final int MIN_BUCKETS = 16;
+    // written to the slot of a snapshot item that has been removed, so the slot reads as free
+    static final MenuItem REMOVED = new MenuItem("", 0, Category.FOOD);
 
-    public Menu() {
-        this.menuItems = new ArrayList<>();
+    private final long number;
+    private final ChunkedArray<MenuItem> slots; // item by id, null for a free slot or one the snapshot holds
+    private final int slotCount; // ids below this have been handed out
+    private final int itemCount;
+    private final FreeSlot freeSlots;
+    // items by the hash of their name (Menu.nameHash()); a bucket is a MenuItem, or a MenuItem[] in id order
+    private final ChunkedArray<Object> nameBuckets;
+    private final int bucketCount; // a power of two
+    private final MenuSnapshot snapshot; // null if the menu wasn't loaded from one
+    private final CategoryList[] categories; // by Category ordinal
+    private final MenuRenderCache renderCache;
+    private volatile List<MenuDisplayable> menuItems;
+
+    // A slot given up by a removed item and the generation its next item gets. Free slots form a
+    // stack shared between versions: pushing or popping one only makes a new top.
+    static final class FreeSlot {
+        final int id;
+        final int generation;
+        final FreeSlot next;
 
-        this.menuItems.add(new Food("Pizza", 30000.0, "Italian"));
-        this.menuItems.add(new Food("Burger", 40000.0, "American"));
-        this.menuItems.add(new Food("Pasta", 50000.0, "Italian"));
-        this.menuItems.add(new Food("Steak", 60000.0, "American"));
-        this.menuItems.add(new Drink("Soda", 10000.0, "Carbonated"));
-        this.menuItems.add(new Drink("Juice", 15000.0, "Fruit"));
-        this.menuItems.add(new Drink("Coffee", 20000.0, "Hot"));
-        this.menuItems.add(new Drink("Tea", 25000.0, "Hot"));
-        this.menuItems.add(new Discount("Weekend Discount", 5000.0, Category.FOOD, 5000.0));
+        FreeSlot(int id, int generation, FreeSlot next) {
+            this.id = id;
+            this.generation = generation;
+            this.next = next;
+        }
     }
 
-    public void addItem(MenuDisplayable item) {
-        menuItems.add(item);
+    // The items of one category in id order, as a list. It reads a table indexed by id that holds
+    // only this category's items, so walking it skips the chunks of ids the category has none of,
+    // merged with the category's ids in the snapshot. get(i) has to count its way there, so it
+    // copies the items into an array the first time.
+    static final class CategoryList extends AbstractList<MenuItem> {
+        private final ChunkedArray<MenuItem> items;
+        private final int size;
+        private final ChunkedArray<MenuItem> slots; // the version's; ids written here hide the snapshot's item
+        private final MenuSnapshot snapshot;
+        private final int snapshotStart;
+        private final int snapshotEnd;
+        private volatile MenuItem[] array;
+
+        CategoryList(ChunkedArray<MenuItem> items, int size, ChunkedArray<MenuItem> slots, MenuSnapshot snapshot,
+                     Category category) {
+            this.items = items;
+            this.size = size;
+            this.slots = slots;
+            this.snapshot = snapshot;
+            this.snapshotStart = snapshot != null ? snapshot.categoryStart(category) : 0;
+            this.snapshotEnd = snapshot != null ? snapshotStart + snapshot.categorySize(category) : 0;
+        }
+
+        ChunkedArray<MenuItem> getItems() {
+            return items;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public MenuItem get(int index) {
+            Objects.checkIndex(index, size);
+            MenuItem[] all = array;
+            if (all == null) {
+                all = new MenuItem[size];
+                int i = 0;
+                for (MenuItem item : this) {
+                    all[i++] = item;
+                }
+                array = all;
+            }
+            return all[index];
+        }
+
+        @Override
+        public Iterator<MenuItem> iterator() {
+            return new Iterator<MenuItem>() {
+                private int id = items.nextIndex(0); // next of the version's own, or -1
+                private int position = snapshotStart; // in the snapshot's category index
+                private int snapshotId = nextFromSnapshot(); // or -1
+
+                @Override
+                public boolean hasNext() {
+                    return id >= 0 || snapshotId >= 0;
+                }
+
+                @Override
+                public MenuItem next() {
+                    if (id >= 0 && (snapshotId < 0 || id < snapshotId)) {
+                        MenuItem item = items.get(id);
+                        id = items.nextIndex(id + 1);
+                        return item;
+                    }
+                    if (snapshotId < 0) {
+                        throw new NoSuchElementException();
+                    }
+                    MenuItem item = snapshot.getItem(snapshotId);
+                    position++;
+                    snapshotId = nextFromSnapshot();
+                    return item;
+                }
+
+                private int nextFromSnapshot() {
+                    for (; position < snapshotEnd; position++) {
+                        int next = snapshot.categoryIdAt(position);
+                        if (slots.get(next) == null) {
+                            return next;
+                        }
+                    }
+                    return -1;
+                }
+            };
+        }
+    }
+
+    MenuVersion(long number, ChunkedArray<MenuItem> slots, int slotCount, int itemCount, FreeSlot freeSlots,
+                ChunkedArray<Object> nameBuckets, int bucketCount, MenuSnapshot snapshot, CategoryList[] categories,
+                MenuRenderCache renderCache) {
+        this.number = number;
+        this.slots = slots;
+        this.slotCount = slotCount;
+        this.itemCount = itemCount;
+        this.freeSlots = freeSlots;
+        this.nameBuckets = nameBuckets;
+        this.bucketCount = bucketCount;
+        this.snapshot = snapshot;
+        this.categories = categories;
+        this.renderCache = renderCache;
+    }
+
+    static MenuVersion empty() {
+        ChunkedArray<MenuItem> slots = new ChunkedArray<>();
+        CategoryList[] categories = new CategoryList[Category.values().length];
+        for (Category category : Category.values()) {
+            categories[category.ordinal()] = new CategoryList(new ChunkedArray<>(), 0, slots, null, category);
+        }
+        return new MenuVersion(0, slots, 0, 0, null, new ChunkedArray<>(), MIN_BUCKETS, null, categories,
+                new MenuRenderCache());
+    }
+
+    // The first version of a menu loaded from the snapshot. Its tables start empty and the
+    // buckets are sized for the snapshot's items, so an edit doesn't rehash them all.
+    static MenuVersion over(MenuSnapshot snapshot) {
+        ChunkedArray<MenuItem> slots = new ChunkedArray<>();
+        CategoryList[] categories = new CategoryList[Category.values().length];
+        for (Category category : Category.values()) {
+            categories[category.ordinal()] = new CategoryList(new ChunkedArray<>(), snapshot.categorySize(category), slots,
+                    snapshot, category);
+        }
+        int buckets = Math.max(MIN_BUCKETS, Integer.highestOneBit(Math.max(snapshot.size(), 1)) << 1);
+        return new MenuVersion(1, slots, snapshot.slotCount(), snapshot.size(), snapshot.freeSlots(), new ChunkedArray<>(),
+                buckets, snapshot, categories, new MenuRenderCache());
+    }
+
+    public long getNumber() {
+        return number;
+    }
+
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    // every item, in id order
+    public List<MenuDisplayable> getMenuItems() {
+        List<MenuDisplayable> items = menuItems;
+        if (items == null) {
+            List<MenuDisplayable> all = new ArrayList<>(itemCount);
+            for (int id = 0; id < slotCount; id++) {
+                MenuItem item = slot(slots.get(id), snapshot, id);
+                if (item != null) {
+                    all.add((MenuDisplayable) item);
+                }
+            }
+            items = Collections.unmodifiableList(all);
+            menuItems = items;
+        }
+        return items;
+    }
+
+    // Case-insensitive lookup by name. When several items share a name the one with the lowest id wins.
+    public MenuItem findItem(String name) {
+        long start = Metrics.ITEM_LOOKUP.start();
+        int hash = Menu.nameHash(name);
+        MenuItem item = findByName(nameBuckets.get(bucketOf(hash, bucketCount)), name, hash, slots, snapshot);
+        Metrics.ITEM_LOOKUP.stop(start);
+        return item;
+    }
+
+    public MenuItem getItemById(int id) {
+        long start = Metrics.ITEM_LOOKUP.start();
+        MenuItem item = id >= 0 ? slot(slots.get(id), snapshot, id) : null;
+        Metrics.ITEM_LOOKUP.stop(start);
+        return item;
+    }
+
+    // the item with this key (see MenuItem.getKey()), or null if it has been removed
+    public MenuItem getItemByKey(long key) {
+        MenuItem item = getItemById(Menu.keyId(key));
+        return item != null && item.getGeneration() == Menu.keyGeneration(key) ? item : null;
+    }
+
+    // in id order; the list can't be changed
+    public List<MenuItem> getItemsByCategory(Category category) {
+        return categories[category.ordinal()];
     }
 
     public void displayMenu() {
-        List<MenuDisplayable> discounts = new ArrayList<>();
-        Map<Category, List<MenuDisplayable>> sortedMenuItems = new LinkedHashMap<>();
-        for (MenuDisplayable item : menuItems) {
-            if (item instanceof Discount) {
-                discounts.add(item);
-            } else if (item instanceof MenuItem) {
-                MenuItem menuItem = (MenuItem) item;
-                sortedMenuItems.computeIfAbsent(menuItem.getCategory(), k -> new ArrayList<>()).add(item);
+        displayMenu(System.out);
+    }
+
+    // Writes the pre-rendered menu in one go; only the first display of a version formats anything.
+    public void displayMenu(PrintStream out) {
+        long start = Metrics.MENU_DISPLAY.start();
+        renderCache.display(this, out);
+        Metrics.MENU_DISPLAY.stop(start);
+    }
+
+    MenuRenderCache getRenderCache() {
+        return renderCache;
+    }
+
+    ChunkedArray<MenuItem> getSlots() {
+        return slots;
+    }
+
+    int getSlotCount() {
+        return slotCount;
+    }
+
+    FreeSlot getFreeSlots() {
+        return freeSlots;
+    }
+
+    ChunkedArray<Object> getNameBuckets() {
+        return nameBuckets;
+    }
+
+    int getBucketCount() {
+        return bucketCount;
+    }
+
+    MenuSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    CategoryList getCategoryList(Category category) {
+        return categories[category.ordinal()];
+    }
+
+    // the item in a slot, given what the version's own table holds there
+    static MenuItem slot(MenuItem stored, MenuSnapshot snapshot, int id) {
+        if (stored == null) {
+            return snapshot != null ? snapshot.getItem(id) : null;
+        }
+        return stored != REMOVED ? stored : null;
+    }
+
+    // The lowest-id item with this name, from the bucket or from the snapshot items the slots
+    // don't hide. A snapshot's name index is sorted by hash and then id.
+    static MenuItem findByName(Object bucket, String name, int nameHash, ChunkedReader<MenuItem> slots,
+                               MenuSnapshot snapshot) {
+        MenuItem found = findInBucket(bucket, name, nameHash);
+        if (snapshot == null) {
+            return found;
+        }
+        for (int at = snapshot.firstNameAt(nameHash); at < snapshot.size() && snapshot.nameHashAt(at) == nameHash; at++) {
+            int id = snapshot.nameIdAt(at);
+            if (found != null && found.getId() < id) {
+                break;
+            }
+            if (slots.get(id) == null) {
+                MenuItem item = snapshot.getItem(id);
+                if (Menu.sameName(item, name, nameHash)) {
+                    return item;
+                }
             }
         }
+        return found;
+    }
 
-        System.out.println("\n----------------------------------------");
-        System.out.println("               OUR MENU                 ");
-        System.out.println("----------------------------------------");
+    static int bucketOf(int nameHash, int bucketCount) {
+        return (nameHash ^ (nameHash >>> 16)) & (bucketCount - 1);
+    }
+
+    static MenuItem findInBucket(Object bucket, String name, int nameHash) {
+        if (bucket instanceof MenuItem) {
+            MenuItem item = (MenuItem) bucket;
+            return Menu.sameName(item, name, nameHash) ? item : null;
+        }
+        if (bucket != null) {
+            for (MenuItem item : (MenuItem[]) bucket) {
+                if (Menu.sameName(item, name, nameHash)) {
+                    return item;
+                }
+            }
+        }
+        return null;
+    }
+}
+
+// One item-level change made by a MenuEdit. Items are matched up by id: an update replaces the
+// item with a copy that has the same id.
+final class MenuChange {
+    enum Kind {
+        ADDED,
+        UPDATED,
+        REMOVED
+    }
+
+    private final Kind kind;
+    private final MenuItem item;
+    private final MenuItem previous;
+
+    MenuChange(Kind kind, MenuItem item, MenuItem previous) {
+        this.kind = kind;
+        this.item = item;
+        this.previous = previous;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    // the item after the change; for REMOVED, the item that was removed
+    public MenuItem getItem() {
+        return item;
+    }
+
+    // the item before an UPDATED change, null otherwise
+    public MenuItem getPrevious() {
+        return previous;
+    }
+}
+
+// Told about every published menu version and the item changes that made it. Called while the
+// menu's edit lock is held, so calls arrive one at a time and in version order.
+interface MenuChangeListener {
+    void menuChanged(MenuVersion version, List<MenuChange> changes);
+}
+
+// A batch of admin edits, published as a single new version when the batch finishes, so readers
+// see all of it or none of it. Items are addressed by key, not by position, and every edit only
+// copies the table chunks it writes to, so a batch of a thousand edits on a million-item menu
+// costs about what a thousand edits on a small one do.
+class MenuEdit {
+    private final MenuVersion base;
+    private final MenuSnapshot snapshot;
+    private final ChunkedArray.Editor<MenuItem> slots;
+    private int slotCount;
+    private int itemCount;
+    private MenuVersion.FreeSlot freeSlots;
+    private ChunkedArray.Editor<Object> nameBuckets;
+    private int bucketCount;
+    private final List<ChunkedArray.Editor<MenuItem>> categoryItems = new ArrayList<>(); // by Category ordinal
+    private final int[] categorySizes = new int[Category.values().length];
+    private final List<MenuChange> changes = new ArrayList<>();
+
+    // sections of the rendered menu this batch touches
+    private boolean discountsChanged;
+    private final Set<Category> changedCategories = EnumSet.noneOf(Category.class);
+
+    MenuEdit(MenuVersion base) {
+        this.base = base;
+        this.snapshot = base.getSnapshot();
+        this.slots = base.getSlots().edit();
+        this.slotCount = base.getSlotCount();
+        this.itemCount = base.getItemCount();
+        this.freeSlots = base.getFreeSlots();
+        this.nameBuckets = base.getNameBuckets().edit();
+        this.bucketCount = base.getBucketCount();
+        for (Category category : Category.values()) {
+            MenuVersion.CategoryList items = base.getCategoryList(category);
+            categoryItems.add(items.getItems().edit());
+            categorySizes[category.ordinal()] = items.size();
+        }
+    }
+
+    public int size() {
+        return itemCount;
+    }
+
+    // the item with this key as the batch has it so far, or null if there is none
+    public MenuItem getItem(long key) {
+        MenuItem item = getItemById(Menu.keyId(key));
+        return item != null && item.getGeneration() == Menu.keyGeneration(key) ? item : null;
+    }
+
+    public MenuItem getItemById(int id) {
+        return id >= 0 ? MenuVersion.slot(slots.get(id), snapshot, id) : null;
+    }
 
-        System.out.println("\nDISCOUNTS:\n");
-        for (MenuDisplayable discount : discounts) {
-            discount.showMenu();
+    // Gives the item an id, reusing the most recently freed slot if there is one, and adds it.
+    public void addItem(MenuDisplayable item) {
+        if (!(item instanceof MenuItem)) {
+            throw new IllegalArgumentException("Not a menu item: " + item.toMenuLine());
         }
+        MenuItem menuItem = (MenuItem) item;
+        // skip free slots putItem() has filled since they were freed
+        while (freeSlots != null && getItemById(freeSlots.id) != null) {
+            freeSlots = freeSlots.next;
+        }
+        if (freeSlots != null) {
+            menuItem.setId(freeSlots.id);
+            menuItem.setGeneration(freeSlots.generation);
+            freeSlots = freeSlots.next;
+        } else {
+            menuItem.setId(slotCount++);
+            menuItem.setGeneration(0);
+        }
+        place(menuItem);
+    }
 
-        int i = 1;
-        for (Map.Entry<Category, List<MenuDisplayable>> entry : sortedMenuItems.entrySet()) {
-            System.out.println("\n" + entry.getKey() + ":\n");
-            for (MenuDisplayable item : entry.getValue()) {
-                item.showMenu();
-                i++;
+    public void addItems(Collection<? extends MenuDisplayable> items) {
+        for (MenuDisplayable item : items) {
+            addItem(item);
+        }
+    }
+
+    // returns false if there is no item with that key
+    public boolean updateItem(long key, String newName, long newPrice) {
+        MenuItem old = getItem(key);
+        if (old == null) {
+            return false;
+        }
+        replace(old, old.withNameAndPrice(newName, newPrice));
+        return true;
+    }
+
+    // returns false if there is no item with that key
+    public boolean updatePrice(long key, long newPrice) {
+        MenuItem old = getItem(key);
+        return old != null && updateItem(key, old.getName(), newPrice);
+    }
+
+    // returns the removed item, or null if there is no item with that key
+    public MenuItem removeItem(long key) {
+        MenuItem item = getItem(key);
+        if (item != null) {
+            remove(item);
+        }
+        return item;
+    }
+
+    // returns null if there is no item with that id
+    public MenuItem removeItemById(int id) {
+        MenuItem item = getItemById(id);
+        if (item != null) {
+            remove(item);
+        }
+        return item;
+    }
+
+    // Removes every item the filter doesn't keep.
+    public void retainItems(Predicate<MenuItem> keep) {
+        for (int id = 0; id < slotCount; id++) {
+            MenuItem item = getItemById(id);
+            if (item != null && !keep.test(item)) {
+                remove(item);
             }
         }
-        System.out.println("----------------------------------------\n");
+    }
+
+    // Puts the item on the menu under the key it already has, replacing whatever holds its id.
+    // This is how changes made on another menu are applied (see MenuDelta), so the keys stay the
+    // same on both.
+    public void putItem(MenuItem item) {
+        int id = item.getId();
+        if (id < 0) {
+            throw new IllegalArgumentException("Item has no id: " + item.getName());
+        }
+        MenuItem old = getItemById(id);
+        if (old != null && old.getGeneration() == item.getGeneration()) {
+            replace(old, item);
+            return;
+        }
+        if (old != null) {
+            remove(old); // the slot was reused on the other menu: a different item
+        }
+        slotCount = Math.max(slotCount, id + 1);
+        place(item);
+    }
+
+    // Adds an imported item, unless the menu already has an item with the same name (ignoring
+    // case) and category: then the imported one replaces it and takes over its key. Returns what
+    // was done, or null if the menu already had exactly this item.
+    public MenuChange.Kind mergeItem(MenuItem item) {
+        int bucket = MenuVersion.bucketOf(item.getNameHash(), bucketCount);
+        MenuItem existing = MenuVersion.findByName(nameBuckets.get(bucket), item.getName(), item.getNameHash(), slots, snapshot);
+        if (existing == null || existing.getCategory() != item.getCategory()) {
+            addItem((MenuDisplayable) item);
+            return MenuChange.Kind.ADDED;
+        }
+        if (existing.hasSameContent(item)) {
+            return null;
+        }
+        item.setId(existing.getId());
+        item.setGeneration(existing.getGeneration());
+        replace(existing, item);
+        return MenuChange.Kind.UPDATED;
+    }
+
+    List<MenuChange> getChanges() {
+        return changes;
+    }
+
+    MenuVersion build(long number) {
+        MenuRenderCache renderCache = new MenuRenderCache(base.getRenderCache(), discountsChanged, changedCategories);
+        MenuVersion.CategoryList[] categories = new MenuVersion.CategoryList[categorySizes.length];
+        ChunkedArray<MenuItem> builtSlots = slots.build();
+        for (Category category : Category.values()) {
+            int i = category.ordinal();
+            categories[i] = new MenuVersion.CategoryList(categoryItems.get(i).build(), categorySizes[i], builtSlots, snapshot, category);
+        }
+        return new MenuVersion(number, builtSlots, slotCount, itemCount, freeSlots, nameBuckets.build(), bucketCount,
+                snapshot, categories, renderCache);
+    }
+
+    // the item already has its id, and the slot is free
+    private void place(MenuItem item) {
+        changed(item);
+        slots.set(item.getId(), item);
+        itemCount++;
+        indexCategory(item);
+        if (itemCount > bucketCount) {
+            rehash(bucketCount * 2); // indexes this item too
+        } else {
+            indexName(item);
+        }
+        changes.add(new MenuChange(MenuChange.Kind.ADDED, item, null));
+    }
+
+    private void remove(MenuItem item) {
+        changed(item);
+        // a snapshot slot has to be marked, or it would read as the snapshot's item again
+        slots.set(item.getId(), snapshot != null && item.getId() < snapshot.slotCount() ? MenuVersion.REMOVED : null);
+        itemCount--;
+        unindexName(item);
+        unindexCategory(item);
+        freeSlots = new MenuVersion.FreeSlot(item.getId(), item.getGeneration() + 1, freeSlots);
+        changes.add(new MenuChange(MenuChange.Kind.REMOVED, item, null));
+    }
+
+    // puts updated, which has old's key, in old's place
+    private void replace(MenuItem old, MenuItem updated) {
+        changed(old);
+        changed(updated);
+        slots.set(old.getId(), updated);
+        changes.add(new MenuChange(MenuChange.Kind.UPDATED, updated, old));
+        if (old.getNameHash() == updated.getNameHash()) {
+            int bucket = MenuVersion.bucketOf(old.getNameHash(), bucketCount);
+            nameBuckets.set(bucket, replaced(nameBuckets.get(bucket), old, updated));
+        } else {
+            unindexName(old);
+            indexName(updated);
+        }
+        unindexCategory(old);
+        indexCategory(updated);
+    }
+
+    private void changed(MenuItem item) {
+        if (item instanceof Discount) {
+            discountsChanged = true;
+        } else {
+            changedCategories.add(item.getCategory());
+        }
+    }
+
+    private void indexName(MenuItem item) {
+        int bucket = MenuVersion.bucketOf(item.getNameHash(), bucketCount);
+        nameBuckets.set(bucket, with(nameBuckets.get(bucket), item));
+    }
+
+    private void unindexName(MenuItem item) {
+        int bucket = MenuVersion.bucketOf(item.getNameHash(), bucketCount);
+        nameBuckets.set(bucket, without(nameBuckets.get(bucket), item));
+    }
+
+    private void indexCategory(MenuItem item) {
+        categoryItems.get(item.getCategory().ordinal()).set(item.getId(), item);
+        categorySizes[item.getCategory().ordinal()]++;
+    }
+
+    private void unindexCategory(MenuItem item) {
+        categoryItems.get(item.getCategory().ordinal()).set(item.getId(), null);
+        categorySizes[item.getCategory().ordinal()]--;
+    }
+
+    // twice the buckets once there are more items than buckets, so chains stay about one long;
+    // items still in a snapshot are found through its own index
+    private void rehash(int buckets) {
+        bucketCount = buckets;
+        nameBuckets = new ChunkedArray<Object>().edit();
+        for (int id = 0; id < slotCount; id++) {
+            MenuItem item = slots.get(id);
+            if (item != null && item != MenuVersion.REMOVED) {
+                indexName(item);
+            }
+        }
+    }
+
+    // the bucket with the item added, keeping it in id order
+    private static Object with(Object bucket, MenuItem item) {
+        if (bucket == null) {
+            return item;
+        }
+        MenuItem[] chain = bucket instanceof MenuItem ? new MenuItem[] {(MenuItem) bucket} : (MenuItem[]) bucket;
+        int at = 0;
+        while (at < chain.length && chain[at].getId() < item.getId()) {
+            at++;
+        }
+        MenuItem[] grown = new MenuItem[chain.length + 1];
+        System.arraycopy(chain, 0, grown, 0, at);
+        grown[at] = item;
+        System.arraycopy(chain, at, grown, at + 1, chain.length - at);
+        return grown;
+    }
+
+    private static Object without(Object bucket, MenuItem item) {
+        if (bucket == item) {
+            return null;
+        }
+        if (!(bucket instanceof MenuItem[])) {
+            return bucket;
+        }
+        MenuItem[] chain = (MenuItem[]) bucket;
+        int at = indexOf(chain, item);
+        if (at < 0) {
+            return bucket;
+        }
+        if (chain.length == 2) {
+            return chain[1 - at];
+        }
+        MenuItem[] shrunk = new MenuItem[chain.length - 1];
+        System.arraycopy(chain, 0, shrunk, 0, at);
+        System.arraycopy(chain, at + 1, shrunk, at, chain.length - at - 1);
+        return shrunk;
+    }
+
+    private static Object replaced(Object bucket, MenuItem old, MenuItem updated) {
+        if (bucket == old) {
+            return updated;
+        }
+        if (!(bucket instanceof MenuItem[]) || indexOf((MenuItem[]) bucket, old) < 0) {
+            return bucket;
+        }
+        MenuItem[] chain = ((MenuItem[]) bucket).clone();
+        chain[indexOf(chain, old)] = updated;
+        return chain;
+    }
+
+    private static int indexOf(MenuItem[] chain, MenuItem item) {
+        for (int i = 0; i < chain.length; i++) {
+            if (chain[i] == item) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
+
+// The live menu. Readers take the current MenuVersion with a single volatile read and never
+// block; admin edits are serialized and each one publishes a new version.
+class Menu {
+    private volatile MenuVersion current;
+    private final Object editLock = new Object();
+    private final List<MenuChangeListener> listeners = new java.util.concurrent.CopyOnWriteArrayList<>();
+
+    public Menu() {
+        this(List.of(
+                new Food("Pizza", Money.of(30000), "Italian"),
+                new Food("Burger", Money.of(40000), "American"),
+                new Food("Pasta", Money.of(50000), "Italian"),
+                new Food("Steak", Money.of(60000), "American"),
+                new Drink("Soda", Money.of(10000), "Carbonated"),
+                new Drink("Juice", Money.of(15000), "Fruit"),
+                new Drink("Coffee", Money.of(20000), "Hot"),
+                new Drink("Tea", Money.of(25000), "Hot")));
+    }
+
+    // A menu holding only the given items.
+    public Menu(Collection<? extends MenuDisplayable> items) {
+        this.current = MenuVersion.empty();
+        edit(batch -> batch.addItems(items));
+    }
+
+    // A menu starting from the given version, e.g. one over a MenuSnapshot (see MenuSnapshot.toMenu()).
+    Menu(MenuVersion first) {
+        this.current = first;
+    }
+
+    public MenuVersion current() {
+        return current;
+    }
+
+    // Applies a batch of edits and publishes them as one new version.
+    public MenuVersion edit(Consumer<MenuEdit> changes) {
+        synchronized (editLock) {
+            MenuEdit batch = new MenuEdit(current);
+            changes.accept(batch);
+            MenuVersion version = batch.build(current.getNumber() + 1);
+            current = version;
+            for (MenuChangeListener listener : listeners) {
+                listener.menuChanged(version, batch.getChanges());
+            }
+            return version;
+        }
+    }
+
+    // Registers the listener and returns the version its first call will follow on from.
+    public MenuVersion addChangeListener(MenuChangeListener listener) {
+        synchronized (editLock) {
+            listeners.add(listener);
+            return current;
+        }
+    }
+
+    public void removeChangeListener(MenuChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void addItem(MenuDisplayable item) {
+        edit(batch -> batch.addItem(item));
+    }
+
+    public void addItems(Collection<? extends MenuDisplayable> items) {
+        edit(batch -> batch.addItems(items));
+    }
+
+    // returns false if there is no item with that key
+    public boolean updateItem(long key, String newName, long newPrice) {
+        boolean[] updated = new boolean[1];
+        edit(batch -> updated[0] = batch.updateItem(key, newName, newPrice));
+        return updated[0];
+    }
+
+    // returns the removed item, or null if there is no item with that key
+    public MenuItem removeItem(long key) {
+        MenuItem[] removed = new MenuItem[1];
+        edit(batch -> removed[0] = batch.removeItem(key));
+        return removed[0];
+    }
+
+    public MenuItem findItem(String name) {
+        return current.findItem(name);
+    }
+
+    public MenuItem getItemById(int id) {
+        return current.getItemById(id);
+    }
+
+    public MenuItem getItemByKey(long key) {
+        return current.getItemByKey(key);
+    }
+
+    public List<MenuItem> getItemsByCategory(Category category) {
+        return current.getItemsByCategory(category);
+    }
+
+    public void displayMenu() {
+        current.displayMenu();
     }
 
     public List<MenuDisplayable> getMenuItems() {
-        return menuItems;
+        return current.getMenuItems();
+    }
+
+    // Names match ignoring case, the way String.equalsIgnoreCase() compares them, and the hash
+    // folds each char so matching names hash alike without making a lower-case copy. ASCII chars
+    // only get bit 5 set: that lower-cases letters and also folds a few symbols together ('@' and
+    // '`', say), which costs nothing but the odd shared bucket.
+    static int nameHash(String name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            hash = 31 * hash + (c < 0x80 ? c | 0x20 : Character.toLowerCase(Character.toUpperCase(c)));
+        }
+        return hash;
+    }
+
+    static boolean sameName(MenuItem item, String name, int nameHash) {
+        String itemName = item.getName();
+        if (item.getNameHash() != nameHash || itemName.length() != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char a = itemName.charAt(i);
+            char b = name.charAt(i);
+            if (a == b) {
+                continue;
+            }
+            if (a < 0x80 && b < 0x80) {
+                char lower = (char) (a | 0x20);
+                if (lower != (b | 0x20) || lower < 'a' || lower > 'z') {
+                    return false;
+                }
+            } else if (Character.toLowerCase(Character.toUpperCase(a)) != Character.toLowerCase(Character.toUpperCase(b))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static long key(int id, int generation) {
+        return ((long) generation << 32) | (id & 0xFFFFFFFFL);
+    }
+
+    static int keyId(long key) {
+        return (int) key;
+    }
+
+    static int keyGeneration(long key) {
+        return (int) (key >>> 32);
+    }
+
+    // How a key is shown on the menu and typed back in: the id, then "v" and the generation once
+    // the slot has been reused, e.g. "12" or "12v1".
+    static String keyText(long key) {
+        int generation = keyGeneration(key);
+        return generation == 0 ? Integer.toString(keyId(key)) : keyId(key) + "v" + generation;
+    }
+
+    // the key keyText() shows, or -1 if the text isn't one
+    static long parseKey(String text) {
+        String trimmed = text.trim().toLowerCase(Locale.ROOT);
+        int v = trimmed.indexOf('v');
+        try {
+            int id = Integer.parseInt(v < 0 ? trimmed : trimmed.substring(0, v));
+            int generation = v < 0 ? 0 : Integer.parseInt(trimmed.substring(v + 1));
+            return id >= 0 && generation >= 0 ? key(id, generation) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 }
 
 class Admin {
     private Menu menu;
+    private String readOnlyReason; // null while the menu can be edited here
 
     public Admin(Menu menu) {
         this.menu = menu;
     }
 
+    // Makes every edit through this Admin throw IllegalStateException with the reason. Set before
+    // any edit is made, on an outlet whose menu is a MenuReplica of another outlet's.
+    public void setReadOnly(String reason) {
+        readOnlyReason = reason;
+    }
+
+    // null if the menu can be edited
+    public String getReadOnlyReason() {
+        return readOnlyReason;
+    }
+
+    private void checkWritable() {
+        if (readOnlyReason != null) {
+            throw new IllegalStateException(readOnlyReason);
+        }
+    }
+
     public void addItem(MenuDisplayable item) {
+        checkWritable();
         menu.addItem(item);
     }
 
-    public void updateItem(int itemNumber, String newName, double newPrice) {
-        if (itemNumber > 0 && itemNumber <= menu.getMenuItems().size()) {
-            MenuItem item = (MenuItem) menu.getMenuItems().get(itemNumber - 1);
-            item.setName(newName);
-            item.setPrice(newPrice);
-        }
+    public void addItems(Collection<? extends MenuDisplayable> items) {
+        checkWritable();
+        menu.addItems(items);
+    }
+
+    // itemKey is the item number shown on the menu; returns false if there is no such item
+    public boolean updateItem(long itemKey, String newName, long newPrice) {
+        checkWritable();
+        return menu.updateItem(itemKey, newName, newPrice);
     }
 
-    public void removeItem(int itemNumber) {
-        if (itemNumber > 0 && itemNumber <= menu.getMenuItems().size()) {
-            menu.getMenuItems().remove(itemNumber - 1);
+    // returns the removed item, or null if there is no such item
+    public MenuItem removeItem(long itemKey) {
+        checkWritable();
+        return menu.removeItem(itemKey);
+    }
+
+    // Reprices many items in one edit. Returns how many of the keys named an item.
+    public int updatePrices(long[] itemKeys, long[] newPrices) {
+        if (itemKeys.length != newPrices.length) {
+            throw new IllegalArgumentException(itemKeys.length + " items but " + newPrices.length + " prices");
         }
+        checkWritable();
+        int[] updated = new int[1];
+        menu.edit(batch -> {
+            for (int i = 0; i < itemKeys.length; i++) {
+                if (batch.updatePrice(itemKeys[i], newPrices[i])) {
+                    updated[0]++;
+                }
+            }
+        });
+        return updated[0];
+    }
+
+    // Removes many items in one edit. Returns how many of the keys named an item.
+    public int removeItems(long[] itemKeys) {
+        checkWritable();
+        int[] removed = new int[1];
+        menu.edit(batch -> {
+            for (long key : itemKeys) {
+                if (batch.removeItem(key) != null) {
+                    removed[0]++;
+                }
+            }
+        });
+        return removed[0];
+    }
+
+    // Applies many edits at once; orders in flight see either none or all of them.
+    public MenuVersion applyBatch(Consumer<MenuEdit> changes) {
+        checkWritable();
+        return menu.edit(changes);
+    }
+}
+
+// Result of pricing an order once: every invoice line and the total come from the same numbers.
+final class PriceBreakdown {
+    private final long subtotal;
+    private final long discount;
+    private final long tax;
+    private final long serviceFee;
+    private final long total;
+
+    PriceBreakdown(long subtotal, long discount, long tax, long serviceFee) {
+        this.subtotal = subtotal;
+        this.discount = discount;
+        this.tax = tax;
+        this.serviceFee = serviceFee;
+        this.total = subtotal - discount + tax + serviceFee;
+    }
+
+    public long getSubtotal() {
+        return subtotal;
+    }
+
+    public long getDiscount() {
+        return discount;
+    }
+
+    public long getTax() {
+        return tax;
+    }
+
+    public long getServiceFee() {
+        return serviceFee;
+    }
+
+    public long getTotal() {
+        return total;
     }
 }
 
 class Order {
-    private Map<MenuItem, Integer> orderedItems;
+    static final int TAX_PERCENT = 10;
+    static final long SERVICE_FEE = Money.of(20000);
+
+    // 10% discount if the subtotal exceeds 100000
+    static final PromotionEngine DEFAULT_PROMOTIONS = new PromotionEngine(List.of(
+            PromotionRule.orderDiscount("10% off orders over 100000", Money.of(100000), 10)));
+
+    private OrderLines lines; // back in the pool once released
+    private PromotionEngine promotions;
+    private MenuVersion menuVersion; // the menu this order was taken from, may be null
+    private PriceBreakdown priceBreakdown; // computed on demand, cleared when the order changes
 
     public Order() {
-        this.orderedItems = new HashMap<>();
+        this(DEFAULT_PROMOTIONS, null);
     }
 
-    public void addItem(MenuItem item, int quantity) {
-        if (orderedItems.size() < 4) {
-            orderedItems.put(item, quantity);
-        } else {
-            System.out.println("You can only order up to 4 items at a time.");
+    public Order(PromotionEngine promotions, MenuVersion menuVersion) {
+        this.lines = OrderLines.acquire();
+        this.promotions = promotions;
+        this.menuVersion = menuVersion;
+    }
+
+    public MenuVersion getMenuVersion() {
+        return menuVersion;
+    }
+
+    // the order's lines; read only, change the order through addItem()
+    public OrderLines getLines() {
+        return lines;
+    }
+
+    // Adds to the item's quantity if it is already in the order. Returns false if the item wasn't added.
+    public boolean addItem(MenuItem item, int quantity) {
+        if (quantity <= 0) {
+            System.out.println("Please order at least 1.");
+            return false;
         }
+        lines.add(item, quantity);
+        priceBreakdown = null;
+        return true;
     }
 
-    public double getTotalPrice() {
-        double total = 0;
-        for (Map.Entry<MenuItem, Integer> entry : orderedItems.entrySet()) {
-            total += entry.getKey().getPrice() * entry.getValue();
+    // Gives the order's line storage back to the pool. The order can't be used afterwards.
+    public void release() {
+        if (lines != null) {
+            lines.release();
+            lines = null;
         }
-        double discount = (total > 100000) ? total * 0.10 : 0; // 10% discount if total exceeds 100000
-        total -= discount;
-        double tax = total * 0.10; // 10% tax
-        double serviceFee = 20000; // fixed service fee
-        total += tax + serviceFee;
-        return total;
+    }
+
+    public PriceBreakdown getPriceBreakdown() {
+        if (priceBreakdown == null) {
+            long start = Metrics.ORDER_PRICING.start();
+            priceBreakdown = promotions.currentPlan().price(lines, TAX_PERCENT, SERVICE_FEE);
+            Metrics.ORDER_PRICING.stop(start);
+        }
+        return priceBreakdown;
+    }
+
+    public long getTotalPrice() {
+        return getPriceBreakdown().getTotal();
     }
 
     public void displayOrder() {
-        System.out.println("\n----------------------------------------");
-        System.out.println("               YOUR ORDER               ");
-        System.out.println("----------------------------------------");
-        double subtotal = 0;
-        for (Map.Entry<MenuItem, Integer> entry : orderedItems.entrySet()) {
-            double accumulatedPrice = entry.getKey().getPrice() * entry.getValue();
-            System.out.printf("%-20s $%-5.2f x%-2d $%-5.2f\n", entry.getKey().getName(), entry.getKey().getPrice(), entry.getValue(), accumulatedPrice);
-            subtotal += accumulatedPrice;
-        }
-        double discount = (subtotal > 100000) ? subtotal * 0.10 : 0; // 10% discount if subtotal exceeds 100000
-        double tax = (subtotal - discount) * 0.10; // 10% tax
-        double serviceFee = 20000; // fixed service fee
-        System.out.println("----------------------------------------");
-        System.out.printf("SUBTOTAL: $%-30.2f\n", subtotal);
-        System.out.printf("DISCOUNT (10%%): $%-30.2f\n", discount);
-        System.out.printf("TAX (10%%): $%-30.2f\n", tax);
-        System.out.printf("SERVICE FEE: $%-30.2f\n", serviceFee);
-        System.out.println("----------------------------------------");
-        System.out.printf("TOTAL: $%-30.2f\n", getTotalPrice());
-        System.out.println("----------------------------------------\n");
+        InvoiceRenderer.DEFAULT.print(this, System.out);
     }
 }
 
 public class Main {
+    static final long TEA_OFFER_THRESHOLD = Money.of(50000);
+
+    static PromotionEngine createPromotions(Menu menu) {
+        List<PromotionRule> rules = new ArrayList<>(Order.DEFAULT_PROMOTIONS.getRules());
+        rules.add(PromotionRule.categoryAmountOff("Weekend Discount: 5000 off food", Category.FOOD, 0, Money.of(5000))
+                .on(java.time.DayOfWeek.SATURDAY, java.time.DayOfWeek.SUNDAY));
+        MenuItem tea = menu.findItem("Tea");
+        if (tea instanceof Drink) {
+            rules.add(PromotionRule.buyOneGetOne("Buy 1 get 1 free Tea", tea, TEA_OFFER_THRESHOLD));
+        }
+        return new PromotionEngine(rules);
+    }
+
     public static void main(String[] args) {
         Menu menu = new Menu();
+        String publisherAddress = null;
+        int servePort = -1;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--outlet") && i + 1 < args.length) {
+                // follow the menu of the outlet publishing at host:port (admin option 9 there)
+                publisherAddress = args[++i];
+                continue;
+            }
+            if (args[i].equals("--serve") && i + 1 < args.length) {
+                // take orders over the network (see OrderServer) instead of on this console
+                servePort = Integer.parseInt(args[++i]);
+                continue;
+            }
+            // start from a menu snapshot saved with admin option 6
+            try {
+                menu = MenuSnapshot.open(Paths.get(args[i])).toMenu();
+            } catch (IOException e) {
+                System.out.println("Could not load the menu snapshot, using the default menu. " + e.getMessage());
+            }
+        }
+        MenuReplica replica = null;
+        if (publisherAddress != null) {
+            int colon = publisherAddress.lastIndexOf(':');
+            replica = new MenuReplica(menu);
+            replica.follow(colon > 0 ? publisherAddress.substring(0, colon) : "localhost",
+                    Integer.parseInt(publisherAddress.substring(colon + 1)));
+        }
+        MenuPublisher publisher = null;
         Admin admin = new Admin(menu);
+        if (replica != null) {
+            // the publisher would overwrite local edits, and its ids would collide with local items
+            admin.setReadOnly("This outlet follows the menu published at " + publisherAddress + ". Make menu changes there.");
+        }
+        OrderJournal journal = null;
+        try {
+            journal = OrderJournal.open(Paths.get("orders"));
+            if (journal.getRecoveredRecords() > 0) {
+                System.out.println("Recovered " + journal.getRecoveredRecords() + " orders from the order journal.");
+            }
+        } catch (IOException e) {
+            System.out.println("Could not open the order journal, orders will not be recorded. " + e.getMessage());
+        }
+        long firstOrderId = journal != null ? journal.getLastOrderId() + 1 : 1;
+        Inventory inventory = new Inventory();
+        // low-stock events arrive on the ordering threads and are shown when the admin menu opens
+        Queue<String> stockAlerts = new java.util.concurrent.ConcurrentLinkedQueue<>();
+        Menu stockMenu = menu;
+        inventory.addLowStockListener((itemKey, remaining) -> {
+            MenuItem item = stockMenu.getItemByKey(itemKey);
+            stockAlerts.add((item != null ? item.getName() : "Item " + Menu.keyText(itemKey)) + " is running low: " + remaining + " left");
+        });
+        menu.addChangeListener(inventory);
+        OrderService orderService = new OrderService(menu, createPromotions(menu), journal, firstOrderId, inventory);
+        SalesAnalytics analytics = new SalesAnalytics();
+        orderService.addCheckoutListener(analytics);
+        menu.addChangeListener(analytics);
+        MenuSearchIndex searchIndex = new MenuSearchIndex(menu);
+        orderService.addCheckoutListener(searchIndex);
+        InvoiceWriter invoices = null;
+        try {
+            invoices = new InvoiceWriter(Paths.get("invoices"));
+        } catch (IOException e) {
+            System.out.println("Could not open the invoices folder, invoices can't be printed. " + e.getMessage());
+        }
         Scanner scanner = new Scanner(System.in);
 
+        if (servePort >= 0) {
+            serve(servePort, orderService, admin, analytics, searchIndex, invoices, scanner);
+            shutdown(journal, invoices, publisher, replica);
+            return;
+        }
+
         while (true) {
             System.out.println("\n----------------------------------------");
             System.out.println("   WELCOME TO OUR RESTAURANT");
@@ -272,17 +1376,20 @@ public class Main {
                 System.out.println("\n----------------------------------------");
                 System.out.println("   THANK YOU FOR VISITING OUR RESTAURANT");
                 System.out.println("----------------------------------------\n");
+                shutdown(journal, invoices, publisher, replica);
                 break;
             } else if (choice == 1) {
 
-                Order order = new Order();
+                OrderService.Session session = orderService.openSession();
+                Order order = session.getOrder();
 
                 while (true) {
                     System.out.println("\n----------------------------------------");
                     System.out.println("               OUR MENU                 ");
                     System.out.println("----------------------------------------");
-                    menu.displayMenu();
-                    System.out.println("Please enter the name of the item you want to order, 'admin' to switch to admin mode, or 'done' to finish your order:");
+                    session.getMenuVersion().displayMenu();
+                    System.out.println("OFFERS: " + String.join(", ", orderService.getPromotions().currentPlan().getRuleNames()));
+                    System.out.println("Please enter the name of the item you want to order, 'admin' to switch to admin mode, 'cancel' to cancel your order, or 'done' to finish your order:");
                     System.out.println("----------------------------------------\n");
 
                     scanner.nextLine(); // consume the newline
@@ -293,60 +1400,80 @@ public class Main {
                         System.out.println("   THANK YOU FOR YOUR ORDER");
                         System.out.println("----------------------------------------\n");
                         break;
+                    } else if (itemName.equalsIgnoreCase("cancel")) {
+                        session.cancel();
+                        System.out.println("\n----------------------------------------");
+                        System.out.println("   YOUR ORDER HAS BEEN CANCELLED");
+                        System.out.println("----------------------------------------\n");
+                        break;
                     } else if (itemName.equalsIgnoreCase("admin")) {
                         System.out.println("\n----------------------------------------");
                         System.out.println("   SWITCHING TO ADMIN MODE");
                         System.out.println("----------------------------------------\n");
                         break;
                     } else {
-                        MenuItem selectedItem = null;
-                        for (MenuDisplayable item : menu.getMenuItems()) {
-                            if (item instanceof MenuItem && ((MenuItem) item).getName().equalsIgnoreCase(itemName)) {
-                                selectedItem = (MenuItem) item;
-                                break;
-                            }
-                        }
+                        MenuItem selectedItem = session.findItem(itemName);
                         if (selectedItem != null) {
                             System.out.println("\n----------------------------------------");
                             System.out.println("You selected " + selectedItem.getName() + ". How many do you want to order?");
                             System.out.println("----------------------------------------\n");
                             int quantity = scanner.nextInt();
-                            order.addItem(selectedItem, quantity);
-                            System.out.println("\n----------------------------------------");
-                            System.out.println("You added " + quantity + " " + selectedItem.getName() + " to your order.");
-                            System.out.println("----------------------------------------\n");
+                            if (session.addItem(selectedItem, quantity)) {
+                                System.out.println("\n----------------------------------------");
+                                System.out.println("You added " + quantity + " " + selectedItem.getName() + " to your order.");
+                                System.out.println("----------------------------------------\n");
+                            } else if (quantity > 0) {
+                                // stock can come back (a cancelled order) between the reservation and this check
+                                int left = inventory.getStock(selectedItem.getKey());
+                                System.out.println("\n----------------------------------------");
+                                System.out.println(left < quantity ? "Sorry, only " + left + " " + selectedItem.getName() + " left."
+                                        : "Could not add " + selectedItem.getName() + ". Please try again.");
+                                System.out.println("----------------------------------------\n");
+                            }
                         } else {
                             System.out.println("\n----------------------------------------");
                             System.out.println("Invalid item name. Please try again.");
+                            List<MenuItem> suggestions = searchIndex.search(session.getMenuVersion(), itemName, 3);
+                            if (!suggestions.isEmpty()) {
+                                StringBuilder names = new StringBuilder();
+                                for (MenuItem suggestion : suggestions) {
+                                    names.append(names.length() > 0 ? ", " : "").append(suggestion.getName());
+                                }
+                                System.out.println("Did you mean: " + names + "?");
+                            }
                             System.out.println("----------------------------------------\n");
                         }
                     }
                 }
+                if (session.isCancelled()) {
+                    order.release();
+                    continue;
+                }
 
 
-                // Check if total price exceeds 50000 and offer buy 1 get 1 free Tea
-                if (order.getTotalPrice() > 50000) {
+                // Check if the subtotal exceeds 50000 and offer buy 1 get 1 free Tea; the promotion's
+                // threshold is on the subtotal, before discounts, tax and the service fee
+                if (order.getPriceBreakdown().getSubtotal() > TEA_OFFER_THRESHOLD) {
                     System.out.println("\n----------------------------------------");
                     System.out.println("   SPECIAL OFFER FOR YOU");
                     System.out.println("----------------------------------------");
-                    System.out.println("Your total exceeds 50000. Would you like to buy 1 get 1 free Tea? Enter yes to accept, no to decline:");
+                    System.out.println("Your order exceeds 50000. Would you like to buy 1 get 1 free Tea? Enter yes to accept, no to decline:");
                     System.out.println("----------------------------------------\n");
                     String teaOffer = scanner.next();
                     if (teaOffer.equalsIgnoreCase("yes")) {
                         // Find the Tea item
-                        MenuItem tea = null;
-                        for (MenuDisplayable item : menu.getMenuItems()) {
-                            if (item instanceof Drink && ((MenuItem) item).getName().equalsIgnoreCase("Tea")) {
-                                tea = (MenuItem) item;
-                                break;
+                        MenuItem tea = session.findItem("Tea");
+                        if (tea instanceof Drink) {
+                            // the buy 1 get 1 free Tea promotion makes the second one free
+                            if (session.addItem(tea, 2)) {
+                                System.out.println("\n----------------------------------------");
+                                System.out.println("You added 2 Teas to your order for the price of 1.");
+                                System.out.println("----------------------------------------\n");
+                            } else {
+                                System.out.println("\n----------------------------------------");
+                                System.out.println("Sorry, there is not enough Tea left for the offer.");
+                                System.out.println("----------------------------------------\n");
                             }
-                        }
-                        if (tea != null) {
-                            // Add 2 Teas to the order for the price of 1
-                            order.addItem(tea, 2);
-                            System.out.println("\n----------------------------------------");
-                            System.out.println("You added 2 Teas to your order for the price of 1.");
-                            System.out.println("----------------------------------------\n");
                         } else {
                             System.out.println("\n----------------------------------------");
                             System.out.println("Sorry, Tea is not available in the menu.");
@@ -354,41 +1481,58 @@ public class Main {
                         }
                     }
                 }
+                try {
+                    session.checkout();
+                } catch (UncheckedIOException e) {
+                    System.out.println("\n----------------------------------------");
+                    System.out.println("Sorry, your order could not be recorded, so it was not placed. " + e.getCause().getMessage());
+                    System.out.println("----------------------------------------\n");
+                    session.cancel();
+                    order.release();
+                    continue;
+                }
                 order.displayOrder();
                 System.out.println("Do you want to print the invoice to a text file? Enter yes to confirm, no to decline:");
                 String printConfirmation = scanner.next();
-                if (printConfirmation.equalsIgnoreCase("yes")) {
+                if (printConfirmation.equalsIgnoreCase("yes") && invoices != null) {
                     try {
-                        PrintWriter writer = new PrintWriter("invoice.txt", "UTF-8");
-                        PrintStream console = System.out;
-                        System.setOut(new PrintStream(new FileOutputStream("invoice.txt")));
-                        order.displayOrder();
-                        System.setOut(console);
-                        writer.close();
-                        System.out.println("Invoice has been printed to invoice.txt");
-                    } catch (FileNotFoundException | UnsupportedEncodingException e) {
+                        Path invoice = invoices.write(session.getId(), InvoiceRenderer.DEFAULT.render(order)).join();
+                        System.out.println("Invoice has been printed to " + invoice);
+                    } catch (CompletionException e) {
                         System.out.println("An error occurred while trying to print the invoice to a text file.");
                     }
                 }
-                System.exit(0); // Close the application after the order is displayed
+                order.release();
 
             } else if (choice == 2) {
                 // Admin functionality
                 System.out.println("\n----------------------------------------");
                 System.out.println("               ADMIN MENU               ");
                 System.out.println("----------------------------------------");
+                for (String alert = stockAlerts.poll(); alert != null; alert = stockAlerts.poll()) {
+                    System.out.println("LOW STOCK: " + alert);
+                }
                 System.out.println("1. Add an item");
                 System.out.println("2. Update an item");
                 System.out.println("3. Remove an item");
                 System.out.println("4. Import menu from a text file");
                 System.out.println("5. Export menu to a text file");
+                System.out.println("6. Save menu snapshot");
+                System.out.println("7. Sales report");
+                System.out.println("8. Set stock");
+                System.out.println("9. Outlets");
+                System.out.println("10. Metrics");
                 System.out.println("0. Go back");
                 System.out.println("----------------------------------------\n");
 
-                System.out.println("Please enter your choice (1 for Add, 2 for Update, 3 for Remove, 4 for Import, 5 for Export, 0 for Go back):");
+                System.out.println("Please enter your choice (1 for Add, 2 for Update, 3 for Remove, 4 for Import, 5 for Export, 6 for Snapshot, 7 for Sales report, 8 for Stock, 9 for Outlets, 10 for Metrics, 0 for Go back):");
                 int adminChoice = scanner.nextInt();
 
-                if (adminChoice == 1) {
+                if (adminChoice >= 1 && adminChoice <= 4 && admin.getReadOnlyReason() != null) {
+                    System.out.println("\n----------------------------------------");
+                    System.out.println(admin.getReadOnlyReason());
+                    System.out.println("----------------------------------------\n");
+                } else if (adminChoice == 1) {
                     System.out.println("\n----------------------------------------");
                     System.out.println("               ADD ITEM                 ");
                     System.out.println("----------------------------------------");
@@ -396,7 +1540,7 @@ public class Main {
                     scanner.nextLine(); // consume the newline
                     String name = scanner.nextLine();
                     System.out.println("Enter the price of the item:");
-                    double price = scanner.nextDouble();
+                    long price = Money.fromDouble(scanner.nextDouble());
                     System.out.println("Enter the category of the item (1 for FOOD, 2 for DRINK):");
                     int categoryChoice = scanner.nextInt();
                     Category category = null;
@@ -431,18 +1575,22 @@ public class Main {
                     System.out.println("\n----------------------------------------");
                     System.out.println("               UPDATE ITEM              ");
                     System.out.println("----------------------------------------");
+                    menu.displayMenu();
                     System.out.println("Enter the number of the item you want to update:");
-                    int itemNumber = scanner.nextInt();
+                    long itemNumber = Menu.parseKey(scanner.next());
                     scanner.nextLine(); // consume the newline
                     System.out.println("Enter the new name of the item:");
                     String newName = scanner.nextLine();
                     System.out.println("Enter the new price of the item:");
-                    double newPrice = scanner.nextDouble();
+                    long newPrice = Money.fromDouble(scanner.nextDouble());
                     System.out.println("Are you sure you want to update this item? Enter yes to confirm, no to cancel:");
                     String confirmation = scanner.next();
                     if (confirmation.equalsIgnoreCase("yes")) {
-                        admin.updateItem(itemNumber, newName, newPrice);
-                        System.out.println("Item updated successfully.");
+                        if (admin.updateItem(itemNumber, newName, newPrice)) {
+                            System.out.println("Item updated successfully.");
+                        } else {
+                            System.out.println("Invalid item number.");
+                        }
                     } else {
                         System.out.println("Item update cancelled.");
                     }
@@ -451,12 +1599,14 @@ public class Main {
                     System.out.println("\n----------------------------------------");
                     System.out.println("               REMOVE ITEM              ");
                     System.out.println("----------------------------------------");
+                    menu.displayMenu();
                     System.out.println("Enter the number of the item you want to remove:");
-                    int itemNumber = scanner.nextInt();
+                    long itemNumber = Menu.parseKey(scanner.next());
                     System.out.println("Are you sure you want to remove this item? Enter yes to confirm, no to cancel:");
                     String confirmation = scanner.next();
                     if (confirmation.equalsIgnoreCase("yes")) {
-                        admin.removeItem(itemNumber);
+                        MenuItem removed = admin.removeItem(itemNumber);
+                        System.out.println(removed != null ? removed.getName() + " removed." : "Invalid item number.");
                     } else {
                         System.out.println("Item removal cancelled.");
                     }
@@ -469,24 +1619,18 @@ public class Main {
                     scanner.nextLine(); // consume the newline
                     String fileName = scanner.nextLine();
                     try {
-                        File file = new File(fileName);
-                        Scanner fileScanner = new Scanner(file);
-                        while (fileScanner.hasNextLine()) {
-                            String line = fileScanner.nextLine();
-                            String[] parts = line.split(",");
-                            String name = parts[0];
-                            double price = Double.parseDouble(parts[1]);
-                            String type = parts[2];
-                            if (parts[3].equalsIgnoreCase("FOOD")) {
-                                admin.addItem(new Food(name, price, type));
-                            } else if (parts[3].equalsIgnoreCase("DRINK")) {
-                                admin.addItem(new Drink(name, price, type));
-                            }
+                        Path path = Paths.get(fileName);
+                        MenuImporter.Result result = MenuImporter.importFile(path, admin);
+                        System.out.println("Menu imported successfully. " + result.getAdded() + " items added, "
+                                + result.getUpdated() + " updated, " + result.getUnchanged() + " already on the menu.");
+                        if (!result.getRejects().isEmpty()) {
+                            Path report = MenuImporter.writeRejectReport(path, result.getRejects());
+                            System.out.println(result.getRejects().size() + " rows were rejected, see " + report + " for details.");
                         }
-                        fileScanner.close();
-                        System.out.println("Menu imported successfully.");
-                    } catch (FileNotFoundException e) {
+                    } catch (NoSuchFileException e) {
                         System.out.println("File not found. Please try again.");
+                    } catch (IOException e) {
+                        System.out.println("An error occurred while trying to import the menu from a text file.");
                     }
                     System.out.println("----------------------------------------\n");
                 } else if (adminChoice == 5) {
@@ -496,20 +1640,109 @@ public class Main {
                     System.out.println("Enter the name of the text file:");
                     scanner.nextLine(); // consume the newline
                     String fileName = scanner.nextLine();
+                    System.out.println("Enter the format (1 for CSV, 2 for JSON lines, 3 for snapshot):");
+                    int formatChoice = scanner.nextInt();
+                    MenuExporter.Format format = MenuExporter.CSV;
+                    if (formatChoice == 2) {
+                        format = MenuExporter.JSON_LINES;
+                    } else if (formatChoice == 3) {
+                        format = MenuExporter.SNAPSHOT;
+                    }
                     try {
-                        PrintWriter writer = new PrintWriter(fileName, "UTF-8");
-                        for (MenuDisplayable item : menu.getMenuItems()) {
-                            if (item instanceof MenuItem) {
-                                MenuItem menuItem = (MenuItem) item;
-                                writer.println(menuItem.getName() + "," + menuItem.getPrice() + "," + menuItem.getCategory());
-                            }
+                        MenuExporter.Result result = MenuExporter.export(menu, Paths.get(fileName), format);
+                        System.out.println("Menu exported successfully. " + result.getItems() + " items written as " + format.getName() + ".");
+                        if (result.getSkipped() > 0) {
+                            System.out.println(result.getSkipped() + " items (discounts or names with commas) can't be written as " + format.getName() + " and were skipped.");
                         }
-                        writer.close();
-                        System.out.println("Menu exported successfully.");
-                    } catch (FileNotFoundException | UnsupportedEncodingException e) {
+                    } catch (IOException e) {
                         System.out.println("An error occurred while trying to export the menu to a text file.");
                     }
                     System.out.println("----------------------------------------\n");
+                } else if (adminChoice == 6) {
+                    System.out.println("\n----------------------------------------");
+                    System.out.println("              SAVE SNAPSHOT             ");
+                    System.out.println("----------------------------------------");
+                    System.out.println("Enter the name of the snapshot file:");
+                    scanner.nextLine(); // consume the newline
+                    String fileName = scanner.nextLine();
+                    try {
+                        MenuSnapshot.write(menu, Paths.get(fileName));
+                        System.out.println("Menu snapshot saved. Start the program with " + fileName + " as argument to load it.");
+                    } catch (IOException e) {
+                        System.out.println("An error occurred while trying to save the menu snapshot.");
+                    }
+                    System.out.println("----------------------------------------\n");
+                } else if (adminChoice == 7) {
+                    System.out.println("\n----------------------------------------");
+                    System.out.println("              SALES REPORT              ");
+                    System.out.println("----------------------------------------");
+                    analytics.printReport(System.out);
+                    System.out.println("----------------------------------------\n");
+                } else if (adminChoice == 8) {
+                    System.out.println("\n----------------------------------------");
+                    System.out.println("               SET STOCK                ");
+                    System.out.println("----------------------------------------");
+                    menu.displayMenu();
+                    System.out.println("Enter the number of the item to set the stock of:");
+                    long itemNumber = Menu.parseKey(scanner.next());
+                    System.out.println("Enter the stock count (-1 to stop tracking stock):");
+                    int count = scanner.nextInt();
+                    MenuItem item = menu.getItemByKey(itemNumber);
+                    if (item != null) {
+                        inventory.setStock(item.getKey(), count < 0 ? Inventory.UNLIMITED : count);
+                        System.out.println("Stock of " + item.getName() + " set to " + (count < 0 ? "unlimited" : count) + ".");
+                    } else {
+                        System.out.println("Invalid item number.");
+                    }
+                    System.out.println("----------------------------------------\n");
+                } else if (adminChoice == 9) {
+                    System.out.println("\n----------------------------------------");
+                    System.out.println("                OUTLETS                 ");
+                    System.out.println("----------------------------------------");
+                    if (replica != null) {
+                        System.out.println("This outlet follows the menu published at " + publisherAddress + ", up to change "
+                                + replica.getAppliedSequence() + ". Make menu changes there.");
+                    } else if (publisher != null) {
+                        System.out.println("Publishing menu changes: " + publisher.getOutletCount() + " outlets connected, change "
+                                + publisher.getSequence() + ", " + publisher.getBytesSent() + " bytes sent.");
+                    } else {
+                        System.out.println("Enter the port to publish menu changes on (0 to cancel):");
+                        int port = scanner.nextInt();
+                        if (port > 0) {
+                            publisher = new MenuPublisher(menu);
+                            try {
+                                publisher.listen(port);
+                                System.out.println("Publishing menu changes on port " + port + ". Start other outlets with --outlet <host>:" + port + ".");
+                            } catch (IOException e) {
+                                publisher.close();
+                                publisher = null;
+                                System.out.println("Could not publish on port " + port + ": " + e.getMessage());
+                            }
+                        }
+                    }
+                    System.out.println("----------------------------------------\n");
+                } else if (adminChoice == 10) {
+                    System.out.println("\n----------------------------------------");
+                    System.out.println("                METRICS                 ");
+                    System.out.println("----------------------------------------");
+                    Metrics.DEFAULT.writeText(System.out);
+                    System.out.println();
+                    System.out.println("Enter the name of the file to save the metrics to, ending in .prom for Prometheus format (0 to skip):");
+                    scanner.nextLine(); // consume the newline
+                    String fileName = scanner.nextLine();
+                    if (!fileName.equals("0")) {
+                        try {
+                            if (fileName.endsWith(".prom")) {
+                                Metrics.DEFAULT.writePrometheus(Paths.get(fileName));
+                            } else {
+                                Metrics.DEFAULT.writeText(Paths.get(fileName));
+                            }
+                            System.out.println("Metrics saved to " + fileName + ".");
+                        } catch (IOException e) {
+                            System.out.println("An error occurred while trying to save the metrics.");
+                        }
+                    }
+                    System.out.println("----------------------------------------\n");
                 } else {
                     System.out.println("\n----------------------------------------");
                     System.out.println("Invalid choice. Please try again.");
@@ -519,4 +1752,62 @@ public class Main {
 
         }
     }
-}
\ No newline at end of file
+
+    // Serves orders with an OrderServer until "stop" is typed on the console. Without a console
+    // (input ends) it serves until the program is killed.
+    private static void serve(int port, OrderService orderService, Admin admin, SalesAnalytics analytics,
+                              MenuSearchIndex searchIndex, InvoiceWriter invoices, Scanner scanner) {
+        OrderServer server;
+        try {
+            server = new OrderServer(orderService, admin, analytics, searchIndex, invoices, port);
+        } catch (IOException e) {
+            System.out.println("Could not listen on port " + port + ". " + e.getMessage());
+            return;
+        }
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.run();
+            } catch (IOException e) {
+                System.out.println("The order server stopped: " + e.getMessage());
+            }
+        }, "order-server");
+        serverThread.start();
+        System.out.println("\n----------------------------------------");
+        System.out.println("   TAKING ORDERS ON PORT " + server.getPort());
+        System.out.println("----------------------------------------");
+        System.out.println("Enter 'status' for the number of connections, or 'stop' to stop taking orders:");
+        while (scanner.hasNextLine()) {
+            String command = scanner.nextLine().trim();
+            if (command.equalsIgnoreCase("stop")) {
+                server.close();
+                break;
+            } else if (command.equalsIgnoreCase("status")) {
+                System.out.println(server.getConnectionCount() + " connections, " + server.getRequestCount() + " requests served.");
+            }
+        }
+        try {
+            serverThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void shutdown(OrderJournal journal, InvoiceWriter invoices, MenuPublisher publisher, MenuReplica replica) {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                System.out.println("An error occurred while closing the order journal.");
+            }
+        }
+        if (invoices != null) {
+            invoices.close();
+        }
+        if (publisher != null) {
+            publisher.close();
+        }
+        if (replica != null) {
+            replica.close();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+import java.io.*;
+import java.util.*;
+
+// A numbered batch of menu changes, used to keep other outlets' menus the same as this one.
+// Items are identified by id, and a replica's menu keeps the ids and generations it is sent
+// (MenuEdit.putItem), so item numbers are the same on every outlet, an update travels as just the
+// changed item and a removal as just its id.
+//
+// Encoding (big-endian, as written by DataOutputStream):
+//   header  format (byte), publisher epoch (long), sequence (long), flags (byte), op count (int)
+//   PUT     op (byte), id (int), generation (int), kind (byte), category (byte), name (UTF), type
+//           (UTF, empty for discounts), list price (long), discount (long), both in cents
+//   REMOVE  op (byte), id (int)
+//
+// A FULL delta holds every item on the menu, and applying it also removes the items it doesn't
+// name. Applying a delta twice leaves the menu as applying it once did.
+final class MenuDelta {
+    static final byte FORMAT = 2;
+    private static final byte FLAG_FULL = 1;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte KIND_FOOD = 0;
+    private static final byte KIND_DRINK = 1;
+    private static final byte KIND_DISCOUNT = 2;
+    private static final Category[] CATEGORIES = Category.values();
+
+    private final long epoch;
+    private final long sequence;
+    private final boolean full;
+    // in the order they are applied; a null item means the id is removed
+    private final int[] ids;
+    private final MenuItem[] items;
+
+    private MenuDelta(long epoch, long sequence, boolean full, int[] ids, MenuItem[] items) {
+        this.epoch = epoch;
+        this.sequence = sequence;
+        this.full = full;
+        this.ids = ids;
+        this.items = items;
+    }
+
+    // The changes of one menu edit. Only the last change to each item is kept: items don't depend
+    // on each other, so it is all a replica needs.
+    static MenuDelta of(long epoch, long sequence, List<MenuChange> changes) {
+        Map<Integer, MenuChange> last = new LinkedHashMap<>();
+        for (MenuChange change : changes) {
+            int id = change.getItem().getId();
+            last.remove(id); // so it moves to the end
+            last.put(id, change);
+        }
+        int[] ids = new int[last.size()];
+        MenuItem[] items = new MenuItem[last.size()];
+        int op = 0;
+        for (MenuChange change : last.values()) {
+            ids[op] = change.getItem().getId();
+            items[op] = change.getKind() == MenuChange.Kind.REMOVED ? null : change.getItem();
+            op++;
+        }
+        return new MenuDelta(epoch, sequence, false, ids, items);
+    }
+
+    // everything on the menu as of this version
+    static MenuDelta full(long epoch, long sequence, MenuVersion version) {
+        List<MenuItem> all = new ArrayList<>();
+        for (MenuDisplayable item : version.getMenuItems()) {
+            if (item instanceof MenuItem) {
+                all.add((MenuItem) item);
+            }
+        }
+        int[] ids = new int[all.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = all.get(i).getId();
+        }
+        return new MenuDelta(epoch, sequence, true, ids, all.toArray(new MenuItem[0]));
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    // number of items put or removed
+    public int size() {
+        return ids.length;
+    }
+
+    // Applies the changes as part of a menu edit, e.g. menu.edit(delta::applyTo).
+    public void applyTo(MenuEdit batch) {
+        if (full) {
+            BitSet named = new BitSet();
+            for (int id : ids) {
+                named.set(id);
+            }
+            batch.retainItems(item -> named.get(item.getId()));
+        }
+        for (int op = 0; op < ids.length; op++) {
+            if (items[op] != null) {
+                batch.putItem(items[op]);
+            } else {
+                batch.removeItemById(ids[op]);
+            }
+        }
+    }
+
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + ids.length * 48);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(FORMAT);
+            out.writeLong(epoch);
+            out.writeLong(sequence);
+            out.writeByte(full ? FLAG_FULL : 0);
+            out.writeInt(ids.length);
+            for (int op = 0; op < ids.length; op++) {
+                MenuItem item = items[op];
+                if (item == null) {
+                    out.writeByte(OP_REMOVE);
+                    out.writeInt(ids[op]);
+                    continue;
+                }
+                out.writeByte(OP_PUT);
+                out.writeInt(ids[op]);
+                out.writeInt(item.getGeneration());
+                out.writeByte(item instanceof Discount ? KIND_DISCOUNT : item instanceof Drink ? KIND_DRINK : KIND_FOOD);
+                out.writeByte(item.getCategory().ordinal());
+                out.writeUTF(item.getName());
+                out.writeUTF(item instanceof Food ? ((Food) item).getType() : item instanceof Drink ? ((Drink) item).getType() : "");
+                out.writeLong(item.getBasePrice());
+                out.writeLong(item instanceof Discount ? ((Discount) item).getDiscount() : 0);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // a byte array doesn't throw
+        }
+        return bytes.toByteArray();
+    }
+
+    static MenuDelta decode(byte[] encoded) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        byte format = in.readByte();
+        if (format != FORMAT) {
+            throw new IOException("Unknown menu delta format " + format);
+        }
+        long epoch = in.readLong();
+        long sequence = in.readLong();
+        boolean full = (in.readByte() & FLAG_FULL) != 0;
+        int count = in.readInt();
+        if (count < 0 || count > encoded.length / 5) {
+            throw new IOException("Corrupt menu delta: " + count + " operations");
+        }
+        int[] ids = new int[count];
+        MenuItem[] items = new MenuItem[count];
+        for (int op = 0; op < count; op++) {
+            byte kind = in.readByte();
+            ids[op] = in.readInt();
+            if (ids[op] < 0) {
+                throw new IOException("Corrupt menu delta: item id " + ids[op]);
+            }
+            if (kind == OP_REMOVE) {
+                continue;
+            }
+            if (kind != OP_PUT) {
+                throw new IOException("Corrupt menu delta: operation " + kind);
+            }
+            int generation = in.readInt();
+            items[op] = readItem(in);
+            items[op].setId(ids[op]);
+            items[op].setGeneration(generation);
+        }
+        return new MenuDelta(epoch, sequence, full, ids, items);
+    }
+
+    private static MenuItem readItem(DataInputStream in) throws IOException {
+        byte kind = in.readByte();
+        int category = in.readByte();
+        String name = in.readUTF();
+        String type = in.readUTF();
+        long price = in.readLong();
+        long discount = in.readLong();
+        if (category < 0 || category >= CATEGORIES.length) {
+            throw new IOException("Corrupt menu delta: category " + category);
+        }
+        switch (kind) {
+            case KIND_FOOD:
+                return new Food(name, price, type);
+            case KIND_DRINK:
+                return new Drink(name, price, type);
+            case KIND_DISCOUNT:
+                return new Discount(name, price, CATEGORIES[category], discount);
+            default:
+                throw new IOException("Corrupt menu delta: item kind " + kind);
+        }
+    }
+}
@@ -0,0 +1,362 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+// Streams the menu to a file in one of the supported formats. Items are encoded straight into a
+// direct buffer that is flushed to the file channel whenever it fills up, so exporting a large
+// catalog never builds the whole file in memory. The file is written under a temporary name and
+// renamed into place at the end, so readers never see a half written export. Each thread keeps
+// its Sink, and with it the 1 MB direct buffer, from one export to the next.
+class MenuExporter {
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final ThreadLocal<Sink> SINKS = ThreadLocal.withInitial(Sink::new);
+
+    interface Format {
+        String getName();
+
+        // returns the number of items written
+        int write(MenuVersion version, Sink out) throws IOException;
+    }
+
+    // "name,price,type,CATEGORY", the format MenuImporter reads. Discounts, and names or types
+    // containing a comma or a line break, can't be represented in it and are skipped (and counted
+    // in Result.getSkipped()).
+    static final Format CSV = new Format() {
+        @Override
+        public String getName() {
+            return "CSV";
+        }
+
+        @Override
+        public int write(MenuVersion version, Sink out) throws IOException {
+            int written = 0;
+            for (MenuDisplayable displayable : version.getMenuItems()) {
+                if (!(displayable instanceof Food || displayable instanceof Drink)) {
+                    continue;
+                }
+                MenuItem item = (MenuItem) displayable;
+                String type = typeOf(item);
+                if (!fitsCsv(item.getName()) || !fitsCsv(type)) {
+                    continue;
+                }
+                out.putUtf8(item.getName());
+                out.put((byte) ',');
+                out.putCents(item.getPrice());
+                out.put((byte) ',');
+                out.putUtf8(type);
+                out.put((byte) ',');
+                out.putUtf8(item.getCategory().name());
+                out.put((byte) '\n');
+                written++;
+            }
+            return written;
+        }
+    };
+
+    // a field MenuImporter reads back as it was: no separator, and no line end to split its row
+    private static boolean fitsCsv(String field) {
+        return field.indexOf(',') < 0 && field.indexOf('\n') < 0 && field.indexOf('\r') < 0;
+    }
+
+    // One JSON object per line.
+    static final Format JSON_LINES = new Format() {
+        @Override
+        public String getName() {
+            return "JSON lines";
+        }
+
+        @Override
+        public int write(MenuVersion version, Sink out) throws IOException {
+            int written = 0;
+            for (MenuDisplayable displayable : version.getMenuItems()) {
+                if (!(displayable instanceof MenuItem)) {
+                    continue;
+                }
+                MenuItem item = (MenuItem) displayable;
+                out.putUtf8("{\"id\":\"");
+                out.putUtf8(Menu.keyText(item.getKey())); // the item number shown on the menu, e.g. 12v1
+                out.putUtf8("\",\"name\":");
+                out.putJsonString(item.getName());
+                out.putUtf8(",\"price\":");
+                out.putCents(item.getPrice());
+                if (item instanceof Discount) {
+                    out.putUtf8(",\"discount\":");
+                    out.putCents(((Discount) item).getDiscount());
+                } else {
+                    out.putUtf8(",\"type\":");
+                    out.putJsonString(typeOf(item));
+                }
+                out.putUtf8(",\"category\":\"");
+                out.putUtf8(item.getCategory().name());
+                out.putUtf8(item instanceof Discount ? "\",\"kind\":\"discount\"}\n" : item instanceof Drink ? "\",\"kind\":\"drink\"}\n" : "\",\"kind\":\"food\"}\n");
+                written++;
+            }
+            return written;
+        }
+    };
+
+    // The binary format read by MenuSnapshot.open().
+    static final Format SNAPSHOT = new Format() {
+        @Override
+        public String getName() {
+            return "snapshot";
+        }
+
+        @Override
+        public int write(MenuVersion version, Sink out) throws IOException {
+            return MenuSnapshot.write(version, out);
+        }
+    };
+
+    static class Result {
+        private final int items;
+        private final int skipped;
+        private final long bytes;
+
+        Result(int items, int skipped, long bytes) {
+            this.items = items;
+            this.skipped = skipped;
+            this.bytes = bytes;
+        }
+
+        public int getItems() {
+            return items;
+        }
+
+        public int getSkipped() {
+            return skipped;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    public static Result export(Menu menu, Path path, Format format) throws IOException {
+        long start = Metrics.MENU_EXPORT.start();
+        MenuVersion version = menu.current();
+        List<MenuDisplayable> items = version.getMenuItems();
+        Path target = path.toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            int written;
+            long bytes;
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                Sink sink = SINKS.get().open(channel);
+                try {
+                    written = format.write(version, sink);
+                    sink.flush();
+                    channel.force(false);
+                    bytes = sink.getBytesWritten();
+                } finally {
+                    sink.close();
+                }
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            int menuItems = 0;
+            for (MenuDisplayable item : items) {
+                if (item instanceof MenuItem) {
+                    menuItems++;
+                }
+            }
+            Metrics.MENU_EXPORT.stop(start);
+            Metrics.MENU_EXPORT_BYTES.add(bytes);
+            return new Result(written, menuItems - written, bytes);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static String typeOf(MenuItem item) {
+        if (item instanceof Food) {
+            return ((Food) item).getType();
+        } else if (item instanceof Drink) {
+            return ((Drink) item).getType();
+        }
+        return "";
+    }
+
+    // Reusable encoder over a direct buffer. Keeps a running CRC32 of everything written since it
+    // was opened on a channel.
+    static class Sink {
+        private FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final CRC32 crc = new CRC32();
+        private final byte[] digits = new byte[20];
+        private long bytesWritten;
+
+        // starts writing to the channel, from an empty buffer
+        Sink open(FileChannel channel) {
+            this.channel = channel;
+            buffer.clear();
+            crc.reset();
+            bytesWritten = 0;
+            return this;
+        }
+
+        // drops the channel; whatever wasn't flushed is discarded by the next open()
+        void close() {
+            channel = null;
+        }
+
+        public void put(byte b) throws IOException {
+            ensure(1);
+            buffer.put(b);
+        }
+
+        public void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        public void putLong8(long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        // decimal text, e.g. 42
+        public void putLong(long value) throws IOException {
+            if (value < 0) {
+                put((byte) '-');
+                value = -value;
+            }
+            int pos = digits.length;
+            do {
+                digits[--pos] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value != 0);
+            ensure(digits.length - pos);
+            buffer.put(digits, pos, digits.length - pos);
+        }
+
+        // cents as decimal text with two places, e.g. 3000050 -> 30000.50
+        public void putCents(long cents) throws IOException {
+            if (cents < 0) {
+                put((byte) '-');
+                cents = -cents;
+            }
+            putLong(cents / 100);
+            put((byte) '.');
+            put((byte) ('0' + (cents % 100) / 10));
+            put((byte) ('0' + cents % 10));
+        }
+
+        public void putUtf8(String s) throws IOException {
+            int length = s.length();
+            if (length * 3 <= buffer.capacity()) {
+                // room for the worst case, so the ASCII loop needs no per-byte checks
+                ensure(length * 3);
+                int i = 0;
+                while (i < length) {
+                    char c = s.charAt(i);
+                    if (c >= 0x80) {
+                        break;
+                    }
+                    buffer.put((byte) c);
+                    i++;
+                }
+                if (i == length) {
+                    return;
+                }
+                s = s.substring(i);
+            }
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    put((byte) c);
+                } else if (c < 0x800) {
+                    ensure(2);
+                    buffer.put((byte) (0xC0 | (c >> 6)));
+                    buffer.put((byte) (0x80 | (c & 0x3F)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    ensure(4);
+                    buffer.put((byte) (0xF0 | (cp >> 18)));
+                    buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                    buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (cp & 0x3F)));
+                } else if (Character.isSurrogate(c)) {
+                    put((byte) '?'); // a lone surrogate isn't a character
+                } else {
+                    ensure(3);
+                    buffer.put((byte) (0xE0 | (c >> 12)));
+                    buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (c & 0x3F)));
+                }
+            }
+        }
+
+        public void putJsonString(String s) throws IOException {
+            put((byte) '"');
+            int start = 0;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\' || c < 0x20) {
+                    putUtf8(s.substring(start, i));
+                    put((byte) '\\');
+                    if (c == '"' || c == '\\') {
+                        put((byte) c);
+                    } else {
+                        putUtf8(String.format("u%04x", (int) c));
+                    }
+                    start = i + 1;
+                }
+            }
+            putUtf8(start == 0 ? s : s.substring(start));
+            put((byte) '"');
+        }
+
+        public static int utf8Length(String s) {
+            int length = 0;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    length += 1;
+                } else if (c < 0x800) {
+                    length += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else if (Character.isSurrogate(c)) {
+                    length += 1; // written as '?'
+                } else {
+                    length += 3;
+                }
+            }
+            return length;
+        }
+
+        // CRC32 of everything put so far
+        public int checksum() throws IOException {
+            flush();
+            return (int) crc.getValue();
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten + buffer.position();
+        }
+
+        public void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                bytesWritten += channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+    }
+}
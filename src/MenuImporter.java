@@ -0,0 +1,381 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+// Bulk import of "name,price,type,CATEGORY" rows (the menu-import.txt format).
+// The file is memory-mapped, split into line-aligned chunks and parsed in parallel on the
+// common fork-join pool. Prices are parsed straight from the mapped bytes, and rows that
+// can't be parsed end up in the reject report instead of aborting the import.
+class MenuImporter {
+    private static final long MIN_CHUNK_SIZE = 1 << 20;        // don't bother splitting below 1 MB
+    private static final long MAX_CHUNK_SIZE = 1 << 30;        // a single mapping is limited to 2 GB
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int MAX_PRICE_DIGITS = 16;
+
+    static class Reject {
+        private final long lineNumber;
+        private final String reason;
+        private final String line;
+
+        Reject(long lineNumber, String reason, String line) {
+            this.lineNumber = lineNumber;
+            this.reason = reason;
+            this.line = line;
+        }
+
+        public long getLineNumber() {
+            return lineNumber;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        public String getLine() {
+            return line;
+        }
+
+        @Override
+        public String toString() {
+            return "line " + lineNumber + ": " + reason + " [" + line + "]";
+        }
+    }
+
+    static class Result {
+        private final List<MenuDisplayable> items;
+        private final List<Reject> rejects;
+        private final long bytes;
+        private final long nanos;
+        private int added; // set when the items are merged into a menu
+        private int updated;
+
+        Result(List<MenuDisplayable> items, List<Reject> rejects, long bytes, long nanos) {
+            this.items = items;
+            this.rejects = rejects;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        public List<MenuDisplayable> getItems() {
+            return items;
+        }
+
+        public List<Reject> getRejects() {
+            return rejects;
+        }
+
+        // items that weren't on the menu yet
+        public int getAdded() {
+            return added;
+        }
+
+        // items already on the menu (by name and category) whose price or details changed
+        public int getUpdated() {
+            return updated;
+        }
+
+        // items already on the menu exactly as imported
+        public int getUnchanged() {
+            return items.size() - added - updated;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public double getThroughputMBps() {
+            return nanos == 0 ? 0 : (bytes / (1024.0 * 1024.0)) / (nanos / 1e9);
+        }
+    }
+
+    // Parses the file and merges every accepted row into the menu in one batch. A row for an item
+    // the menu already has (same name, ignoring case, and category) updates that item instead of
+    // adding a duplicate, so importing an exported menu again only changes what differs.
+    public static Result importFile(Path path, Admin admin) throws IOException {
+        long start = Metrics.MENU_IMPORT.start();
+        Result result = parse(path);
+        admin.applyBatch(batch -> {
+            for (MenuDisplayable item : result.getItems()) {
+                MenuChange.Kind kind = batch.mergeItem((MenuItem) item);
+                if (kind == MenuChange.Kind.ADDED) {
+                    result.added++;
+                } else if (kind == MenuChange.Kind.UPDATED) {
+                    result.updated++;
+                }
+            }
+        });
+        Metrics.MENU_IMPORT.stop(start);
+        Metrics.MENU_IMPORT_ITEMS.add(result.getItems().size());
+        return result;
+    }
+
+    public static Result parse(Path path) throws IOException {
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long[] bounds = chunkBounds(channel, size);
+
+            List<ChunkTask> tasks = new ArrayList<>();
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                tasks.add(new ChunkTask(channel, bounds[i], bounds[i + 1]));
+            }
+            try {
+                ForkJoinTask.invokeAll(tasks);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            // stitch the chunks back together in file order
+            List<MenuDisplayable> items = new ArrayList<>();
+            List<Reject> rejects = new ArrayList<>();
+            long linesBefore = 0;
+            for (ChunkTask task : tasks) {
+                Chunk chunk = task.join();
+                items.addAll(chunk.items);
+                for (int i = 0; i < chunk.rejectLines.size(); i++) {
+                    rejects.add(new Reject(linesBefore + chunk.rejectLines.get(i), chunk.rejectReasons.get(i), chunk.rejectText.get(i)));
+                }
+                linesBefore += chunk.lineCount;
+            }
+            return new Result(items, rejects, size, System.nanoTime() - start);
+        }
+    }
+
+    // Writes every rejected row to a report file next to the import file.
+    public static Path writeRejectReport(Path importFile, List<Reject> rejects) throws IOException {
+        Path report = importFile.resolveSibling(importFile.getFileName() + ".rejects.txt");
+        try (BufferedWriter writer = Files.newBufferedWriter(report, StandardCharsets.UTF_8)) {
+            for (Reject reject : rejects) {
+                writer.write(reject.toString());
+                writer.newLine();
+            }
+        }
+        return report;
+    }
+
+    private static long[] chunkBounds(FileChannel channel, long size) throws IOException {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        long chunkSize = Math.max(MIN_CHUNK_SIZE, size / (parallelism * 4L));
+        chunkSize = Math.min(chunkSize, MAX_CHUNK_SIZE);
+
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        long position = chunkSize;
+        while (position < size) {
+            // move the boundary forward to just past the next newline
+            long boundary = -1;
+            long scan = position;
+            while (boundary < 0 && scan < size) {
+                probe.clear();
+                int read = channel.read(probe, scan);
+                if (read <= 0) {
+                    break;
+                }
+                for (int i = 0; i < read; i++) {
+                    if (probe.get(i) == '\n') {
+                        boundary = scan + i + 1;
+                        break;
+                    }
+                }
+                scan += read;
+            }
+            if (boundary < 0 || boundary >= size) {
+                break;
+            }
+            bounds.add(boundary);
+            position = boundary + chunkSize;
+        }
+        bounds.add(size);
+
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    private static class Chunk {
+        final List<MenuDisplayable> items = new ArrayList<>();
+        final List<Long> rejectLines = new ArrayList<>();
+        final List<String> rejectReasons = new ArrayList<>();
+        final List<String> rejectText = new ArrayList<>();
+        long lineCount;
+
+        void reject(long localLine, String reason, String text) {
+            rejectLines.add(localLine);
+            rejectReasons.add(reason);
+            rejectText.add(text);
+        }
+    }
+
+    @SuppressWarnings("serial") // never serialized; RecursiveTask is only Serializable by inheritance
+    private static class ChunkTask extends RecursiveTask<Chunk> {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+
+        ChunkTask(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected Chunk compute() {
+            Chunk chunk = new Chunk();
+            if (end <= start) {
+                return chunk;
+            }
+            MappedByteBuffer buffer;
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            byte[] scratch = new byte[256];
+            int[] commas = new int[3];
+            int limit = buffer.limit();
+            int lineStart = 0;
+            while (lineStart < limit) {
+                int lineEnd = lineStart;
+                while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                int next = lineEnd + 1;
+                if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') {
+                    lineEnd--;
+                }
+                chunk.lineCount++;
+                if (lineEnd > lineStart) {
+                    parseLine(buffer, lineStart, lineEnd, chunk, commas, scratch);
+                }
+                lineStart = next;
+            }
+            return chunk;
+        }
+
+        private void parseLine(MappedByteBuffer buffer, int from, int to, Chunk chunk, int[] commas, byte[] scratch) {
+            int found = 0;
+            for (int i = from; i < to; i++) {
+                if (buffer.get(i) == ',') {
+                    if (found == commas.length) {
+                        chunk.reject(chunk.lineCount, "expected 4 fields", text(buffer, from, to));
+                        return;
+                    }
+                    commas[found++] = i;
+                }
+            }
+            if (found != commas.length) {
+                chunk.reject(chunk.lineCount, "expected 4 fields", text(buffer, from, to));
+                return;
+            }
+            if (commas[0] == from) {
+                chunk.reject(chunk.lineCount, "empty name", text(buffer, from, to));
+                return;
+            }
+            long price = parsePrice(buffer, commas[0] + 1, commas[1]);
+            if (price < 0) {
+                chunk.reject(chunk.lineCount, "invalid price", text(buffer, from, to));
+                return;
+            }
+            Category category;
+            if (equalsIgnoreCaseAscii(buffer, commas[2] + 1, to, "FOOD")) {
+                category = Category.FOOD;
+            } else if (equalsIgnoreCaseAscii(buffer, commas[2] + 1, to, "DRINK")) {
+                category = Category.DRINK;
+            } else {
+                chunk.reject(chunk.lineCount, "unknown category", text(buffer, from, to));
+                return;
+            }
+            String name = decode(buffer, from, commas[0], scratch);
+            String type = decode(buffer, commas[1] + 1, commas[2], scratch);
+            if (category == Category.FOOD) {
+                chunk.items.add(new Food(name, price, type));
+            } else {
+                chunk.items.add(new Drink(name, price, type));
+            }
+        }
+
+        private String text(MappedByteBuffer buffer, int from, int to) {
+            int length = Math.min(to - from, MAX_LINE_LENGTH);
+            byte[] bytes = new byte[length];
+            buffer.get(from, bytes, 0, length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    // Parses a plain decimal such as "25000" or "25000.50" into cents without creating a String.
+    // Digits past the second decimal place are rounded half up. Returns -1 if the field is not a
+    // valid non-negative price.
+    static long parsePrice(ByteBuffer buffer, int from, int to) {
+        long cents = 0;
+        int digits = 0;
+        int decimals = -1;
+        boolean roundUp = false;
+        for (int i = from; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                digits++;
+                if (decimals < 2) {
+                    if (digits > MAX_PRICE_DIGITS) {
+                        return -1;
+                    }
+                    cents = cents * 10 + (b - '0');
+                } else if (decimals == 2) {
+                    roundUp = b >= '5';
+                }
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            } else if (b == '.' && decimals < 0) {
+                decimals = 0;
+            } else {
+                return -1;
+            }
+        }
+        if (digits == 0) {
+            return -1;
+        }
+        if (decimals <= 0) {
+            cents *= 100;
+        } else if (decimals == 1) {
+            cents *= 10;
+        }
+        return roundUp ? cents + 1 : cents;
+    }
+
+    private static boolean equalsIgnoreCaseAscii(ByteBuffer buffer, int from, int to, String expected) {
+        if (to - from != expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            int b = buffer.get(from + i);
+            if (b >= 'a' && b <= 'z') {
+                b -= 'a' - 'A';
+            }
+            if (b != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String decode(ByteBuffer buffer, int from, int to, byte[] scratch) {
+        int length = to - from;
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        buffer.get(from, bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+}
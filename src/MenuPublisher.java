@@ -0,0 +1,186 @@
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Sends this menu's changes to the other outlets (see MenuReplica) over TCP. Every menu edit
+// becomes one MenuDelta, encoded once and kept in a bounded history, and each connected outlet is
+// written the deltas it hasn't had yet, so a price change costs an outlet a few dozen bytes however
+// big the catalog is. An outlet that is new, last synced with a different publisher (the epoch
+// changes on every start), or is further behind than the history goes back gets a FULL delta of
+// the current menu instead.
+//
+// Protocol: the outlet connects and sends the epoch (long) and sequence (long) of the last delta it
+// applied, or 0 and -1 for none. After that only the publisher writes: frames of a length (int)
+// followed by an encoded MenuDelta.
+class MenuPublisher implements MenuChangeListener, Closeable {
+    static final int DEFAULT_HISTORY = 4096;
+
+    private final Menu menu;
+    private final long epoch = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    private final int historySize;
+    // encoded deltas numbered sequence - history.size() + 1 up to sequence
+    private final ArrayDeque<byte[]> history = new ArrayDeque<>();
+    private long sequence; // of the newest delta; guarded by this
+    private MenuVersion version; // the menu as of sequence; guarded by this
+    private volatile boolean closed;
+
+    private ServerSocket server;
+    private final Set<Socket> outlets = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger outletCount = new AtomicInteger();
+    private final LongAdder bytesSent = new LongAdder();
+
+    public MenuPublisher(Menu menu) {
+        this(menu, DEFAULT_HISTORY);
+    }
+
+    public MenuPublisher(Menu menu, int historySize) {
+        this.menu = menu;
+        this.historySize = historySize;
+        synchronized (this) {
+            // an edit racing with this waits in menuChanged() until the starting version is set
+            version = menu.addChangeListener(this);
+        }
+    }
+
+    @Override
+    public synchronized void menuChanged(MenuVersion version, List<MenuChange> changes) {
+        this.version = version;
+        if (changes.isEmpty()) {
+            return;
+        }
+        sequence++;
+        history.addLast(MenuDelta.of(epoch, sequence, changes).encode());
+        if (history.size() > historySize) {
+            history.removeFirst();
+        }
+        notifyAll();
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    public int getOutletCount() {
+        return outletCount.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    // Starts accepting outlets on the port (0 for any free port). Returns the port.
+    public int listen(int port) throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("Already listening on port " + server.getLocalPort());
+        }
+        server = new ServerSocket(port);
+        Thread acceptor = new Thread(this::acceptLoop, "menu-publisher");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = server.accept();
+                // a thread per outlet: it spends its life waiting for the next edit
+                Thread connection = new Thread(() -> serve(socket), "menu-outlet-" + socket.getPort());
+                connection.setDaemon(true);
+                connection.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    System.out.println("Menu publisher stopped accepting outlets: " + e.getMessage());
+                }
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        outlets.add(socket);
+        outletCount.incrementAndGet();
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            long outletEpoch = in.readLong();
+            long outletSequence = in.readLong();
+            long applied = outletEpoch == epoch ? outletSequence : -1;
+            while (!closed) {
+                List<byte[]> frames = new ArrayList<>();
+                MenuVersion fullVersion = null;
+                long upTo;
+                synchronized (this) {
+                    while (!closed && applied == sequence) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    upTo = sequence;
+                    long oldest = sequence - history.size() + 1;
+                    if (applied >= 0 && applied + 1 >= oldest && applied < sequence) {
+                        Iterator<byte[]> newest = history.descendingIterator();
+                        for (long s = sequence; s > applied; s--) {
+                            frames.add(newest.next());
+                        }
+                        Collections.reverse(frames);
+                    } else {
+                        fullVersion = version;
+                    }
+                }
+                if (fullVersion != null) {
+                    // encoded outside the lock so a big catalog doesn't hold up menu edits
+                    frames.add(MenuDelta.full(epoch, upTo, fullVersion).encode());
+                }
+                for (byte[] frame : frames) {
+                    out.writeInt(frame.length);
+                    out.write(frame);
+                    bytesSent.add(4 + frame.length);
+                }
+                out.flush();
+                applied = upTo;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (SocketException | EOFException e) {
+            // the outlet went away; it asks for what it missed when it reconnects
+        } catch (IOException e) {
+            System.out.println("Lost menu outlet " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+        } finally {
+            outlets.remove(socket);
+            outletCount.decrementAndGet();
+        }
+    }
+
+    // Stops following the menu and disconnects every outlet. The menu keeps working.
+    @Override
+    public void close() {
+        closed = true;
+        menu.removeChangeListener(this);
+        synchronized (this) {
+            notifyAll();
+        }
+        try {
+            if (server != null) {
+                server.close();
+            }
+            for (Socket socket : outlets) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Could not close the menu publisher: " + e.getMessage());
+        }
+    }
+}
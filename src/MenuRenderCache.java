@@ -0,0 +1,147 @@
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Pre-rendered text of one MenuVersion, kept as encoded bytes so a repeat display is a single
+// write of an existing array. The menu is rendered in sections (the discounts, then one per
+// category); a new version starts with the sections of the previous one that its edits didn't
+// touch, so after an edit only the changed sections are formatted again.
+class MenuRenderCache {
+    private static final String NEWLINE = System.lineSeparator();
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final byte[] HEADER = encode(NEWLINE
+            + "----------------------------------------" + NEWLINE
+            + "               OUR MENU                 " + NEWLINE
+            + "----------------------------------------" + NEWLINE);
+    private static final byte[] FOOTER = encode("----------------------------------------" + NEWLINE + NEWLINE);
+
+    private static final int NUMBER_WIDTH = 8;
+    private static final int DISCOUNTS = 0; // section index, categories use 1 + ordinal
+
+    private final AtomicReferenceArray<byte[]> sections = new AtomicReferenceArray<>(1 + Category.values().length);
+    private volatile byte[] rendered;
+
+    MenuRenderCache() {
+    }
+
+    // Starts from the previous version's sections, minus the ones that were edited.
+    MenuRenderCache(MenuRenderCache previous, boolean discountsChanged, Set<Category> changedCategories) {
+        if (!discountsChanged) {
+            sections.set(DISCOUNTS, previous.sections.get(DISCOUNTS));
+        }
+        for (Category category : Category.values()) {
+            if (!changedCategories.contains(category)) {
+                sections.set(1 + category.ordinal(), previous.sections.get(1 + category.ordinal()));
+            }
+        }
+    }
+
+    public void display(MenuVersion version, PrintStream out) {
+        byte[] bytes = render(version);
+        out.write(bytes, 0, bytes.length);
+        out.flush();
+    }
+
+    // whether render() has the bytes ready, without formatting anything
+    public boolean isRendered() {
+        return rendered != null;
+    }
+
+    public byte[] render(MenuVersion version) {
+        byte[] bytes = rendered;
+        if (bytes == null) {
+            bytes = assemble(version);
+            rendered = bytes;
+        }
+        return bytes;
+    }
+
+    private byte[] assemble(MenuVersion version) {
+        List<byte[]> parts = new ArrayList<>();
+        parts.add(HEADER);
+        parts.add(section(DISCOUNTS, version));
+        // categories are listed in the order they first appear on the menu
+        for (Category category : categoryOrder(version)) {
+            parts.add(section(1 + category.ordinal(), version));
+        }
+        parts.add(FOOTER);
+
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] bytes = new byte[length];
+        int position = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, bytes, position, part.length);
+            position += part.length;
+        }
+        return bytes;
+    }
+
+    private byte[] section(int index, MenuVersion version) {
+        byte[] bytes = sections.get(index);
+        if (bytes == null) {
+            StringBuilder text = new StringBuilder();
+            if (index == DISCOUNTS) {
+                // discounts are promotion rules now; only a menu loaded from elsewhere may have any
+                for (MenuDisplayable item : version.getMenuItems()) {
+                    if (item instanceof Discount) {
+                        if (text.length() == 0) {
+                            text.append(NEWLINE).append("DISCOUNTS:").append(NEWLINE).append(NEWLINE);
+                        }
+                        line(text, (MenuItem) item);
+                    }
+                }
+            } else {
+                Category category = Category.values()[index - 1];
+                text.append(NEWLINE).append(category).append(':').append(NEWLINE).append(NEWLINE);
+                for (MenuItem item : version.getItemsByCategory(category)) {
+                    if (!(item instanceof Discount) && item instanceof MenuDisplayable) {
+                        line(text, item);
+                    }
+                }
+            }
+            bytes = encode(text.toString());
+            sections.set(index, bytes);
+        }
+        return bytes;
+    }
+
+    // the item's number (what admin edits ask for), then its line
+    private static void line(StringBuilder text, MenuItem item) {
+        String number = Menu.keyText(item.getKey());
+        text.append(number);
+        for (int pad = number.length(); pad < NUMBER_WIDTH; pad++) {
+            text.append(' ');
+        }
+        text.append(((MenuDisplayable) item).toMenuLine()).append(NEWLINE);
+    }
+
+    private static List<Category> categoryOrder(MenuVersion version) {
+        Set<Category> remaining = EnumSet.noneOf(Category.class);
+        for (Category category : Category.values()) {
+            for (MenuItem item : version.getItemsByCategory(category)) {
+                if (!(item instanceof Discount)) {
+                    remaining.add(category);
+                    break;
+                }
+            }
+        }
+        List<Category> order = new ArrayList<>(remaining.size());
+        for (MenuDisplayable item : version.getMenuItems()) {
+            if (remaining.isEmpty()) {
+                break;
+            }
+            if (item instanceof MenuItem && !(item instanceof Discount) && remaining.remove(((MenuItem) item).getCategory())) {
+                order.add(((MenuItem) item).getCategory());
+            }
+        }
+        return order;
+    }
+
+    private static byte[] encode(String text) {
+        return text.getBytes(CHARSET);
+    }
+}
@@ -0,0 +1,132 @@
+import java.io.*;
+import java.net.Socket;
+
+// Keeps an outlet's menu in step with a MenuPublisher. A background thread holds the connection and
+// applies every delta it is sent as one menu edit, so orders taken here see a publisher edit all at
+// once or not at all. If the connection drops it reconnects and asks for what it missed.
+//
+// Applying is idempotent: a delta at or below the last applied sequence is skipped, and a FULL delta
+// replaces the menu's items. A gap in the sequence means changes were lost, so the replica
+// reconnects and asks for a full copy. Items keep the publisher's ids, so menu edits belong on the
+// publisher: the outlet's Admin is made read-only, because an item added locally would be
+// overwritten by the publisher's next new item.
+class MenuReplica implements Closeable {
+    static final long RETRY_MILLIS = 1000;
+    // A FULL delta of a million items is about 60 MB; anything much bigger is a corrupt length,
+    // and allocating it would take the outlet down.
+    static final int MAX_FRAME = 256 << 20;
+
+    private final Menu menu;
+    private long epoch; // of the publisher the applied deltas came from, 0 for none; guarded by this
+    private long appliedSequence = -1; // guarded by this
+    private long bytesReceived; // guarded by this
+    private volatile boolean closed;
+    private volatile Socket socket;
+    private Thread follower;
+
+    public MenuReplica(Menu menu) {
+        this.menu = menu;
+    }
+
+    public Menu getMenu() {
+        return menu;
+    }
+
+    public synchronized long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    // Applies the delta to the menu. Returns false if it was already applied; throws
+    // IllegalStateException if deltas before it are missing.
+    public synchronized boolean apply(MenuDelta delta) {
+        if (delta.getEpoch() == epoch && delta.getSequence() <= appliedSequence) {
+            return false;
+        }
+        if (!delta.isFull() && (delta.getEpoch() != epoch || delta.getSequence() != appliedSequence + 1)) {
+            throw new IllegalStateException("Menu delta " + delta.getSequence() + " doesn't follow "
+                    + (delta.getEpoch() == epoch ? "delta " + appliedSequence : "the deltas applied so far"));
+        }
+        menu.edit(delta::applyTo);
+        epoch = delta.getEpoch();
+        appliedSequence = delta.getSequence();
+        return true;
+    }
+
+    // Starts following the publisher on a background thread.
+    public void follow(String host, int port) {
+        if (follower != null) {
+            throw new IllegalStateException("Already following a publisher");
+        }
+        follower = new Thread(() -> followLoop(host, port), "menu-replica");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    private void followLoop(String host, int port) {
+        boolean resync = false;
+        boolean reported = false;
+        while (!closed) {
+            try (Socket connection = new Socket(host, port)) {
+                socket = connection;
+                connection.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+                DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+                synchronized (this) {
+                    out.writeLong(resync ? 0 : epoch);
+                    out.writeLong(resync ? -1 : appliedSequence);
+                }
+                out.flush();
+                resync = false;
+                reported = false;
+                while (!closed) {
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_FRAME) {
+                        throw new IOException("Bad menu delta frame length " + length);
+                    }
+                    byte[] frame = new byte[length];
+                    in.readFully(frame);
+                    synchronized (this) {
+                        bytesReceived += 4 + length; // before applying, so it covers whatever has been applied
+                    }
+                    apply(MenuDelta.decode(frame));
+                }
+            } catch (IllegalStateException e) {
+                resync = true; // reconnect straight away and ask for everything
+            } catch (IOException e) {
+                if (!closed && !reported) {
+                    System.out.println("Lost the menu publisher at " + host + ":" + port + ", retrying.");
+                    reported = true;
+                }
+                sleep();
+            }
+        }
+    }
+
+    private void sleep() {
+        try {
+            Thread.sleep(RETRY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Socket connection = socket;
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+        if (follower != null) {
+            follower.interrupt();
+        }
+    }
+}
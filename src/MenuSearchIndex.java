@@ -0,0 +1,1236 @@
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+// Search over the menu's item names for customers who don't type a name exactly.
+//
+// Names are compared as keys: lower case with accents stripped, so "cafe" also finds an accented "cafe". Prefix
+// completion walks a sorted list of (key, id) entries kept in blocks of BLOCK_SIZE; a block keeps
+// its keys' characters back to back in one array, so scanning it doesn't chase a pointer per key.
+// Each block remembers the highest popularity in it, so ranking the matches of a short prefix can
+// skip the blocks that can't beat what it already has; a prefix whose ranking took a long scan is
+// cached for a second. Typo matching runs a Levenshtein automaton over the same sorted keys,
+// skipping every run of keys that share a prefix already too far from the query. Every entry
+// keeps how many characters its key shares with the key before it, which is all the walk needs to
+// know where to pick up after the previous key and where a run of keys with a given prefix ends.
+// The automaton is simulated a whole row at a time on the bits of a long (one bit per character of
+// the query) for queries shorter than 64 characters. Results are ranked by popularity (units sold
+// since the index was created).
+//
+// The index follows the menu through its change listener, so admin edits update it entry by entry.
+// Searches run concurrently under a read lock; edits take the write lock briefly. Entries are kept
+// by item id, with the generation of the item they index: searches answer with item keys, so a
+// caller whose menu version still has an older item under that id doesn't get it, and a sale of
+// a removed item isn't credited to the item that reused its id.
+class MenuSearchIndex implements MenuChangeListener, OrderService.CheckoutListener {
+    private static final int BLOCK_SIZE = 256;
+    private static final int HEAD_CHARS = 24;
+    // names are indexed by their first MAX_KEY_CHARS characters, so an lcp fits Block.entries' 8 bits
+    static final int MAX_KEY_CHARS = 0xFF;
+    private static final int END_SHIFT = 42;
+    private static final int MAX_FUZZY_MATCHES = 10000;
+    private static final int CACHE_AFTER_SCANNING = 1024; // entries
+    private static final long CACHE_NANOS = 1_000_000_000L;
+    private static final int MAX_CACHED = 1024;
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+    // A sorted run of entries, front coded: key 0 is stored whole and every later key only from
+    // where it leaves the key before it, so keys sharing a long prefix (a dish and its numbered
+    // variants) take a few characters each and a walk through them reads few cache lines. Key i
+    // is the first skip(i) characters of key i - 1 followed by characters start(i) up to end(i) of
+    // chars, a byte each while every key is Latin-1 and two (big-endian) once one isn't.
+    // entries[i] packs lcp(i), the length of the prefix key i shares with the key before it (for
+    // i == 0 the previous block's last key, none for the first key of all), branch(i), key i's
+    // character after that prefix, sibling(i), the first entry after it with an lcp no longer than
+    // its own (the entries in between all start with key i's first lcp(i) + 1 characters, like a
+    // trie's subtree), up(i), the first entry after it with a shorter lcp, where the run of its
+    // first lcp(i) ends, and end(i). All in one long, so the walk learns everything about a key
+    // but its characters from one cache line, shared with the entries around it that its skips go
+    // through.
+    private static class Block {
+        byte[] chars = new byte[BLOCK_SIZE * 4];
+        boolean wide;
+        final long[] entries = new long[BLOCK_SIZE];
+        final int[] ids = new int[BLOCK_SIZE];
+        // runEnds[length - 1] + 1 is the first entry after entry 0 whose key doesn't start with key
+        // 0's first length characters: where a run of keys that began in an earlier block ends
+        final byte[] runEnds = new byte[HEAD_CHARS];
+        int size;
+        volatile long maxPopularity;
+
+        int start(int i) {
+            return i == 0 ? 0 : end(i - 1);
+        }
+
+        // the stored character at the given index
+        char stored(int at) {
+            if (wide) {
+                return (char) ((chars[at << 1] & 0xFF) << 8 | chars[(at << 1) + 1] & 0xFF);
+            }
+            return (char) (chars[at] & 0xFF);
+        }
+
+        int end(int i) {
+            return (int) (entries[i] >>> END_SHIFT);
+        }
+
+        // how many of key i's first characters are key i - 1's, not stored again
+        int skip(int i) {
+            return i == 0 ? 0 : lcp(i);
+        }
+
+        int length(int i) {
+            return skip(i) + end(i) - start(i);
+        }
+
+        // character k of key i, from the key before it that stores it
+        char charAt(int i, int k) {
+            while (k < skip(i)) {
+                i--;
+            }
+            return stored(start(i) + k - skip(i));
+        }
+
+        // like compareTo between the first key and the given key
+        int compareFirst(String key) {
+            int length = end(0);
+            int common = Math.min(length, key.length());
+            for (int k = 0; k < common; k++) {
+                int difference = stored(k) - key.charAt(k);
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+            return length - key.length();
+        }
+
+        // entries are ordered by key, then id
+        int compareFirst(String key, int id) {
+            int byKey = compareFirst(key);
+            return byKey != 0 ? byKey : Integer.compare(ids[0], id);
+        }
+
+        // Position of the first entry not before (key, id). Walks the keys like a trie: a key that
+        // leaves the one before it later than the given key does sorts on the same side of it, so
+        // only the keys leaving at the same character are compared, and only from there on.
+        int lowerBound(String key, int id) {
+            return lowerBound(key, id, 0, 0);
+        }
+
+        // the same from entry from on, whose key starts with the given key's first common
+        // characters, at least skip(from) of them
+        int lowerBound(String key, int id, int from, int common) {
+            // common is then the characters the given key shares with key i - 1, which sorts before it
+            for (int i = from; i < size; ) {
+                int lcp = i == from ? common : lcp(i);
+                if (lcp > common) {
+                    i = up(i); // and the keys up to where the run of its prefix ends
+                    continue;
+                }
+                if (lcp < common) {
+                    return i; // leaves key i - 1 on a larger character where the given key doesn't
+                }
+                int start = start(i) + common - skip(i);
+                int length = Math.min(end(i) - start, key.length() - common);
+                int k = 0;
+                while (k < length && stored(start + k) == key.charAt(common + k)) {
+                    k++;
+                }
+                int difference = k < length ? stored(start + k) - key.charAt(common + k)
+                        : (end(i) - start) - (key.length() - common);
+                if (difference > 0 || difference == 0 && ids[i] >= id) {
+                    return i;
+                }
+                if (k == 0 && lcp(i) == common) {
+                    i = sibling(i); // past the keys starting with key i's smaller character
+                    continue;
+                }
+                common += k;
+                i++;
+            }
+            return size;
+        }
+
+        boolean startsWith(int i, String prefix) {
+            if (length(i) < prefix.length()) {
+                return false;
+            }
+            // from the back, each key for the characters it stores
+            for (int k = prefix.length(); k > 0; i--) {
+                int skip = skip(i);
+                int start = start(i);
+                while (k > skip) {
+                    k--;
+                    if (stored(start + k - skip) != prefix.charAt(k)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        String key(int i) {
+            char[] key = new char[length(i)];
+            for (int k = key.length; k > 0; i--) {
+                int skip = skip(i);
+                int start = start(i);
+                for (; k > skip; k--) {
+                    key[k - 1] = stored(start + k - 1 - skip);
+                }
+            }
+            return new String(key);
+        }
+
+        // every key, in order
+        List<String> keys() {
+            List<String> keys = new ArrayList<>(size + 1);
+            char[] key = new char[MAX_KEY_CHARS];
+            for (int i = 0; i < size; i++) {
+                for (int at = start(i), k = skip(i); at < end(i); at++, k++) {
+                    key[k] = stored(at);
+                }
+                keys.add(new String(key, 0, length(i)));
+            }
+            return keys;
+        }
+
+        // copies the first HEAD_CHARS characters of the first key to heads at the given offset, zeros
+        // past its end
+        void copyHead(char[] heads, int at) {
+            int length = Math.min(HEAD_CHARS, end(0));
+            for (int k = 0; k < length; k++) {
+                heads[at + k] = stored(k);
+            }
+            Arrays.fill(heads, at + length, at + HEAD_CHARS, (char) 0);
+        }
+
+        // whether the first key starts with the length characters of chars from start
+        boolean firstStartsWith(char[] prefix, int start, int length) {
+            if (end(0) < length) {
+                return false;
+            }
+            for (int k = 0; k < length; k++) {
+                if (stored(k) != prefix[start + k]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int lcp(int i) {
+            return (int) (entries[i] >>> 16) & 0xFF;
+        }
+
+        char branch(int i) {
+            return (char) entries[i];
+        }
+
+        int sibling(int i) {
+            return (int) (entries[i] >>> 24) & 0x1FF;
+        }
+
+        int up(int i) {
+            return (int) (entries[i] >>> 33) & 0x1FF;
+        }
+
+        // the first entry after entry 0 whose key doesn't start with key 0's first length characters
+        int runEnd(int length) {
+            if (length <= HEAD_CHARS) {
+                return (runEnds[length - 1] & 0xFF) + 1;
+            }
+            int i = 1;
+            while (i < size && lcp(i) >= length) {
+                i = up(i);
+            }
+            return i;
+        }
+
+        // the first key's lcp, which is with the block before; call linkSiblings after
+        void setFirstLcp(int lcp) {
+            lcp = Math.min(lcp, end(0));
+            entries[0] = entries[0] & -1L << END_SHIFT | (long) lcp << 16 | (lcp < end(0) ? stored(lcp) : 0);
+        }
+
+        // works out sibling(i) and up(i) from the back, jumping over the runs already linked, then
+        // the runs' ends from the front
+        void linkSiblings() {
+            for (int i = size - 1; i >= 0; i--) {
+                int lcp = lcp(i);
+                int sibling = i + 1;
+                while (sibling < size && lcp(sibling) > lcp) {
+                    sibling = up(sibling);
+                }
+                int up = sibling;
+                while (up < size && lcp(up) >= lcp) {
+                    up = up(up);
+                }
+                entries[i] = entries[i] & ~(0x3FFFFL << 24) | (long) sibling << 24 | (long) up << 33;
+            }
+            for (int length = HEAD_CHARS, j = 1; length > 0; length--) {
+                while (j < size && lcp(j) >= length) {
+                    j = up(j);
+                }
+                runEnds[length - 1] = (byte) (j - 1);
+            }
+        }
+
+        // length of the prefix the first key shares with the given key
+        int commonPrefixLength(String key) {
+            int length = Math.min(end(0), key.length());
+            for (int k = 0; k < length; k++) {
+                if (stored(k) != key.charAt(k)) {
+                    return k;
+                }
+            }
+            return length;
+        }
+
+        // Appends a key that shares lcp characters with the last one, or with the block before if
+        // it is the first; call linkSiblings after.
+        void add(String key, int lcp, int id) {
+            int skip = size == 0 ? 0 : lcp;
+            int at = used();
+            int length = key.length() - skip;
+            for (int k = skip; k < key.length() && !wide; k++) {
+                if (key.charAt(k) > 0xFF) {
+                    widen();
+                }
+            }
+            int bytes = (at + length) << (wide ? 1 : 0);
+            if (bytes > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(chars.length * 2, bytes));
+            }
+            for (int k = skip; k < key.length(); k++, at++) {
+                if (wide) {
+                    chars[at << 1] = (byte) (key.charAt(k) >>> 8);
+                    chars[(at << 1) + 1] = (byte) key.charAt(k);
+                } else {
+                    chars[at] = (byte) key.charAt(k);
+                }
+            }
+            entries[size] = (long) at << END_SHIFT | (long) lcp << 16 | (lcp < key.length() ? key.charAt(lcp) : 0);
+            ids[size] = id;
+            size++;
+        }
+
+        // switches chars to two bytes a character, from the back so it can be done in place
+        private void widen() {
+            int used = used();
+            byte[] wider = chars.length >= used * 2 ? chars : new byte[Math.max(chars.length, used) * 2];
+            for (int at = used - 1; at >= 0; at--) {
+                wider[(at << 1) + 1] = chars[at];
+                wider[at << 1] = 0; // Latin-1 is the first 256 characters
+            }
+            chars = wider;
+            wide = true;
+        }
+
+        // Stores the keys again, as an edit in the middle changes how the keys after it are coded.
+        // The first key keeps its lcp; the index works it out again if the first key changed.
+        private void store(List<String> keys, int[] ids) {
+            int firstLcp = size == 0 ? 0 : lcp(0);
+            size = 0;
+            wide = false; // until a key needs it again
+            for (int i = 0; i < keys.size(); i++) {
+                String key = keys.get(i);
+                int lcp = i == 0 ? Math.min(firstLcp, key.length())
+                        : MenuSearchIndex.commonPrefixLength(keys.get(i - 1), key);
+                add(key, lcp, ids[i]);
+            }
+            linkSiblings();
+        }
+
+        void insert(int position, String key, int id) {
+            List<String> keys = keys();
+            keys.add(position, key);
+            int[] ids = new int[size + 1];
+            System.arraycopy(this.ids, 0, ids, 0, position);
+            ids[position] = id;
+            System.arraycopy(this.ids, position, ids, position + 1, size - position);
+            store(keys, ids);
+        }
+
+        void remove(int position) {
+            List<String> keys = keys();
+            keys.remove(position);
+            int[] ids = new int[size - 1];
+            System.arraycopy(this.ids, 0, ids, 0, position);
+            System.arraycopy(this.ids, position + 1, ids, position, size - position - 1);
+            store(keys, ids);
+        }
+
+        // characters taken by the keys
+        int used() {
+            return size == 0 ? 0 : end(size - 1);
+        }
+
+        // moves the entries from position on into a new block
+        Block splitAt(int position) {
+            Block upper = new Block();
+            List<String> keys = keys();
+            upper.store(keys.subList(position, size), Arrays.copyOfRange(ids, position, size));
+            upper.setFirstLcp(lcp(position));
+            upper.linkSiblings();
+            upper.maxPopularity = maxPopularity; // an upper bound is all skipping needs
+            size = position;
+            linkSiblings();
+            return upper;
+        }
+    }
+
+    // a ranked completion kept for prefixes that are expensive to rank
+    private static class CachedCompletion {
+        final long[] keys;
+        final int limit;
+        final long createdAt;
+
+        CachedCompletion(long[] keys, int limit, long createdAt) {
+            this.keys = keys;
+            this.limit = limit;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ArrayList<Block> blocks = new ArrayList<>();
+    // the first HEAD_CHARS characters of each block's first key, so a search can skip loading blocks
+    private char[] heads = new char[16 * HEAD_CHARS];
+    // headLinks[b] packs headLcp(b), how many characters block b's head shares with the head
+    // before it (at most HEAD_CHARS, and none of the zeros after a short key), and headUp(b), the
+    // first block after it with a shorter headLcp: the blocks in between all start with block b's
+    // first headLcp(b) characters, so a run of blocks is skipped like a run of keys in a block
+    private int[] headLinks = new int[16];
+    private final ConcurrentHashMap<String, CachedCompletion> completions = new ConcurrentHashMap<>();
+    private Block[] blockById = new Block[16]; // null for ids that aren't indexed
+    private int[] generationById = new int[16]; // of the item indexed under each id
+    private AtomicLongArray popularity = new AtomicLongArray(16);
+    private int size;
+
+    // Indexes the menu as it is now and keeps following its edits.
+    public MenuSearchIndex(Menu menu) {
+        lock.writeLock().lock();
+        try {
+            rebuild(menu.addChangeListener(this));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void menuChanged(MenuVersion version, List<MenuChange> changes) {
+        lock.writeLock().lock();
+        try {
+            for (MenuChange change : changes) {
+                // the id may go to a new item later, which starts with no sales
+                int id = change.getItem().getId();
+                if (change.getKind() == MenuChange.Kind.REMOVED && id < popularity.length()) {
+                    popularity.set(id, 0);
+                }
+            }
+            if (changes.size() > Math.max(1024, size / 4)) {
+                rebuild(version); // a big import: sorting once beats inserting one at a time
+                return;
+            }
+            completions.clear();
+            for (MenuChange change : changes) {
+                MenuItem item = change.getItem();
+                if (change.getKind() != MenuChange.Kind.ADDED) {
+                    remove(item.getId());
+                }
+                if (change.getKind() != MenuChange.Kind.REMOVED) {
+                    insert(item.getId(), item.getGeneration(), normalize(item.getName()));
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void orderCompleted(long orderId, Order order, PriceBreakdown price) {
+        OrderLines lines = order.getLines();
+        for (int line = 0; line < lines.size(); line++) {
+            recordSale(lines.getItemKey(line), lines.getQuantity(line));
+        }
+    }
+
+    public void recordSale(long itemKey, long quantity) {
+        lock.readLock().lock();
+        try {
+            int itemId = Menu.keyId(itemKey);
+            if (itemId < 0 || itemId >= blockById.length || blockById[itemId] == null
+                    || generationById[itemId] != Menu.keyGeneration(itemKey)) {
+                return; // not indexed, or removed and its id reused since
+            }
+            long updated = popularity.addAndGet(itemId, quantity);
+            Block block = blockById[itemId];
+            if (updated > block.maxPopularity) {
+                block.maxPopularity = updated; // a racing sale may win with a lower value; ranking only
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Items whose name starts with the prefix, most popular first, then by name.
+    public List<MenuItem> complete(MenuVersion version, String prefix, int limit) {
+        return resolve(version, completeKeys(normalize(prefix), limit));
+    }
+
+    // Items whose name is within a typo or two of the query (one for 4 to 8 characters, two from
+    // 9), closest first, then most popular.
+    public List<MenuItem> suggest(MenuVersion version, String query, int limit) {
+        return resolve(version, fuzzyKeys(normalize(query), limit));
+    }
+
+    // What to offer for a name that didn't match: completions first, then close spellings.
+    public List<MenuItem> search(MenuVersion version, String query, int limit) {
+        String key = normalize(query);
+        List<MenuItem> found = resolve(version, completeKeys(key, limit));
+        if (found.size() < limit) {
+            for (MenuItem item : resolve(version, fuzzyKeys(key, limit))) {
+                if (found.size() < limit && !found.contains(item)) {
+                    found.add(item);
+                }
+            }
+        }
+        return found;
+    }
+
+    // the index's key for a name
+    static String normalize(String name) {
+        String key = name.trim().toLowerCase(Locale.ROOT);
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) >= 0x80) {
+                key = MARKS.matcher(Normalizer.normalize(key, Normalizer.Form.NFD)).replaceAll("");
+                break;
+            }
+        }
+        return key.length() > MAX_KEY_CHARS ? key.substring(0, MAX_KEY_CHARS) : key;
+    }
+
+    // the item keys are looked up in the caller's version, skipping items it doesn't have
+    private static List<MenuItem> resolve(MenuVersion version, long[] keys) {
+        List<MenuItem> items = new ArrayList<>(keys.length);
+        for (long key : keys) {
+            MenuItem item = version.getItemByKey(key);
+            if (item != null) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    long[] completeKeys(String prefix, int limit) {
+        if (prefix.isEmpty() || limit <= 0) {
+            return new long[0];
+        }
+        CachedCompletion cached = completions.get(prefix);
+        if (cached != null && cached.limit >= limit && System.nanoTime() - cached.createdAt < CACHE_NANOS) {
+            return Arrays.copyOf(cached.keys, Math.min(limit, cached.keys.length));
+        }
+        lock.readLock().lock();
+        try {
+            // best limit matches so far, most popular first; ties keep the earlier (smaller) key
+            int[] bestIds = new int[limit];
+            long[] bestPopularity = new long[limit];
+            int found = 0;
+            int scanned = 0;
+            AtomicLongArray popularity = this.popularity;
+
+            int[] start = seek(prefix);
+            int blockIndex = start[0];
+            int position = start[1];
+            for (; blockIndex < blocks.size(); blockIndex++, position = 0) {
+                Block block = blocks.get(blockIndex);
+                if (position >= block.size) {
+                    continue;
+                }
+                boolean wholeBlockMatches = position == 0 && block.startsWith(0, prefix)
+                        && block.runEnd(prefix.length()) == block.size;
+                if (wholeBlockMatches && found == limit && block.maxPopularity <= bestPopularity[limit - 1]) {
+                    continue; // nothing in here can rank higher
+                }
+                scanned += block.size - position;
+                for (int i = position; i < block.size; i++) {
+                    // past the first, a key starts with the prefix if it shares it with the key before
+                    if (i == position ? !block.startsWith(i, prefix) : block.lcp(i) < prefix.length()) {
+                        return completed(prefix, bestIds, found, limit, scanned);
+                    }
+                    long itemPopularity = popularity.get(block.ids[i]);
+                    if (found < limit || itemPopularity > bestPopularity[found - 1]) {
+                        int at = found < limit ? found++ : limit - 1;
+                        while (at > 0 && bestPopularity[at - 1] < itemPopularity) {
+                            bestIds[at] = bestIds[at - 1];
+                            bestPopularity[at] = bestPopularity[at - 1];
+                            at--;
+                        }
+                        bestIds[at] = block.ids[i];
+                        bestPopularity[at] = itemPopularity;
+                    }
+                }
+            }
+            return completed(prefix, bestIds, found, limit, scanned);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private long[] completed(String prefix, int[] bestIds, int found, int limit, int scanned) {
+        long[] keys = keys(bestIds, found);
+        if (scanned > CACHE_AFTER_SCANNING) {
+            if (completions.size() >= MAX_CACHED) {
+                completions.clear();
+            }
+            completions.put(prefix, new CachedCompletion(keys, limit, System.nanoTime()));
+        }
+        return keys.clone();
+    }
+
+    // the keys of the items indexed under the first count ids; called under the read lock
+    private long[] keys(int[] ids, int count) {
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = Menu.key(ids[i], generationById[ids[i]]);
+        }
+        return keys;
+    }
+
+    // Walks the sorted keys like a trie, keeping the automaton's state after each character of the
+    // current key and reusing the states of the prefix it shares with the previous key. As soon as
+    // no state is within maxEdits, no key with that prefix can match, so it skips past them. Once
+    // no edit is left, only a few keys with the prefix can match, so they are looked up and the
+    // others skipped too, rather than walking through them sibling by sibling. The characters the
+    // states were worked out from are kept too, as a block stores only the end of most keys.
+    long[] fuzzyKeys(String query, int limit) {
+        int maxEdits = query.length() >= 9 ? 2 : query.length() >= 4 ? 1 : 0;
+        if (maxEdits == 0 || limit <= 0) {
+            return new long[0];
+        }
+        Automaton automaton = query.length() < 64 ? new BitAutomaton(query, maxEdits) : new RowAutomaton(query, maxEdits);
+        lock.readLock().lock();
+        try {
+            int validRows = 0; // states 0..validRows belong to a prefix of the previous key
+            char[] path = new char[query.length() + maxEdits + 2]; // and so do its characters before validRows
+            List<int[]> matches = new ArrayList<>(); // {id, distance}
+            int[] cursor = {0, 0};
+            int blockIndex = -1;
+            Block block = null;
+            while (cursor[0] < blocks.size() && matches.size() < MAX_FUZZY_MATCHES) {
+                if (cursor[0] != blockIndex) {
+                    blockIndex = cursor[0];
+                    block = blocks.get(blockIndex);
+                }
+                int i = cursor[1];
+                if (i >= block.size) {
+                    cursor[0]++;
+                    cursor[1] = 0;
+                    continue;
+                }
+                int lcp = block.lcp(i); // with the previous key, whose states are still there
+                int depth = Math.min(validRows, lcp);
+                if (lcp < validRows) {
+                    // most keys die on the character where they leave the previous one; no need to load them
+                    path[lcp] = block.branch(i);
+                    if (!automaton.step(lcp, path[lcp])) {
+                        validRows = skipPrefix(cursor, block, lcp + 1, automaton, path);
+                        continue;
+                    }
+                    depth++;
+                }
+                int start = block.start(i);
+                int skip = block.skip(i); // at most depth, but for a block's first key after a skip
+                int length = skip + block.end(i) - start;
+                int nextLcp = i + 1 < block.size ? block.lcp(i + 1) : 0; // keys after it sharing a prefix
+                int prunedAt = -1;
+                for (; depth < length; depth++) {
+                    long rests = depth <= nextLcp && depth >= skip ? automaton.exactRests(depth) : 0;
+                    if (rests != 0 && !(blockIndex + 1 < blocks.size() && blockStartsWith(blockIndex + 1, path, 0, depth))) {
+                        addExact(blockIndex, i, depth, rests, path, query, maxEdits, matches);
+                        prunedAt = depth;
+                        break;
+                    }
+                    path[depth] = depth >= skip ? block.stored(start + depth - skip) : block.charAt(i, depth);
+                    if (!automaton.step(depth, path[depth])) {
+                        prunedAt = depth + 1;
+                        break;
+                    }
+                }
+                if (prunedAt >= 0) {
+                    validRows = skipPrefix(cursor, block, prunedAt, automaton, path);
+                    continue;
+                }
+                validRows = length;
+                int distance = automaton.distance(length);
+                if (distance <= maxEdits) {
+                    matches.add(new int[]{block.ids[i], distance});
+                }
+                cursor[1]++;
+            }
+            AtomicLongArray popularity = this.popularity;
+            // stable, so equally good matches stay in name order
+            matches.sort((a, b) -> a[1] != b[1] ? Integer.compare(a[1], b[1])
+                    : Long.compare(popularity.get(b[0]), popularity.get(a[0])));
+            int[] ids = new int[Math.min(limit, matches.size())];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = matches.get(i)[0];
+            }
+            return keys(ids, ids.length);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Adds the entries whose key is the first depth characters of path followed by the rest of the
+    // query after a bit of rests, starting from entry i of the block at blockIndex, the first key
+    // with those characters.
+    private void addExact(int blockIndex, int i, int depth, long rests, char[] path, String query, int distance,
+                          List<int[]> matches) {
+        String prefix = new String(path, 0, depth);
+        String[] keys = new String[Long.bitCount(rests)];
+        for (int n = 0; rests != 0; rests &= rests - 1) {
+            keys[n++] = prefix + query.substring(Long.numberOfTrailingZeros(rests));
+        }
+        Arrays.sort(keys); // so the matches stay in key order
+        for (String key : keys) {
+            int[] cursor = {blockIndex, blocks.get(blockIndex).lowerBound(key, Integer.MIN_VALUE, i, depth)};
+            if (cursor[1] == blocks.get(blockIndex).size) {
+                cursor = seek(key); // in a later block the run goes on into
+            }
+            while (cursor[0] < blocks.size()) {
+                Block block = blocks.get(cursor[0]);
+                if (cursor[1] == block.size) {
+                    cursor[0]++;
+                    cursor[1] = 0;
+                } else if (block.length(cursor[1]) == key.length() && block.startsWith(cursor[1], key)) {
+                    matches.add(new int[]{block.ids[cursor[1]++], distance});
+                } else {
+                    break;
+                }
+            }
+        }
+    }
+
+    // A Levenshtein automaton for one query, fed the characters of a key one at a time. State
+    // depth is the state after the first depth characters; state 0 is set up by the constructor.
+    private interface Automaton {
+        // works out state depth + 1 from state depth; false if no prefix of the query is within
+        // maxEdits of the key's first depth + 1 characters any more
+        boolean step(int depth, char c);
+
+        // edits between the query and a key of this length, or more than maxEdits
+        int distance(int depth);
+
+        // no character above this keeps state depth + 1 within maxEdits; keys are sorted, so
+        // once a key leaves a prefix on a character past it, so do all the keys after it
+        char maxChar(int depth);
+
+        // Once state depth has no edit left, bit j is set for each j such that a key going on
+        // from its first depth characters with query.substring(j) is within maxEdits, and no other
+        // key is; 0 while an edit is left (or the automaton can't tell).
+        long exactRests(int depth);
+    }
+
+    // Simulated on the bits of a long (Wu and Manber): bit j of states[depth * (maxEdits + 1) + d] is
+    // set when the query's first j characters are within d edits of the key's first depth characters.
+    private static final class BitAutomaton implements Automaton {
+        private final char[] query;
+        private final int maxEdits;
+        private final long all; // bits 0 to query.length()
+        private final long[] asciiMasks = new long[128]; // bit j + 1 set where query.charAt(j) is the char
+        private final long[] states;
+
+        BitAutomaton(String query, int maxEdits) {
+            this.query = query.toCharArray();
+            this.maxEdits = maxEdits;
+            this.all = -1L >>> (63 - query.length());
+            for (int j = 0; j < query.length(); j++) {
+                char c = query.charAt(j);
+                if (c < 128) {
+                    asciiMasks[c] |= 1L << (j + 1);
+                }
+            }
+            // every state dies once the key is longer than the query by more than maxEdits
+            states = new long[(query.length() + maxEdits + 2) * (maxEdits + 1)];
+            for (int d = 0; d <= maxEdits; d++) {
+                states[d] = all & ((1L << (d + 1)) - 1); // drop the first d characters of the query
+            }
+        }
+
+        private long mask(char c) {
+            if (c < 128) {
+                return asciiMasks[c];
+            }
+            long mask = 0;
+            for (int j = 0; j < query.length; j++) {
+                if (query[j] == c) {
+                    mask |= 1L << (j + 1);
+                }
+            }
+            return mask;
+        }
+
+        @Override
+        public boolean step(int depth, char c) {
+            long match = mask(c);
+            long[] states = this.states;
+            int from = depth * (maxEdits + 1);
+            int to = from + maxEdits + 1;
+            long previous = states[from]; // state d - 1 before the character
+            long next = (previous << 1) & match; // and after it
+            states[to] = next;
+            for (int d = 1; d <= maxEdits; d++) {
+                // a match, then a substitution, an extra character in the key, a character missing from it
+                long state = states[from + d];
+                next = (((state << 1) & match) | (previous << 1) | previous | (next << 1)) & all;
+                states[to + d] = next;
+                previous = state;
+            }
+            return next != 0;
+        }
+
+        @Override
+        public int distance(int depth) {
+            for (int d = 0; d <= maxEdits; d++) {
+                if ((states[depth * (maxEdits + 1) + d] >>> query.length & 1) != 0) {
+                    return d;
+                }
+            }
+            return maxEdits + 1;
+        }
+
+        @Override
+        public char maxChar(int depth) {
+            int from = depth * (maxEdits + 1);
+            for (int d = 0; d < maxEdits; d++) {
+                if (states[from + d] != 0) {
+                    return Character.MAX_VALUE; // an edit is left for any character
+                }
+            }
+            // only matches are left: the characters after the query's prefixes in the last state
+            char max = 0;
+            for (long bits = states[from + maxEdits] & (all >>> 1); bits != 0; bits &= bits - 1) {
+                max = (char) Math.max(max, query[Long.numberOfTrailingZeros(bits)]);
+            }
+            return max;
+        }
+
+        @Override
+        public long exactRests(int depth) {
+            int from = depth * (maxEdits + 1);
+            for (int d = 0; d < maxEdits; d++) {
+                if (states[from + d] != 0) {
+                    return 0;
+                }
+            }
+            return states[from + maxEdits];
+        }
+    }
+
+    // For queries too long for BitAutomaton: one edit-distance row per character of the key.
+    private static final class RowAutomaton implements Automaton {
+        private final String query;
+        private final int maxEdits;
+        private final int[][] rows;
+
+        RowAutomaton(String query, int maxEdits) {
+            this.query = query;
+            this.maxEdits = maxEdits;
+            rows = new int[query.length() + maxEdits + 2][query.length() + 1];
+            for (int j = 0; j <= query.length(); j++) {
+                rows[0][j] = j;
+            }
+        }
+
+        @Override
+        public boolean step(int depth, char c) {
+            if (depth + 1 == rows.length) {
+                return false; // longer than the query by more than maxEdits
+            }
+            int[] above = rows[depth];
+            int[] row = rows[depth + 1];
+            row[0] = depth + 1;
+            int rowMin = row[0];
+            for (int j = 1; j < row.length; j++) {
+                int cost = query.charAt(j - 1) == c ? 0 : 1;
+                row[j] = Math.min(Math.min(row[j - 1] + 1, above[j] + 1), above[j - 1] + cost);
+                rowMin = Math.min(rowMin, row[j]);
+            }
+            return rowMin <= maxEdits;
+        }
+
+        @Override
+        public int distance(int depth) {
+            return rows[depth][query.length()];
+        }
+
+        @Override
+        public char maxChar(int depth) {
+            int[] row = rows[depth];
+            char max = 0;
+            for (int j = 0; j < query.length(); j++) {
+                if (row[j] < maxEdits) {
+                    return Character.MAX_VALUE;
+                }
+                if (row[j] == maxEdits) {
+                    max = (char) Math.max(max, query.charAt(j));
+                }
+            }
+            return row[query.length()] < maxEdits ? Character.MAX_VALUE : max;
+        }
+
+        @Override
+        public long exactRests(int depth) {
+            return 0; // the rests don't fit a long's bits; the walk goes through the keys instead
+        }
+    }
+
+    // Moves the cursor past every key that starts with the first length characters of the key it
+    // is on, which are in path: the keys after it that share at least that many with the key
+    // before them. When the run goes on past the cursor's block, the blocks it covers are followed
+    // over the heads' links, or found by galloping over the blocks' first keys for a prefix longer
+    // than a head. Returns how many of the automaton's states still belong to a prefix of the key
+    // before the cursor: a sibling passed on the way shares one character less with the key it
+    // started on, and stepping it overwrote the state after that.
+    private int skipPrefix(int[] cursor, Block block, int length, Automaton automaton, char[] path) {
+        int validRows = length - 1; // the states up to the character the key died on
+        char maxChar = automaton.maxChar(length - 1);
+        if (path[length - 1] > maxChar) {
+            length--; // the keys after it leave the shorter prefix on later characters, which die too
+            maxChar = length > 0 ? automaton.maxChar(length - 1) : Character.MAX_VALUE;
+        }
+        boolean passedSiblings = false;
+        // keys are sorted, so if the next block starts with the prefix the run covers the rest of
+        // this one, and if it doesn't the run ends in this one
+        boolean goesOn = cursor[0] + 1 < blocks.size() && blockStartsWith(cursor[0] + 1, path, 0, length);
+        // a key that left the one before it within the prefix starts the run, and its sibling ends it
+        int i = goesOn ? block.size : block.lcp(cursor[1]) == length - 1 ? block.sibling(cursor[1]) : cursor[1] + 1;
+        while (i < block.size) {
+            int lcp = block.lcp(i);
+            if (lcp >= length) {
+                i = block.up(i); // still inside the run
+            } else if (lcp == length - 1 && block.branch(i) > maxChar) {
+                passedSiblings = true; // and so do the siblings after it
+                i = block.up(i);
+            } else if (lcp == length - 1 && !automaton.step(lcp, block.branch(i))) {
+                passedSiblings = true; // a sibling of its prefix that dies on its first character as well
+                i = block.sibling(i);
+            } else {
+                cursor[1] = i;
+                return passedSiblings ? length - 1 : validRows;
+            }
+        }
+        if (passedSiblings) {
+            cursor[0]++;
+            cursor[1] = 0;
+            return length - 1;
+        }
+        int low = cursor[0] + 1;
+        if (goesOn && length <= HEAD_CHARS) {
+            for (low++; low < blocks.size() && headLcp(low) >= length; ) {
+                low = headUp(low);
+            }
+        } else if (goesOn) {
+            low++;
+            int high = low;
+            for (int step = 1; high < blocks.size() && blockStartsWith(high, path, 0, length); step *= 2) {
+                low = high + 1;
+                high = Math.min(blocks.size(), high + step);
+            }
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (blockStartsWith(middle, path, 0, length)) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+        }
+        // low is the first block past the run; it ends in the block before unless that is this one
+        if (low - 1 > cursor[0]) {
+            Block last = blocks.get(low - 1);
+            int j = last.runEnd(length);
+            if (j < last.size) {
+                cursor[0] = low - 1;
+                cursor[1] = j;
+                return validRows;
+            }
+        }
+        cursor[0] = low;
+        cursor[1] = 0;
+        return validRows;
+    }
+
+    private int[] seek(String key) {
+        int blockIndex = Math.max(0, firstBlockNotBefore(key) - 1);
+        int position = blockIndex < blocks.size() ? blocks.get(blockIndex).lowerBound(key, Integer.MIN_VALUE) : 0;
+        return new int[]{blockIndex, position};
+    }
+
+    // index of the first block whose first key is >= key
+    private int firstBlockNotBefore(String key) {
+        int low = 0;
+        int high = blocks.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareHead(middle, key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // index of the first block whose first entry sorts after (key, id)
+    private int firstBlockAfter(String key, int id) {
+        int low = 0;
+        int high = blocks.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (blocks.get(middle).compareFirst(key, id) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // the rest runs under the write lock
+
+    private void rebuild(MenuVersion version) {
+        blocks.clear();
+        completions.clear();
+        List<MenuItem> items = new ArrayList<>();
+        int maxId = 0;
+        for (MenuDisplayable item : version.getMenuItems()) {
+            if (item instanceof MenuItem) {
+                items.add((MenuItem) item);
+                maxId = Math.max(maxId, ((MenuItem) item).getId());
+            }
+        }
+        String[] keys = new String[Math.max(16, maxId + 1)];
+        for (MenuItem item : items) {
+            keys[item.getId()] = normalize(item.getName());
+        }
+        items.sort((a, b) -> {
+            int byKey = keys[a.getId()].compareTo(keys[b.getId()]);
+            return byKey != 0 ? byKey : Integer.compare(a.getId(), b.getId());
+        });
+
+        AtomicLongArray newPopularity = new AtomicLongArray(keys.length);
+        for (int id = 0; id < Math.min(popularity.length(), newPopularity.length()); id++) {
+            newPopularity.set(id, popularity.get(id));
+        }
+        popularity = newPopularity;
+        blockById = new Block[keys.length];
+        generationById = new int[keys.length];
+
+        Block block = null;
+        String previous = "";
+        for (MenuItem item : items) {
+            if (block == null || block.size == BLOCK_SIZE) {
+                block = new Block();
+                blocks.add(block);
+            }
+            int id = item.getId();
+            block.add(keys[id], commonPrefixLength(previous, keys[id]), id);
+            previous = keys[id];
+            block.maxPopularity = Math.max(block.maxPopularity, newPopularity.get(id));
+            blockById[id] = block;
+            generationById[id] = item.getGeneration();
+        }
+        heads = new char[Math.max(16, blocks.size()) * HEAD_CHARS];
+        for (int b = 0; b < blocks.size(); b++) {
+            blocks.get(b).copyHead(heads, b * HEAD_CHARS);
+            blocks.get(b).linkSiblings();
+        }
+        linkHeads();
+        size = items.size();
+    }
+
+    // like compareFirst on the block at blockIndex, loading the block only when its head can't tell
+    private int compareHead(int blockIndex, String key) {
+        int at = blockIndex * HEAD_CHARS;
+        for (int k = 0; k < HEAD_CHARS && heads[at + k] != 0; k++) { // a zero may be padding
+            if (k == key.length()) {
+                return 1;
+            }
+            if (heads[at + k] != key.charAt(k)) {
+                return heads[at + k] - key.charAt(k);
+            }
+        }
+        return blocks.get(blockIndex).compareFirst(key);
+    }
+
+    // whether the first key of the block at blockIndex starts with the length characters of chars
+    // from start, loading the block only when its head can't tell
+    private boolean blockStartsWith(int blockIndex, char[] chars, int start, int length) {
+        int at = blockIndex * HEAD_CHARS;
+        boolean padded = false; // zeros also pad heads of short keys
+        for (int k = 0; k < Math.min(length, HEAD_CHARS); k++) {
+            if (heads[at + k] != chars[start + k]) {
+                return false;
+            }
+            padded |= chars[start + k] == 0;
+        }
+        return length <= HEAD_CHARS && !padded || blocks.get(blockIndex).firstStartsWith(chars, start, length);
+    }
+
+    private int headLcp(int blockIndex) {
+        return headLinks[blockIndex] & 0xFF;
+    }
+
+    private int headUp(int blockIndex) {
+        return headLinks[blockIndex] >>> 8;
+    }
+
+    // works out headLinks from heads, from the back like Block.linkSiblings; called whenever a
+    // head changes, which takes a new block or an edit at the very start of one
+    private void linkHeads() {
+        int count = blocks.size();
+        if (headLinks.length < count) {
+            headLinks = new int[heads.length / HEAD_CHARS];
+        }
+        for (int b = count - 1; b >= 0; b--) {
+            int at = b * HEAD_CHARS;
+            int lcp = 0;
+            while (b > 0 && lcp < HEAD_CHARS && heads[at + lcp] != 0
+                    && heads[at + lcp] == heads[at - HEAD_CHARS + lcp]) {
+                lcp++;
+            }
+            int up = b + 1;
+            while (up < count && headLcp(up) >= lcp) {
+                up = headUp(up);
+            }
+            headLinks[b] = up << 8 | lcp;
+        }
+    }
+
+    // makes room in heads for the block just added at blockIndex
+    private void insertHead(int blockIndex) {
+        if (blocks.size() * HEAD_CHARS > heads.length) {
+            heads = Arrays.copyOf(heads, heads.length * 2);
+        }
+        System.arraycopy(heads, blockIndex * HEAD_CHARS, heads, (blockIndex + 1) * HEAD_CHARS,
+                (blocks.size() - 1 - blockIndex) * HEAD_CHARS);
+        blocks.get(blockIndex).copyHead(heads, blockIndex * HEAD_CHARS);
+        linkHeads();
+    }
+
+    private static int commonPrefixLength(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        for (int k = 0; k < length; k++) {
+            if (a.charAt(k) != b.charAt(k)) {
+                return k;
+            }
+        }
+        return length;
+    }
+
+    // works out the lcp of the first key of the block at blockIndex, which is with the block before;
+    // a block keeps the lcps of the keys after its first itself
+    private void updateFirstLcp(int blockIndex) {
+        if (blockIndex >= blocks.size()) {
+            return;
+        }
+        Block block = blocks.get(blockIndex);
+        int lcp = 0;
+        if (blockIndex > 0) {
+            Block previous = blocks.get(blockIndex - 1);
+            lcp = block.commonPrefixLength(previous.key(previous.size - 1));
+        }
+        block.setFirstLcp(lcp);
+        block.linkSiblings();
+    }
+
+    private void insert(int id, int generation, String key) {
+        if (id >= blockById.length) {
+            int length = Math.max(blockById.length * 2, id + 1);
+            blockById = Arrays.copyOf(blockById, length);
+            generationById = Arrays.copyOf(generationById, length);
+            AtomicLongArray grown = new AtomicLongArray(length);
+            for (int i = 0; i < popularity.length(); i++) {
+                grown.set(i, popularity.get(i));
+            }
+            popularity = grown;
+        }
+        if (blocks.isEmpty()) {
+            blocks.add(new Block());
+            insertHead(0);
+        }
+        int blockIndex = Math.max(0, firstBlockAfter(key, id) - 1);
+        Block block = blocks.get(blockIndex);
+        if (block.size == BLOCK_SIZE) {
+            // split in half; the new entry goes into whichever half it sorts into
+            Block upper = block.splitAt(BLOCK_SIZE / 2);
+            for (int i = 0; i < upper.size; i++) {
+                blockById[upper.ids[i]] = upper;
+            }
+            blocks.add(blockIndex + 1, upper);
+            insertHead(blockIndex + 1);
+            if (upper.compareFirst(key, id) < 0) {
+                block = upper;
+                blockIndex++;
+            }
+        }
+        int position = block.lowerBound(key, id);
+        block.insert(position, key, id);
+        if (position == 0) {
+            block.copyHead(heads, blockIndex * HEAD_CHARS);
+            linkHeads();
+            updateFirstLcp(blockIndex);
+        }
+        if (position == block.size - 1) {
+            updateFirstLcp(blockIndex + 1);
+        }
+        block.maxPopularity = Math.max(block.maxPopularity, popularity.get(id));
+        blockById[id] = block;
+        generationById[id] = generation;
+        size++;
+    }
+
+    private void remove(int id) {
+        if (id < 0 || id >= blockById.length || blockById[id] == null) {
+            return;
+        }
+        Block block = blockById[id];
+        int position = 0;
+        while (block.ids[position] != id) {
+            position++;
+        }
+        int blockIndex = firstBlockAfter(block.key(position), id) - 1;
+        block.remove(position);
+        if (block.size == 0) {
+            blocks.remove(blockIndex);
+            System.arraycopy(heads, (blockIndex + 1) * HEAD_CHARS, heads, blockIndex * HEAD_CHARS,
+                    (blocks.size() - blockIndex) * HEAD_CHARS);
+            linkHeads();
+            updateFirstLcp(blockIndex);
+        } else {
+            if (position == 0) {
+                block.copyHead(heads, blockIndex * HEAD_CHARS);
+                linkHeads();
+                updateFirstLcp(blockIndex);
+            }
+            if (position == block.size) {
+                updateFirstLcp(blockIndex + 1); // the last key went
+            }
+        }
+        blockById[id] = null;
+        size--;
+    }
+}
@@ -0,0 +1,362 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+
+// Binary snapshot of a Menu, so a large catalog can be loaded at startup instead of being
+// re-imported from text every time.
+//
+// Layout (big-endian), with slots in id order so every item keeps its key:
+//   header   magic "MSNP", version (short), reserved (short), slot count (int), string count (int),
+//            item count (int), free slot count (int)
+//   strings  per string: byte length (int) + UTF-8 bytes; names and types are stored once each
+//   columns  per slot: kind byte[] (KIND_FREE for a free slot), category byte[], name index int[],
+//            type index int[] (-1 if none), generation int[] (for a free slot, the one its next
+//            item gets), price long[] and discount long[] in cents
+//   free     the free slots' ids, most recently freed first
+//   names    Menu.nameHash() of every item, sorted, then the item ids in the same order
+//   category item count per category, then the item ids of each category in id order
+//   trailer  CRC32 of everything before it (int)
+//
+// open() maps the file and only checks the header and checksum. toMenu() builds a menu version
+// that reads through to the mapped columns and indexes, so strings and the Food/Drink/Discount
+// objects are only created for the items somebody asks for.
+class MenuSnapshot {
+    static final int MAGIC = 0x4D534E50; // "MSNP"
+    static final short VERSION = 2;
+
+    private static final int HEADER_SIZE = 24;
+    private static final int SLOT_SIZE = 30; // bytes per slot over all the columns
+    private static final byte KIND_FOOD = 0;
+    private static final byte KIND_DRINK = 1;
+    private static final byte KIND_DISCOUNT = 2;
+    private static final byte KIND_FREE = 3;
+
+    private final MappedByteBuffer buffer;
+    private final int slotCount;
+    private final int itemCount;
+    private final int freeCount;
+    private final int[] stringOffsets;
+    private final String[] strings;
+    private final AtomicReferenceArray<MenuItem> items; // by id, made on first use
+    private final int kindColumn;
+    private final int categoryColumn;
+    private final int nameColumn;
+    private final int typeColumn;
+    private final int generationColumn;
+    private final int priceColumn;
+    private final int discountColumn;
+    private final int freeIds;
+    private final int nameHashes;
+    private final int nameIds;
+    private final int[] categoryStarts; // position of each category's first id, and the end
+    private final int categoryIds;
+
+    private MenuSnapshot(MappedByteBuffer buffer, int slotCount, int itemCount, int freeCount, int[] stringOffsets,
+                         int columnsStart) {
+        this.buffer = buffer;
+        this.slotCount = slotCount;
+        this.itemCount = itemCount;
+        this.freeCount = freeCount;
+        this.stringOffsets = stringOffsets;
+        this.strings = new String[stringOffsets.length];
+        this.items = new AtomicReferenceArray<>(slotCount);
+        this.kindColumn = columnsStart;
+        this.categoryColumn = kindColumn + slotCount;
+        this.nameColumn = categoryColumn + slotCount;
+        this.typeColumn = nameColumn + slotCount * 4;
+        this.generationColumn = typeColumn + slotCount * 4;
+        this.priceColumn = generationColumn + slotCount * 4;
+        this.discountColumn = priceColumn + slotCount * 8;
+        this.freeIds = discountColumn + slotCount * 8;
+        this.nameHashes = freeIds + freeCount * 4;
+        this.nameIds = nameHashes + itemCount * 4;
+        int categoryCounts = nameIds + itemCount * 4;
+        this.categoryIds = categoryCounts + Category.values().length * 4;
+        this.categoryStarts = new int[Category.values().length + 1];
+        for (int i = 0; i < Category.values().length; i++) {
+            categoryStarts[i + 1] = categoryStarts[i] + buffer.getInt(categoryCounts + i * 4);
+        }
+    }
+
+    public static void write(Menu menu, Path path) throws IOException {
+        MenuExporter.export(menu, path, MenuExporter.SNAPSHOT);
+    }
+
+    // Writes the snapshot of the given version, returns the number of items written.
+    static int write(MenuVersion version, MenuExporter.Sink out) throws IOException {
+        int slotCount = version.getSlotCount();
+        MenuItem[] slots = new MenuItem[slotCount];
+        int[] generations = new int[slotCount];
+        int count = 0;
+        for (MenuDisplayable item : version.getMenuItems()) {
+            if (item instanceof MenuItem) {
+                MenuItem menuItem = (MenuItem) item;
+                slots[menuItem.getId()] = menuItem;
+                generations[menuItem.getId()] = menuItem.getGeneration();
+                count++;
+            }
+        }
+        // the free slot stack from the top, leaving out slots that have been filled or freed again since
+        List<Integer> free = new ArrayList<>();
+        boolean[] seen = new boolean[slotCount];
+        for (MenuVersion.FreeSlot slot = version.getFreeSlots(); slot != null; slot = slot.next) {
+            if (slots[slot.id] == null && !seen[slot.id]) {
+                seen[slot.id] = true;
+                generations[slot.id] = slot.generation;
+                free.add(slot.id);
+            }
+        }
+
+        // intern names and types into one string table
+        Map<String, Integer> stringIndex = new HashMap<>();
+        List<String> stringTable = new ArrayList<>();
+        int[] names = new int[slotCount];
+        int[] types = new int[slotCount];
+        long[] byNameHash = new long[count]; // hash in the high half, id in the low half
+        int[] categoryCounts = new int[Category.values().length];
+        int next = 0;
+        for (int id = 0; id < slotCount; id++) {
+            MenuItem item = slots[id];
+            names[id] = -1;
+            types[id] = -1;
+            if (item == null) {
+                continue;
+            }
+            names[id] = intern(item.getName(), stringIndex, stringTable);
+            if (item instanceof Food) {
+                types[id] = intern(((Food) item).getType(), stringIndex, stringTable);
+            } else if (item instanceof Drink) {
+                types[id] = intern(((Drink) item).getType(), stringIndex, stringTable);
+            }
+            byNameHash[next++] = ((long) item.getNameHash() << 32) | id;
+            categoryCounts[item.getCategory().ordinal()]++;
+        }
+        Arrays.sort(byNameHash);
+
+        out.putInt(MAGIC);
+        out.putInt(VERSION << 16);
+        out.putInt(slotCount);
+        out.putInt(stringTable.size());
+        out.putInt(count);
+        out.putInt(free.size());
+        for (String s : stringTable) {
+            out.putInt(MenuExporter.Sink.utf8Length(s));
+            out.putUtf8(s);
+        }
+        for (MenuItem item : slots) {
+            out.put(item == null ? KIND_FREE : item instanceof Discount ? KIND_DISCOUNT : item instanceof Drink ? KIND_DRINK : KIND_FOOD);
+        }
+        for (MenuItem item : slots) {
+            out.put((byte) (item == null ? 0 : item.getCategory().ordinal()));
+        }
+        for (int id = 0; id < slotCount; id++) {
+            out.putInt(names[id]);
+        }
+        for (int id = 0; id < slotCount; id++) {
+            out.putInt(types[id]);
+        }
+        for (int id = 0; id < slotCount; id++) {
+            out.putInt(generations[id]);
+        }
+        for (MenuItem item : slots) {
+            // Discount.getPrice() already has the discount taken off, store the list price
+            out.putLong8(item == null ? 0 : item instanceof Discount ? item.getPrice() + ((Discount) item).getDiscount() : item.getPrice());
+        }
+        for (MenuItem item : slots) {
+            out.putLong8(item instanceof Discount ? ((Discount) item).getDiscount() : 0);
+        }
+        for (int id : free) {
+            out.putInt(id);
+        }
+        for (long entry : byNameHash) {
+            out.putInt((int) (entry >>> 32));
+        }
+        for (long entry : byNameHash) {
+            out.putInt((int) entry);
+        }
+        for (int categoryCount : categoryCounts) {
+            out.putInt(categoryCount);
+        }
+        for (Category category : Category.values()) {
+            for (MenuItem item : slots) {
+                if (item != null && item.getCategory() == category) {
+                    out.putInt(item.getId());
+                }
+            }
+        }
+        out.putInt(out.checksum());
+        return count;
+    }
+
+    public static MenuSnapshot open(Path path) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot is too large: " + path);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.limit() < HEADER_SIZE + 4 || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a menu snapshot: " + path);
+        }
+        if (buffer.getShort(4) != VERSION) {
+            throw new IOException("Unsupported menu snapshot version " + buffer.getShort(4) + ": " + path);
+        }
+
+        int checksumAt = buffer.limit() - 4;
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(0, checksumAt));
+        if ((int) crc.getValue() != buffer.getInt(checksumAt)) {
+            throw new IOException("Menu snapshot is corrupt (checksum mismatch): " + path);
+        }
+
+        int slotCount = buffer.getInt(8);
+        int stringCount = buffer.getInt(12);
+        int itemCount = buffer.getInt(16);
+        int freeCount = buffer.getInt(20);
+        int[] stringOffsets = new int[stringCount];
+        int position = HEADER_SIZE;
+        for (int i = 0; i < stringCount; i++) {
+            stringOffsets[i] = position;
+            position += 4 + buffer.getInt(position);
+        }
+        long end = position + (long) slotCount * SLOT_SIZE + freeCount * 4L + itemCount * 12L + Category.values().length * 4L;
+        if (end != checksumAt) {
+            throw new IOException("Menu snapshot is truncated: " + path);
+        }
+        return new MenuSnapshot(buffer, slotCount, itemCount, freeCount, stringOffsets, position);
+    }
+
+    // number of items
+    public int size() {
+        return itemCount;
+    }
+
+    // ids below this are items or free slots
+    int slotCount() {
+        return slotCount;
+    }
+
+    // The item with this id, made the first time it is asked for; null for a free slot. Racing
+    // threads agree on one object, so the menu can compare items by identity.
+    public MenuItem getItem(int id) {
+        if (id < 0 || id >= slotCount) {
+            return null;
+        }
+        MenuItem item = items.get(id);
+        if (item == null && buffer.get(kindColumn + id) != KIND_FREE) {
+            MenuItem made = readItem(id);
+            item = items.compareAndExchange(id, null, made);
+            if (item == null) {
+                item = made;
+            }
+        }
+        return item;
+    }
+
+    // A menu whose first version is this snapshot; creates no items.
+    public Menu toMenu() {
+        return new Menu(MenuVersion.over(this));
+    }
+
+    // the free slot stack as it was when the snapshot was written
+    MenuVersion.FreeSlot freeSlots() {
+        MenuVersion.FreeSlot top = null;
+        for (int i = freeCount - 1; i >= 0; i--) {
+            int id = buffer.getInt(freeIds + i * 4);
+            top = new MenuVersion.FreeSlot(id, buffer.getInt(generationColumn + id * 4), top);
+        }
+        return top;
+    }
+
+    // position in the name index of the first item whose name hash is at least this one
+    int firstNameAt(int nameHash) {
+        int low = 0;
+        int high = itemCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (nameHashAt(middle) < nameHash) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    int nameHashAt(int position) {
+        return buffer.getInt(nameHashes + position * 4);
+    }
+
+    int nameIdAt(int position) {
+        return buffer.getInt(nameIds + position * 4);
+    }
+
+    int categorySize(Category category) {
+        return categoryStarts[category.ordinal() + 1] - categoryStarts[category.ordinal()];
+    }
+
+    // the category's ids are at positions categoryStart(category) up to categoryStart + categorySize
+    int categoryStart(Category category) {
+        return categoryStarts[category.ordinal()];
+    }
+
+    int categoryIdAt(int position) {
+        return buffer.getInt(categoryIds + position * 4);
+    }
+
+    private MenuItem readItem(int id) {
+        byte kind = buffer.get(kindColumn + id);
+        Category category = Category.values()[buffer.get(categoryColumn + id)];
+        String name = string(buffer.getInt(nameColumn + id * 4));
+        int typeIndex = buffer.getInt(typeColumn + id * 4);
+        long price = buffer.getLong(priceColumn + id * 8);
+        MenuItem item;
+        switch (kind) {
+            case KIND_FOOD:
+                item = new Food(name, price, string(typeIndex));
+                break;
+            case KIND_DRINK:
+                item = new Drink(name, price, string(typeIndex));
+                break;
+            case KIND_DISCOUNT:
+                item = new Discount(name, price, category, buffer.getLong(discountColumn + id * 8));
+                break;
+            default:
+                throw new IllegalStateException("Menu snapshot has an item of unknown kind " + kind + " at id " + id);
+        }
+        item.setId(id);
+        item.setGeneration(buffer.getInt(generationColumn + id * 4));
+        return item;
+    }
+
+    private String string(int index) {
+        if (index < 0) {
+            return null;
+        }
+        String s = strings[index];
+        if (s == null) {
+            int offset = stringOffsets[index];
+            byte[] bytes = new byte[buffer.getInt(offset)];
+            buffer.get(offset + 4, bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+            strings[index] = s;
+        }
+        return s;
+    }
+
+    private static int intern(String s, Map<String, Integer> index, List<String> table) {
+        Integer existing = index.get(s);
+        if (existing != null) {
+            return existing;
+        }
+        index.put(s, table.size());
+        table.add(s);
+        return table.size() - 1;
+    }
+}
@@ -0,0 +1,280 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and latency timers for the program's hot paths, cheap enough to leave switched on.
+// Recording is a LongAdder add or a LogLinearHistogram update: no locks and no allocation. While
+// the metrics are switched off (setEnabled(false), or -Dmetrics=off on the command line) nothing
+// is recorded and a timer costs one volatile read.
+//
+// Time a piece of code with
+//     long start = Metrics.ITEM_LOOKUP.start();
+//     ...
+//     Metrics.ITEM_LOOKUP.stop(start);
+// A timer on something that only takes nanoseconds (an item lookup, pricing a small order) only
+// times about one call in 2^sampleBits, so the clock reads don't cost more than the call itself;
+// its count and total time are scaled up from the calls it timed.
+//
+// Metrics.DEFAULT holds everything the program records. writeText() prints it as a table and
+// writePrometheus() in the Prometheus text format, timers as summaries in seconds.
+class Metrics {
+    private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) * 2;
+    private static final int COUNTDOWN_STRIDE = 16; // ints per 64-byte cache line
+
+    static final Metrics DEFAULT = new Metrics(!"off".equals(System.getProperty("metrics")));
+
+    static final Timer MENU_DISPLAY = DEFAULT.timer("menu_display", "Writing the menu out", 0);
+    static final Timer ITEM_LOOKUP = DEFAULT.timer("menu_item_lookup", "Finding a menu item by name or id", 10);
+    static final Timer ORDER_PRICING = DEFAULT.timer("order_pricing", "Pricing an order with its promotions", 10);
+    static final Timer INVOICE_WRITE = DEFAULT.timer("invoice_write", "Writing an invoice file or a batch of archived invoices", 0);
+    static final Counter INVOICE_BYTES = DEFAULT.counter("invoice_written_bytes", "Bytes of invoices written to disk");
+    static final Timer MENU_IMPORT = DEFAULT.timer("menu_import", "Importing a menu file", 0);
+    static final Counter MENU_IMPORT_ITEMS = DEFAULT.counter("menu_imported_items", "Rows accepted from imported menu files");
+    static final Timer MENU_EXPORT = DEFAULT.timer("menu_export", "Exporting the menu to a file", 0);
+    static final Counter MENU_EXPORT_BYTES = DEFAULT.counter("menu_exported_bytes", "Bytes of menu files exported");
+
+    private volatile boolean enabled;
+    private final List<Timer> timers = new CopyOnWriteArrayList<>();
+    private final List<Counter> counters = new CopyOnWriteArrayList<>();
+
+    Metrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public Timer timer(String name, String help, int sampleBits) {
+        Timer timer = new Timer(this, name, help, sampleBits);
+        timers.add(timer);
+        return timer;
+    }
+
+    public Counter counter(String name, String help) {
+        Counter counter = new Counter(this, name, help);
+        counters.add(counter);
+        return counter;
+    }
+
+    public List<Timer> getTimers() {
+        return new ArrayList<>(timers);
+    }
+
+    public List<Counter> getCounters() {
+        return new ArrayList<>(counters);
+    }
+
+    // Clears every count. Calls being recorded at the same time may or may not be kept.
+    public void reset() {
+        for (Timer timer : timers) {
+            timer.reset();
+        }
+        for (Counter counter : counters) {
+            counter.reset();
+        }
+    }
+
+    public void writeText(PrintStream out) {
+        out.printf("%-24s %-10s %-10s %-10s %-10s%n", "timer", "count", "p50 (us)", "p99 (us)", "max (us)");
+        boolean sampled = false;
+        for (Timer timer : timers) {
+            LogLinearHistogram nanos = timer.getNanos();
+            out.printf("%-24s %-10d %-10.1f %-10.1f %-10.1f%n", timer.getName() + (timer.getSamplePeriod() > 1 ? " *" : ""),
+                    timer.getCount(), nanos.getPercentile(50) / 1e3, nanos.getPercentile(99) / 1e3, nanos.getMax() / 1e3);
+            sampled |= timer.getSamplePeriod() > 1;
+        }
+        if (sampled) {
+            out.println("* times a sample of the calls; the count is estimated from it");
+        }
+        out.println();
+        out.printf("%-24s %s%n", "counter", "value");
+        for (Counter counter : counters) {
+            out.printf("%-24s %d%n", counter.getName(), counter.get());
+        }
+        if (!enabled) {
+            out.println();
+            out.println("Metrics are switched off.");
+        }
+    }
+
+    // in the Prometheus text exposition format
+    public void writePrometheus(Appendable out) throws IOException {
+        for (Timer timer : timers) {
+            String name = timer.getName() + "_seconds";
+            LogLinearHistogram nanos = timer.getNanos();
+            out.append("# HELP ").append(name).append(' ').append(timer.getHelp()).append('\n');
+            out.append("# TYPE ").append(name).append(" summary\n");
+            for (double quantile : new double[] {0.5, 0.9, 0.99, 1.0}) {
+                out.append(name).append("{quantile=\"").append(Double.toString(quantile)).append("\"} ")
+                        .append(seconds(nanos.getPercentile(quantile * 100))).append('\n');
+            }
+            out.append(name).append("_sum ").append(seconds(timer.getTotalNanos())).append('\n');
+            out.append(name).append("_count ").append(Long.toString(timer.getCount())).append('\n');
+        }
+        for (Counter counter : counters) {
+            String name = counter.getName() + "_total";
+            out.append("# HELP ").append(name).append(' ').append(counter.getHelp()).append('\n');
+            out.append("# TYPE ").append(name).append(" counter\n");
+            out.append(name).append(' ').append(Long.toString(counter.get())).append('\n');
+        }
+    }
+
+    public void writePrometheus(Path path) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            writePrometheus(writer);
+        }
+    }
+
+    public void writeText(Path path) throws IOException {
+        try (PrintStream out = new PrintStream(Files.newOutputStream(path), false, StandardCharsets.UTF_8)) {
+            writeText(out);
+        }
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    static final class Timer {
+        private final Metrics owner;
+        private final String name;
+        private final String help;
+        private final int samplePeriod;
+        // Calls left until the next timed one, a counter per stripe of threads, each on its own
+        // cache line. Threads sharing a stripe can lose a decrement, which only moves the sample.
+        private final int[] countdowns;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LogLinearHistogram nanos = new LogLinearHistogram();
+
+        private Timer(Metrics owner, String name, String help, int sampleBits) {
+            this.owner = owner;
+            this.name = name;
+            this.help = help;
+            this.samplePeriod = 1 << sampleBits;
+            this.countdowns = samplePeriod > 1 ? new int[STRIPES * COUNTDOWN_STRIDE] : null;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getHelp() {
+            return help;
+        }
+
+        // about one call in this many is timed
+        public int getSamplePeriod() {
+            return samplePeriod;
+        }
+
+        // Returns the time to pass to stop(), or 0 if this call isn't timed. Kept to a flag and a
+        // countdown, so it inlines into the code it times; the timed calls take timed().
+        public long start() {
+            if (!owner.enabled) {
+                return 0;
+            }
+            int[] countdowns = this.countdowns;
+            if (countdowns != null) {
+                int stripe = ((int) Thread.currentThread().getId() & (STRIPES - 1)) * COUNTDOWN_STRIDE;
+                if (--countdowns[stripe] > 0) {
+                    return 0;
+                }
+                rearm(countdowns, stripe);
+            }
+            return timed();
+        }
+
+        // a random gap averaging samplePeriod, so a workload that repeats itself every samplePeriod
+        // calls doesn't get the same call timed every time
+        private void rearm(int[] countdowns, int stripe) {
+            countdowns[stripe] = 1 + ThreadLocalRandom.current().nextInt(2 * samplePeriod - 1);
+        }
+
+        private long timed() {
+            count.increment();
+            return System.nanoTime();
+        }
+
+        public void stop(long start) {
+            if (start != 0) {
+                record(Math.max(0, System.nanoTime() - start));
+            }
+        }
+
+        private void record(long elapsed) {
+            nanos.record(elapsed);
+            totalNanos.add(elapsed);
+        }
+
+        // number of calls; estimated from the timed ones when sampling
+        public long getCount() {
+            return count.sum() * samplePeriod;
+        }
+
+        // the timed calls' durations; a snapshot, so percentiles read from it agree with each other
+        public LogLinearHistogram getNanos() {
+            return nanos.snapshot();
+        }
+
+        // time spent in all calls; estimated from the timed ones when sampling
+        public long getTotalNanos() {
+            return totalNanos.sum() * samplePeriod;
+        }
+
+        private void reset() {
+            count.reset();
+            totalNanos.reset();
+            nanos.reset();
+        }
+    }
+
+    static final class Counter {
+        private final Metrics owner;
+        private final String name;
+        private final String help;
+        private final LongAdder value = new LongAdder();
+
+        private Counter(Metrics owner, String name, String help) {
+            this.owner = owner;
+            this.name = name;
+            this.help = help;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getHelp() {
+            return help;
+        }
+
+        public void add(long amount) {
+            if (owner.enabled) {
+                value.add(amount);
+            }
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        private void reset() {
+            value.reset();
+        }
+    }
+}
@@ -0,0 +1,524 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Append-only log of completed orders, so they survive a restart or a crash.
+//
+// The log is a directory of fixed-size, memory-mapped segment files (orders-000001.log, ...).
+// A segment starts with [MAGIC (int)][format (int)], then records of
+// [payload length (int)][CRC32 of payload (int)][payload]; a zero length marks the end of the
+// data in a segment. Order lines are stored by item key (MenuItem.getKey()), which stays with the
+// item across restarts and never names another item. Appending only copies the record into the
+// mapped segment. A background flusher makes appends durable with one force() for everything
+// written since the last one, so concurrent orders share an fsync instead of paying for one each
+// (group commit). It only forces and signals: appendAsync's futures are completed on the default
+// async pool.
+//
+// On open every segment is scanned; a record that was only partly written when the process died
+// fails its checksum and is dropped along with everything after it in the segment, and new records
+// are appended after the last good one.
+class OrderJournal implements Closeable {
+    static final int DEFAULT_SEGMENT_SIZE = 16 << 20;
+
+    private static final int MAGIC = 0x4F4A524E; // "OJRN"
+    private static final int FORMAT = 2;
+    private static final int SEGMENT_HEADER = 8;
+    private static final int RECORD_HEADER = 8;
+    private static final int ORDER_FIELDS = 8 + 8 + 8 + 4;  // order id, timestamp, menu version, line count
+    private static final int LINE_FIELDS = 8 + 4 + 8;       // item key, quantity, unit price
+    private static final int PRICE_FIELDS = 5 * 8;          // subtotal, discount, tax, service fee, total
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int recoveredRecords;
+    private final long lastOrderId;
+
+    // guarded by appendLock
+    private final Object appendLock = new Object();
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long segmentNumber;
+    private int offset;
+    private int flushedOffset;
+    private long written;
+
+    // guarded by syncLock
+    private final Object syncLock = new Object();
+    private long requested;
+    private long durable;
+    private IOException flushFailure;
+    private final ArrayDeque<PendingAppend> pending = new ArrayDeque<>(); // ordered by position
+
+    private final Thread flusher;
+    private volatile boolean closed;
+
+    private OrderJournal(Path directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+
+        List<Path> segments = segmentFiles(directory);
+        int recovered = 0;
+        long[] maxOrderId = {0};
+        for (Path path : segments) {
+            recovered += scan(path, record -> maxOrderId[0] = Math.max(maxOrderId[0], record.getOrderId()));
+        }
+        this.recoveredRecords = recovered;
+        this.lastOrderId = maxOrderId[0];
+
+        if (segments.isEmpty()) {
+            openSegment(1);
+        } else {
+            // continue after the last good record of the newest segment
+            openSegment(segmentNumber(segments.get(segments.size() - 1)));
+            offset = endOfData(segment, SEGMENT_HEADER);
+            zeroTail(segment, offset);
+            flushedOffset = offset;
+        }
+        this.written = position();
+        this.requested = written;
+        this.durable = written;
+
+        this.flusher = new Thread(this::flushLoop, "order-journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public static OrderJournal open(Path directory) throws IOException {
+        return new OrderJournal(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public static OrderJournal open(Path directory, int segmentSize) throws IOException {
+        return new OrderJournal(directory, segmentSize);
+    }
+
+    // Number of intact records found when the journal was opened.
+    public int getRecoveredRecords() {
+        return recoveredRecords;
+    }
+
+    // Highest order id found when the journal was opened, 0 if it was empty.
+    public long getLastOrderId() {
+        return lastOrderId;
+    }
+
+    // Appends the order and returns its position in the log; pass it to awaitDurable().
+    public long append(long orderId, Order order) {
+        PriceBreakdown price = order.getPriceBreakdown();
+        OrderLines lines = order.getLines();
+        int payload = ORDER_FIELDS + lines.size() * LINE_FIELDS + PRICE_FIELDS;
+        int length = RECORD_HEADER + payload;
+        if (length > segmentSize - RECORD_HEADER) {
+            throw new IllegalArgumentException("Order " + orderId + " is too large for a journal segment");
+        }
+        long menuVersion = order.getMenuVersion() != null ? order.getMenuVersion().getNumber() : -1;
+
+        synchronized (appendLock) {
+            if (closed) {
+                throw new IllegalStateException("Order journal is closed");
+            }
+            // keep room for the zero length that ends the segment
+            if (offset + length > segmentSize - RECORD_HEADER) {
+                rollSegment();
+            }
+            int start = offset;
+            ByteBuffer record = segment.duplicate();
+            record.position(start + RECORD_HEADER);
+            record.putLong(orderId);
+            record.putLong(System.currentTimeMillis());
+            record.putLong(menuVersion);
+            record.putInt(lines.size());
+            for (int line = 0; line < lines.size(); line++) {
+                record.putLong(lines.getItemKey(line));
+                record.putInt(lines.getQuantity(line));
+                record.putLong(lines.getPrice(line));
+            }
+            record.putLong(price.getSubtotal());
+            record.putLong(price.getDiscount());
+            record.putLong(price.getTax());
+            record.putLong(price.getServiceFee());
+            record.putLong(price.getTotal());
+
+            CRC32 crc = new CRC32();
+            crc.update(segment.slice(start + RECORD_HEADER, payload));
+            segment.putInt(start + 4, (int) crc.getValue());
+            // length last, so a reader never sees a length without the data behind it
+            segment.putInt(start, payload);
+
+            offset += length;
+            written = position();
+            return written;
+        }
+    }
+
+    // Blocks until everything up to the given position is on disk.
+    public void awaitDurable(long position) throws IOException {
+        synchronized (syncLock) {
+            if (position > requested) {
+                requested = position;
+                syncLock.notifyAll();
+            }
+            while (durable < position) {
+                if (flushFailure != null) {
+                    throw flushFailure;
+                }
+                if (closed && !flusher.isAlive()) {
+                    throw new IOException("Order journal is closed");
+                }
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the order journal");
+                }
+            }
+        }
+    }
+
+    public void appendAndSync(long orderId, Order order) throws IOException {
+        awaitDurable(append(orderId, order));
+    }
+
+    // Appends the order without blocking; the future completes once the order is durable.
+    public CompletableFuture<Void> appendAsync(long orderId, Order order) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        synchronized (appendLock) {
+            // under appendLock so the pending queue stays in log order
+            long position = append(orderId, order);
+            synchronized (syncLock) {
+                if (flushFailure != null) {
+                    future.completeExceptionally(flushFailure);
+                    return future;
+                }
+                pending.add(new PendingAppend(position, future));
+                if (position > requested) {
+                    requested = position;
+                    syncLock.notifyAll();
+                }
+            }
+        }
+        return future;
+    }
+
+    // Reads every intact record in the journal directory, oldest first.
+    public static int replay(Path directory, Consumer<JournalRecord> consumer) throws IOException {
+        int count = 0;
+        for (Path path : segmentFiles(directory)) {
+            count += scan(path, consumer);
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (appendLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        synchronized (syncLock) {
+            syncLock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (appendLock) {
+            segment.force();
+            channel.close();
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            synchronized (syncLock) {
+                while (requested <= durable && !closed) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed && requested <= durable) {
+                    syncLock.notifyAll();
+                    return;
+                }
+            }
+
+            MappedByteBuffer buffer;
+            int from;
+            int to;
+            long target;
+            synchronized (appendLock) {
+                buffer = segment;
+                from = flushedOffset;
+                to = offset;
+                target = written;
+            }
+            // one force for every record appended since the last flush
+            if (to > from) {
+                buffer.force(from, to - from);
+            }
+            synchronized (appendLock) {
+                if (buffer == segment && to > flushedOffset) {
+                    flushedOffset = to;
+                }
+            }
+            List<CompletableFuture<Void>> completed = new ArrayList<>();
+            synchronized (syncLock) {
+                durable = Math.max(durable, target);
+                while (!pending.isEmpty() && pending.peek().position <= durable) {
+                    completed.add(pending.poll().future);
+                }
+                syncLock.notifyAll();
+            }
+            for (CompletableFuture<Void> future : completed) {
+                // each on the pool, so whatever a caller chained onto it runs there, and neither the
+                // next force nor the other orders wait behind it
+                future.completeAsync(() -> null);
+            }
+        }
+    }
+
+    // called with appendLock held
+    private void rollSegment() {
+        try {
+            // everything in the old segment must be durable before its position is reported as such
+            segment.force();
+            channel.close();
+            openSegment(segmentNumber + 1);
+        } catch (IOException e) {
+            synchronized (syncLock) {
+                flushFailure = e;
+                for (PendingAppend append : pending) {
+                    append.future.completeExceptionally(e);
+                }
+                pending.clear();
+                syncLock.notifyAll();
+            }
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Maps the segment, giving it a header if it is new, and positions appends after the header.
+    // Called with appendLock held (or from the constructor).
+    private void openSegment(long number) throws IOException {
+        Path path = directory.resolve(String.format("orders-%06d.log", number));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        if (isBlank(segment)) { // new, or its header never reached the disk
+            segment.putInt(0, MAGIC);
+            segment.putInt(4, FORMAT);
+            segment.force(0, SEGMENT_HEADER);
+        }
+        segmentNumber = number;
+        offset = SEGMENT_HEADER;
+        flushedOffset = SEGMENT_HEADER;
+    }
+
+    // a segment the process died in before its header was written holds nothing
+    private static boolean isBlank(ByteBuffer buffer) {
+        return buffer.limit() < SEGMENT_HEADER || buffer.getLong(0) == 0;
+    }
+
+    private long position() {
+        return segmentNumber * segmentSize + offset;
+    }
+
+    private static List<Path> segmentFiles(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> segments = new ArrayList<>();
+            files.filter(p -> p.getFileName().toString().matches("orders-\\d{6}\\.log")).sorted().forEach(segments::add);
+            return segments;
+        }
+    }
+
+    private static long segmentNumber(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring("orders-".length(), name.length() - ".log".length()));
+    }
+
+    // Decodes the intact records of one segment and returns how many there were.
+    private static int scan(Path path, Consumer<JournalRecord> consumer) throws IOException {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+            if (isBlank(buffer)) {
+                return 0;
+            }
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not an order journal segment: " + path);
+            }
+            if (buffer.getInt(4) != FORMAT) {
+                throw new IOException("Unsupported order journal format " + buffer.getInt(4) + ": " + path);
+            }
+            int count = 0;
+            int position = SEGMENT_HEADER;
+            int payload;
+            while ((payload = validRecordAt(buffer, position)) > 0) {
+                consumer.accept(JournalRecord.decode(buffer.slice(position + RECORD_HEADER, payload)));
+                position += RECORD_HEADER + payload;
+                count++;
+            }
+            return count;
+        }
+    }
+
+    private static int endOfData(ByteBuffer buffer, int position) {
+        int payload;
+        while ((payload = validRecordAt(buffer, position)) > 0) {
+            position += RECORD_HEADER + payload;
+        }
+        return position;
+    }
+
+    // payload length of the record at position, or 0 if there is no intact record there
+    private static int validRecordAt(ByteBuffer buffer, int position) {
+        if (position + RECORD_HEADER > buffer.limit()) {
+            return 0;
+        }
+        int payload = buffer.getInt(position);
+        if (payload < ORDER_FIELDS + PRICE_FIELDS || payload > buffer.limit() - position - RECORD_HEADER) {
+            return 0;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(position + RECORD_HEADER, payload));
+        return (int) crc.getValue() == buffer.getInt(position + 4) ? payload : 0;
+    }
+
+    // Clears everything behind the last good record to the end of the segment: the torn record
+    // and any intact records after it. Clearing only the torn one would let a later append of the
+    // same length end exactly where an old record starts, and bring that record back on the next
+    // recovery. Only writes the bytes that aren't zero already.
+    private static void zeroTail(MappedByteBuffer buffer, int from) {
+        int dirtyEnd = from;
+        for (int i = from; i < buffer.limit(); i++) {
+            if (buffer.get(i) != 0) {
+                buffer.put(i, (byte) 0);
+                dirtyEnd = i + 1;
+            }
+        }
+        if (dirtyEnd > from) {
+            buffer.force(from, dirtyEnd - from);
+        }
+    }
+}
+
+class PendingAppend {
+    final long position;
+    final CompletableFuture<Void> future;
+
+    PendingAppend(long position, CompletableFuture<Void> future) {
+        this.position = position;
+        this.future = future;
+    }
+}
+
+// One order read back from the journal.
+class JournalRecord {
+    private final long orderId;
+    private final long timestamp;
+    private final long menuVersion;
+    private final long[] itemKeys;
+    private final int[] quantities;
+    private final long[] unitPrices;
+    private final long subtotal;
+    private final long discount;
+    private final long tax;
+    private final long serviceFee;
+    private final long total;
+
+    private JournalRecord(long orderId, long timestamp, long menuVersion, long[] itemKeys, int[] quantities, long[] unitPrices,
+                          long subtotal, long discount, long tax, long serviceFee, long total) {
+        this.orderId = orderId;
+        this.timestamp = timestamp;
+        this.menuVersion = menuVersion;
+        this.itemKeys = itemKeys;
+        this.quantities = quantities;
+        this.unitPrices = unitPrices;
+        this.subtotal = subtotal;
+        this.discount = discount;
+        this.tax = tax;
+        this.serviceFee = serviceFee;
+        this.total = total;
+    }
+
+    static JournalRecord decode(ByteBuffer payload) {
+        long orderId = payload.getLong();
+        long timestamp = payload.getLong();
+        long menuVersion = payload.getLong();
+        int lineCount = payload.getInt();
+        long[] itemKeys = new long[lineCount];
+        int[] quantities = new int[lineCount];
+        long[] unitPrices = new long[lineCount];
+        for (int i = 0; i < lineCount; i++) {
+            itemKeys[i] = payload.getLong();
+            quantities[i] = payload.getInt();
+            unitPrices[i] = payload.getLong();
+        }
+        return new JournalRecord(orderId, timestamp, menuVersion, itemKeys, quantities, unitPrices,
+                payload.getLong(), payload.getLong(), payload.getLong(), payload.getLong(), payload.getLong());
+    }
+
+    public long getOrderId() {
+        return orderId;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    // the number of the menu version the order was priced against, counted from 0 in each run
+    // of the program, so only comparable between orders of the same run
+    public long getMenuVersion() {
+        return menuVersion;
+    }
+
+    public int getLineCount() {
+        return itemKeys.length;
+    }
+
+    // MenuItem.getKey() of the line's item
+    public long getItemKey(int line) {
+        return itemKeys[line];
+    }
+
+    public int getQuantity(int line) {
+        return quantities[line];
+    }
+
+    public long getUnitPrice(int line) {
+        return unitPrices[line];
+    }
+
+    public long getSubtotal() {
+        return subtotal;
+    }
+
+    public long getDiscount() {
+        return discount;
+    }
+
+    public long getTax() {
+        return tax;
+    }
+
+    public long getServiceFee() {
+        return serviceFee;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+}
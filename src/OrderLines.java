@@ -0,0 +1,216 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The lines of one order, kept in parallel arrays: item key (MenuItem.getKey()), quantity, and
+// the unit price and category the item had when it was added, so an admin repricing the item
+// mid-order doesn't change the order. Adding an item that is already in the order adds to its
+// quantity. Lines are told apart by key, not id, so a removed item and the new item that reused
+// its id never share a line.
+//
+// A small order finds an item's line by scanning the keys; from INDEX_AFTER lines on, an
+// open-addressing table from item key to line keeps that O(1), so a catering order with thousands
+// of lines is built and priced without boxing a single quantity. Instances are pooled: acquire()
+// one for a new order and release() it when the order is done with.
+class OrderLines {
+    private static final int INITIAL_CAPACITY = 8;
+    private static final int INDEX_AFTER = 16;
+    private static final int MAX_POOLED = 256;
+    private static final int MAX_POOLED_CAPACITY = 1 << 16; // don't keep huge catering orders around
+    private static final Category[] CATEGORIES = Category.values();
+    private static final ConcurrentLinkedQueue<OrderLines> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger(); // pool.size() walks the whole queue
+
+    private long[] itemKeys = new long[INITIAL_CAPACITY];
+    private int[] quantities = new int[INITIAL_CAPACITY];
+    private long[] prices = new long[INITIAL_CAPACITY];
+    private byte[] categories = new byte[INITIAL_CAPACITY]; // Category.ordinal()
+    private MenuItem[] items = new MenuItem[INITIAL_CAPACITY]; // for the name on the invoice
+    private int size;
+    private long subtotal; // sum of the amounts, kept as lines are added so pricing needn't add them up
+    private final long[] categoryAmounts = new long[CATEGORIES.length];
+    private int[] index; // line + 1 at the item key's slot, 0 for an empty slot; null until needed
+
+    public static OrderLines acquire() {
+        OrderLines lines = pool.poll();
+        if (lines == null) {
+            return new OrderLines();
+        }
+        pooled.decrementAndGet();
+        return lines;
+    }
+
+    // Clears the lines and puts them back in the pool; they must not be used afterwards.
+    public void release() {
+        clear();
+        if (itemKeys.length > MAX_POOLED_CAPACITY) {
+            return;
+        }
+        if (pooled.incrementAndGet() <= MAX_POOLED) {
+            pool.offer(this);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long getItemKey(int line) {
+        return itemKeys[line];
+    }
+
+    public int getQuantity(int line) {
+        return quantities[line];
+    }
+
+    // unit price when the item was added
+    public long getPrice(int line) {
+        return prices[line];
+    }
+
+    public long getAmount(int line) {
+        return prices[line] * quantities[line];
+    }
+
+    public int getCategoryOrdinal(int line) {
+        return categories[line];
+    }
+
+    // sum of getAmount() over all lines
+    public long getSubtotal() {
+        return subtotal;
+    }
+
+    // sum of getAmount() over the lines in the category with that ordinal
+    public long getCategoryAmount(int categoryOrdinal) {
+        return categoryAmounts[categoryOrdinal];
+    }
+
+    public Category getCategory(int line) {
+        return CATEGORIES[categories[line]];
+    }
+
+    // the item as it was when it was added
+    public MenuItem getItem(int line) {
+        return items[line];
+    }
+
+    // the line holding the item, or -1
+    public int indexOf(long itemKey) {
+        if (index != null) {
+            int mask = index.length - 1;
+            for (int slot = hash(itemKey) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+                if (itemKeys[index[slot] - 1] == itemKey) {
+                    return index[slot] - 1;
+                }
+            }
+            return -1;
+        }
+        for (int line = 0; line < size; line++) {
+            if (itemKeys[line] == itemKey) {
+                return line;
+            }
+        }
+        return -1;
+    }
+
+    // how many of the item the order has, 0 if none
+    public int getQuantityOf(long itemKey) {
+        int line = indexOf(itemKey);
+        return line >= 0 ? quantities[line] : 0;
+    }
+
+    // Adds quantity of the item, to its existing line if it has one. Returns the line.
+    public int add(MenuItem item, int quantity) {
+        if (quantity <= 0) {
+            throw new IllegalArgumentException("Quantity must be at least 1: " + quantity);
+        }
+        int line = indexOf(item.getKey());
+        if (line >= 0) {
+            quantities[line] = Math.addExact(quantities[line], quantity);
+            addAmount(categories[line], prices[line] * quantity);
+            return line;
+        }
+        if (size == itemKeys.length) {
+            grow();
+        }
+        line = size++;
+        itemKeys[line] = item.getKey();
+        quantities[line] = quantity;
+        prices[line] = item.getPrice();
+        categories[line] = (byte) item.getCategory().ordinal();
+        items[line] = item;
+        addAmount(categories[line], prices[line] * quantity);
+        if (index != null) {
+            addToIndex(line);
+        } else if (size > INDEX_AFTER) {
+            rebuildIndex();
+        }
+        return line;
+    }
+
+    private void addAmount(int categoryOrdinal, long amount) {
+        subtotal += amount;
+        categoryAmounts[categoryOrdinal] += amount;
+    }
+
+    public void clear() {
+        if (index != null) {
+            // kept for the next order; only the slots of these lines are cleared, so a one-line order
+            // after a catering order doesn't pay for the catering order's whole table
+            int mask = index.length - 1;
+            for (int line = 0; line < size; line++) {
+                int slot = hash(itemKeys[line]) & mask;
+                while (index[slot] != line + 1) {
+                    slot = (slot + 1) & mask;
+                }
+                index[slot] = 0;
+            }
+        }
+        Arrays.fill(items, 0, size, null);
+        size = 0;
+        subtotal = 0;
+        Arrays.fill(categoryAmounts, 0);
+    }
+
+    private void grow() {
+        int capacity = itemKeys.length * 2;
+        itemKeys = Arrays.copyOf(itemKeys, capacity);
+        quantities = Arrays.copyOf(quantities, capacity);
+        prices = Arrays.copyOf(prices, capacity);
+        categories = Arrays.copyOf(categories, capacity);
+        items = Arrays.copyOf(items, capacity);
+    }
+
+    // the table is kept at most half full
+    private void rebuildIndex() {
+        index = new int[Integer.highestOneBit(Math.max(INDEX_AFTER, size) * 4 - 1)];
+        for (int line = 0; line < size; line++) {
+            addToIndex(line);
+        }
+    }
+
+    private void addToIndex(int line) {
+        if (size * 2 > index.length) {
+            rebuildIndex(); // includes this line
+            return;
+        }
+        int mask = index.length - 1;
+        int slot = hash(itemKeys[line]) & mask;
+        while (index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = line + 1;
+    }
+
+    private static int hash(long itemKey) {
+        int h = ((int) itemKey + 31 * (int) (itemKey >>> 32)) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,236 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Opens many connections to an OrderServer and orders over all of them at once, then reports the
+// latency of each kind of request and the overall throughput. Every connection runs ordering
+// sessions one request at a time, sending the next request as soon as the reply to the last one
+// has arrived, so the server always has one request waiting per connection. The client is a single
+// thread with a Selector, so thousands of connections cost it no more threads than one.
+//
+// With --embedded it starts its own OrderServer on a free port, with the default menu and no order
+// journal, instead of connecting to one. With --menu every session starts by fetching the menu.
+//
+//   java OrderLoadClient [--host h] [--port p | --embedded] [--connections n] [--sessions n] [--menu]
+//       default: localhost 7070, 1000 connections, 100000 sessions
+public class OrderLoadClient {
+    private static final String[][] SCRIPTS = {
+            {"ADD 1 Pizza", "ADD 2 Soda", "CHECKOUT"},
+            {"ADD 1 Burger", "ADD 1 Juice", "ADD 1 Tea", "CHECKOUT"},
+            {"ADD 2 Pasta", "ADD 1 Coffee", "ORDER", "CHECKOUT"},
+            {"ADD 1 Steak", "SEARCH te", "ADD 1 Tea", "CHECKOUT"},
+    };
+
+    private final Selector selector;
+    private final int sessions;
+    private final boolean fetchMenu;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final Map<String, LogLinearHistogram> latencies = new TreeMap<>();
+    private final Map<String, Integer> errors = new TreeMap<>();
+    private int sessionsStarted;
+    private int sessionsDone;
+    private long bytesReceived;
+
+    private OrderLoadClient(Selector selector, int sessions, boolean fetchMenu) {
+        this.selector = selector;
+        this.sessions = sessions;
+        this.fetchMenu = fetchMenu;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        String host = option(arguments, "--host", "localhost");
+        int port = Integer.parseInt(option(arguments, "--port", Integer.toString(OrderServer.DEFAULT_PORT)));
+        int connections = Integer.parseInt(option(arguments, "--connections", "1000"));
+        int sessions = Integer.parseInt(option(arguments, "--sessions", "100000"));
+        boolean fetchMenu = arguments.remove("--menu");
+        OrderServer server = null;
+        Thread serverThread = null;
+        if (arguments.remove("--embedded")) {
+            Menu menu = new Menu();
+            OrderService service = new OrderService(menu, Main.createPromotions(menu));
+            server = new OrderServer(service, new Admin(menu), null, new MenuSearchIndex(menu), null, 0);
+            port = server.getPort();
+            OrderServer running = server;
+            serverThread = new Thread(() -> {
+                try {
+                    running.run();
+                } catch (IOException e) {
+                    System.out.println("The order server stopped: " + e.getMessage());
+                }
+            }, "order-server");
+            serverThread.start();
+        }
+
+        try (Selector selector = Selector.open()) {
+            OrderLoadClient client = new OrderLoadClient(selector, sessions, fetchMenu);
+            for (int i = 0; i < connections; i++) {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+                channel.connect(new InetSocketAddress(host, port));
+                channel.register(selector, SelectionKey.OP_CONNECT, client.new Connection(channel));
+            }
+            long start = System.nanoTime();
+            client.run();
+            long elapsed = System.nanoTime() - start;
+            client.report(connections, elapsed);
+        } finally {
+            if (server != null) {
+                server.close();
+                serverThread.join();
+            }
+        }
+    }
+
+    private static String option(List<String> arguments, String name, String defaultValue) {
+        int flag = arguments.indexOf(name);
+        if (flag < 0) {
+            return defaultValue;
+        }
+        String value = arguments.get(flag + 1);
+        arguments.subList(flag, flag + 2).clear();
+        return value;
+    }
+
+    private void run() throws IOException {
+        while (sessionsDone < sessions) {
+            selector.select();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Connection connection = (Connection) key.attachment();
+                if (key.isConnectable()) {
+                    connection.channel.finishConnect();
+                    key.interestOps(SelectionKey.OP_READ);
+                    connection.nextSession();
+                    continue;
+                }
+                if (key.isWritable()) {
+                    connection.write();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    connection.read();
+                }
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+    }
+
+    private void report(int connections, long elapsed) {
+        double seconds = elapsed / 1e9;
+        long requests = 0;
+        System.out.printf("%-10s %-10s %-8s %-10s %-10s %-10s %-10s%n", "request", "count", "errors", "p50 (us)", "p99 (us)", "p99.9 (us)", "max (us)");
+        for (Map.Entry<String, LogLinearHistogram> entry : latencies.entrySet()) {
+            LogLinearHistogram nanos = entry.getValue();
+            requests += nanos.getCount();
+            System.out.printf("%-10s %-10d %-8d %-10.1f %-10.1f %-10.1f %-10.1f%n", entry.getKey(), nanos.getCount(),
+                    errors.getOrDefault(entry.getKey(), 0), nanos.getPercentile(50) / 1e3, nanos.getPercentile(99) / 1e3,
+                    nanos.getPercentile(99.9) / 1e3, nanos.getMax() / 1e3);
+        }
+        System.out.printf("%d connections, %d sessions in %.2f s: %.0f requests/sec, %.0f sessions/sec, %.1f MB received%n",
+                connections, sessionsDone, seconds, requests / seconds, sessionsDone / seconds, bytesReceived / 1e6);
+    }
+
+    private final class Connection {
+        private final SocketChannel channel;
+        private String[] script;
+        private int step;
+        private String command;
+        private ByteBuffer request;
+        private long sentAt;
+        // reading the reply: where in the current line we are, and whether the reply is an error
+        private int lineLength;
+        private boolean dotLine;
+        private int replyBytes;
+        private boolean errorReply;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void nextSession() throws IOException {
+            if (sessionsStarted >= sessions) {
+                return; // this connection stays idle while the others finish
+            }
+            String[] base = SCRIPTS[sessionsStarted % SCRIPTS.length];
+            sessionsStarted++;
+            if (fetchMenu) {
+                script = new String[base.length + 1];
+                script[0] = "MENU";
+                System.arraycopy(base, 0, script, 1, base.length);
+            } else {
+                script = base;
+            }
+            step = 0;
+            send();
+        }
+
+        private void send() throws IOException {
+            String line = script[step];
+            int space = line.indexOf(' ');
+            command = space > 0 ? line.substring(0, space) : line;
+            request = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+            lineLength = 0;
+            replyBytes = 0;
+            errorReply = false;
+            sentAt = System.nanoTime();
+            write();
+        }
+
+        void write() throws IOException {
+            channel.write(request);
+            SelectionKey key = channel.keyFor(selector);
+            key.interestOps(request.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        void read() throws IOException {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                throw new IOException("The server closed a connection");
+            }
+            bytesReceived += read;
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+                if (replyBytes++ == 0) {
+                    errorReply = b == 'E';
+                }
+                if (b == '\n') {
+                    boolean end = dotLine && lineLength == 1;
+                    lineLength = 0;
+                    dotLine = false;
+                    if (end) {
+                        replied();
+                    }
+                } else {
+                    dotLine = lineLength == 0 && b == '.';
+                    lineLength++;
+                }
+            }
+        }
+
+        private void replied() throws IOException {
+            latencies.computeIfAbsent(command, c -> new LogLinearHistogram()).record(System.nanoTime() - sentAt);
+            if (errorReply) {
+                errors.merge(command, 1, Integer::sum);
+            }
+            step++;
+            if (step < script.length) {
+                send();
+            } else {
+                sessionsDone++;
+                nextSession();
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Replays scripted ordering sessions against an OrderService and reports latency and throughput.
+// All sessions are submitted at once; a session's latency runs from its submission to its checkout
+// completing, so it includes time spent queued for a thread, and "concurrent" is the most sessions
+// that were open at the same time.
+// An admin thread keeps editing the menu for the whole run. With --journal every checkout is
+// also made durable in an OrderJournal in that directory, and with --invoices every invoice is
+// rendered and appended to the invoice archive in that directory. With --analytics every order
+// is fed to SalesAnalytics and its report is printed at the end. With --stock n each run starts
+// with n Tea in stock, every session competes for it, and the run checks nothing was oversold.
+// With --metrics the hot-path metrics are printed at the end; run with -Dmetrics=off to compare
+// against a run that records none.
+//
+//   java OrderLoadGenerator [--journal dir] [--invoices dir] [--analytics] [--stock n] [--metrics] [sessions ...]      default: 1000 10000 100000
+public class OrderLoadGenerator {
+    private static final String[][] SCRIPTS = {
+            {"Pizza", "Soda"},
+            {"Burger", "Juice", "Tea"},
+            {"Pasta", "Coffee"},
+            {"Steak", "Tea", "Soda", "Juice"},
+            {"tea", "pizza", "unknown item"},
+    };
+
+    public static void main(String[] args) throws Exception {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        OrderJournal journal = null;
+        int journalFlag = arguments.indexOf("--journal");
+        if (journalFlag >= 0) {
+            journal = OrderJournal.open(java.nio.file.Paths.get(arguments.get(journalFlag + 1)));
+            arguments.subList(journalFlag, journalFlag + 2).clear();
+        }
+        InvoiceWriter invoices = null;
+        int invoicesFlag = arguments.indexOf("--invoices");
+        if (invoicesFlag >= 0) {
+            invoices = new InvoiceWriter(java.nio.file.Paths.get(arguments.get(invoicesFlag + 1)));
+            arguments.subList(invoicesFlag, invoicesFlag + 2).clear();
+        }
+        SalesAnalytics analytics = null;
+        if (arguments.remove("--analytics")) {
+            analytics = new SalesAnalytics();
+        }
+        boolean printMetrics = arguments.remove("--metrics");
+        int teaStock = -1;
+        int stockFlag = arguments.indexOf("--stock");
+        if (stockFlag >= 0) {
+            teaStock = Integer.parseInt(arguments.get(stockFlag + 1));
+            arguments.subList(stockFlag, stockFlag + 2).clear();
+        }
+        int[] levels = {1000, 10000, 100000};
+        if (!arguments.isEmpty()) {
+            levels = new int[arguments.size()];
+            for (int i = 0; i < levels.length; i++) {
+                levels[i] = Integer.parseInt(arguments.get(i));
+            }
+        }
+
+        Menu menu = new Menu();
+        long firstOrderId = journal != null ? journal.getLastOrderId() + 1 : 1;
+        Inventory inventory = teaStock >= 0 ? new Inventory() : null;
+        OrderService service = new OrderService(menu, Main.createPromotions(menu), journal, firstOrderId, inventory);
+        if (analytics != null) {
+            service.addCheckoutListener(analytics);
+            menu.addChangeListener(analytics);
+        }
+
+        ExecutorService probe = OrderService.newSessionExecutor();
+        System.out.println("Sessions run on " + (probe instanceof ThreadPoolExecutor
+                ? ((ThreadPoolExecutor) probe).getMaximumPoolSize() + " platform threads; the rest wait in its queue"
+                : "a virtual thread each") + ". Latency counts from when a session is submitted.");
+        probe.shutdown();
+        System.out.printf("%-10s %-12s %-12s %-12s %-12s %-12s%n", "sessions", "orders/sec", "p50 (us)", "p99 (us)", "max (us)", "concurrent");
+        for (int sessions : levels) {
+            run(service, invoices, sessions, teaStock);
+        }
+        if (invoices != null) {
+            invoices.close();
+        }
+        if (analytics != null) {
+            System.out.println();
+            analytics.printReport(System.out);
+        }
+        if (printMetrics) {
+            System.out.println();
+            Metrics.DEFAULT.writeText(System.out);
+        }
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    static void run(OrderService service, InvoiceWriter invoices, int sessions, int teaStock) throws InterruptedException {
+        long[] latencies = new long[sessions];
+        long teaKey = service.getMenu().findItem("Tea").getKey();
+        LongAdder teaSold = new LongAdder();
+        LongAdder failed = new LongAdder(); // checkouts the journal or the invoice writer refused
+        if (teaStock >= 0) {
+            service.getInventory().setStock(teaKey, teaStock);
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread admin = new Thread(() -> editMenu(service.getMenu(), running), "admin");
+        admin.start();
+
+        CountDownLatch done = new CountDownLatch(sessions);
+        AtomicInteger active = new AtomicInteger(); // sessions opened and not yet checked out
+        AtomicInteger peakActive = new AtomicInteger();
+        ExecutorService executor = OrderService.newSessionExecutor();
+        long start = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            int sessionNumber = i;
+            long submitted = System.nanoTime();
+            executor.execute(() -> {
+                peakActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                OrderService.Session session = service.openSession();
+                for (String itemName : SCRIPTS[sessionNumber % SCRIPTS.length]) {
+                    MenuItem added = session.addItem(itemName, 1 + sessionNumber % 3);
+                    if (added != null && added.getKey() == teaKey) {
+                        teaSold.add(1 + sessionNumber % 3);
+                    }
+                }
+                // finished on the session threads, so neither the listeners nor the rendering run on
+                // the journal's flusher
+                CompletableFuture<?> checkout = session.checkoutAsync(executor);
+                if (invoices != null) {
+                    checkout = checkout.thenComposeAsync(price -> invoices.archive(InvoiceRenderer.DEFAULT.render(session.getOrder())), executor);
+                }
+                checkout.whenComplete((result, failure) -> {
+                    if (failure != null) {
+                        failed.increment();
+                    }
+                    session.getOrder().release();
+                    active.decrementAndGet();
+                    latencies[sessionNumber] = System.nanoTime() - submitted;
+                    done.countDown();
+                });
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        running.set(false);
+        admin.join();
+
+        Arrays.sort(latencies);
+        System.out.printf("%-10d %-12.0f %-12.1f %-12.1f %-12.1f %-12d%n", sessions, sessions / (elapsed / 1e9),
+                percentile(latencies, 50) / 1e3, percentile(latencies, 99) / 1e3, latencies[sessions - 1] / 1e3,
+                peakActive.get());
+        if (failed.sum() > 0) {
+            System.out.printf("           %d checkouts failed (journal error or invoice queue full)%n", failed.sum());
+        }
+        if (teaStock >= 0) {
+            int left = service.getInventory().getStock(teaKey);
+            boolean balanced = left >= 0 && teaSold.sum() + left == teaStock;
+            System.out.printf("           Tea stock %d, sold %d, left %d: %s%n", teaStock, teaSold.sum(), left,
+                    balanced ? "no oversell" : "STOCK MISMATCH");
+        }
+    }
+
+    // reprices Soda back and forth, about ten thousand times a second, while the sessions run
+    private static void editMenu(Menu menu, AtomicBoolean running) {
+        long sodaNumber = menu.findItem("Soda").getKey();
+        Admin admin = new Admin(menu);
+        long price = Money.of(10000);
+        while (running.get()) {
+            price = price == Money.of(10000) ? Money.of(12000) : Money.of(10000);
+            admin.updateItem(sodaNumber, "Soda", price);
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)];
+    }
+}
@@ -0,0 +1,737 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Serves the customer and admin operations of the console over TCP, so kiosks and tablets can
+// order from one program. One thread runs a Selector over every connection and answers the quick
+// requests itself; admin edits and file work go to a worker thread, and replies that have to wait
+// (a checkout waiting for the journal, an invoice being written) are sent when they are ready.
+//
+// Each connection holds a small input buffer, its order and the replies not yet sent. Once a
+// connection has MAX_PENDING_OUTPUT bytes of replies waiting, or a reply is being worked out, the
+// server stops reading from it until that is done, so a client that doesn't read can't make the
+// server hold more. The menu is sent from the menu version's pre-rendered bytes, not a copy; each
+// new version is rendered on the worker thread as soon as it is published, and a MENU request that
+// still finds it unrendered waits for the worker rather than rendering on the selector thread.
+//
+// Protocol: requests are lines of UTF-8 text of at most MAX_LINE bytes. Every reply is one or more
+// lines ending with a line holding only "."; the first line starts with "OK" or "ERR". Arguments
+// are separated by spaces and the last one takes the rest of the line.
+//
+//   MENU                                    the menu, as the console shows it
+//   ADD <quantity> <item name>              adds to this connection's order
+//   ORDER                                   the order so far, as an invoice, with the Tea offer
+//                                           if the total is over 50000
+//   CHECKOUT                                prices and records the order, replies with its invoice,
+//                                           and starts a new order
+//   INVOICE                                 writes the last checked-out order's invoice to a file
+//   CANCEL                                  drops the order and starts a new one
+//   SEARCH <text>                           items whose name starts with or is close to the text
+//   ADMIN ADD FOOD|DRINK <price> <type> <name>
+//   ADMIN UPDATE <item number> <price> <name>   item numbers are the ones MENU shows
+//   ADMIN REMOVE <item number> ...          several at once are removed in one menu edit
+//   ADMIN STOCK <item number> <count, -1 for unlimited>
+//   ADMIN IMPORT <file>                     as admin option 4
+//   ADMIN EXPORT CSV|JSON|SNAPSHOT <file>   as admin option 5
+//   ADMIN REPORT                            the sales report
+//   ADMIN METRICS                           the hot-path metrics
+//   QUIT
+//
+// Admin requests aren't authenticated, and import and export read and write files on this machine,
+// so the server only listens on the loopback address unless given another one.
+class OrderServer implements Closeable {
+    static final int DEFAULT_PORT = 7070;
+    static final int MAX_LINE = 1024;
+    static final int MAX_PENDING_OUTPUT = 64 * 1024;
+    static final int MAX_ORDER_LINES = 1000;
+    private static final byte[] END = ".\n".getBytes(StandardCharsets.UTF_8);
+
+    private final OrderService service;
+    private final Admin admin;
+    private final SalesAnalytics analytics; // may be null
+    private final MenuSearchIndex searchIndex; // may be null
+    private final InvoiceWriter invoices; // may be null
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    // admin edits and file work, one at a time and in the order they came in
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "order-server-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // work finished on other threads, to be handed back to the selector thread
+    private final Queue<Runnable> completions = new ConcurrentLinkedQueue<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final MenuChangeListener preRenderer = (version, changes) -> preRender(version);
+    private volatile int connections;
+    private volatile boolean closed;
+
+    public OrderServer(OrderService service, Admin admin, SalesAnalytics analytics, MenuSearchIndex searchIndex,
+                       InvoiceWriter invoices, int port) throws IOException {
+        this(service, admin, analytics, searchIndex, invoices, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public OrderServer(OrderService service, Admin admin, SalesAnalytics analytics, MenuSearchIndex searchIndex,
+                       InvoiceWriter invoices, InetSocketAddress address) throws IOException {
+        this.service = service;
+        this.admin = admin;
+        this.analytics = analytics;
+        this.searchIndex = searchIndex;
+        this.invoices = invoices;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(address, 1024);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        preRender(service.getMenu().addChangeListener(preRenderer));
+    }
+
+    // renders the version's menu on the worker, so MENU finds it ready
+    private void preRender(MenuVersion version) {
+        if (closed) {
+            return;
+        }
+        try {
+            worker.execute(() -> version.getRenderCache().render(version));
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public int getConnectionCount() {
+        return connections;
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    // Serves connections on the calling thread until close() is called.
+    public void run() throws IOException {
+        try {
+            while (!closed) {
+                selector.select();
+                for (Runnable completion = completions.poll(); completion != null; completion = completions.poll()) {
+                    completion.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isWritable()) {
+                            connection.write();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                    } catch (IOException e) {
+                        connection.close(); // the client went away
+                    }
+                }
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            service.getMenu().removeChangeListener(preRenderer);
+            server.close();
+            selector.close();
+            worker.shutdown();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections++;
+        }
+    }
+
+    // runs the action on the selector thread
+    private void complete(Runnable action) {
+        completions.add(action);
+        selector.wakeup();
+    }
+
+    // Stops serving: run() closes every connection and returns. Orders not checked out are cancelled.
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    // A reply being built: lines of text, or a shared block of bytes such as the rendered menu.
+    private static final class Reply {
+        private final List<ByteBuffer> parts = new ArrayList<>(2);
+        private final StringBuilder text = new StringBuilder();
+
+        Reply line(String line) {
+            text.append(line).append('\n');
+            return this;
+        }
+
+        Reply bytes(byte[] bytes, int length) {
+            flushText();
+            parts.add(ByteBuffer.wrap(bytes, 0, length));
+            return this;
+        }
+
+        private void flushText() {
+            if (text.length() > 0) {
+                parts.add(ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8)));
+                text.setLength(0);
+            }
+        }
+
+        List<ByteBuffer> finish() {
+            flushText();
+            parts.add(ByteBuffer.wrap(END));
+            return parts;
+        }
+    }
+
+    private static Reply ok(String message) {
+        return new Reply().line("OK " + message);
+    }
+
+    private static Reply error(String message) {
+        return new Reply().line("ERR " + message);
+    }
+
+    private final class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private final ByteBuffer input = ByteBuffer.allocate(MAX_LINE);
+        private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+        private int pendingBytes;
+        private boolean discarding; // skipping the rest of a line that was too long
+        private boolean busy; // a reply is being worked out on another thread
+        private boolean quitting;
+        private boolean processing; // in processInput(), with the input buffer flipped
+        private boolean closed;
+        private OrderService.Session session = service.openSession();
+        private OrderService.Session checkedOut; // the last checked-out session, for INVOICE
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            int read = channel.read(input);
+            if (read < 0) {
+                close();
+                return;
+            }
+            processInput();
+        }
+
+        // Handles the complete lines in the input buffer, as long as the connection can take replies.
+        private void processInput() {
+            processing = true;
+            input.flip();
+            while (!busy && !quitting && !closed && pendingBytes < MAX_PENDING_OUTPUT) {
+                int end = -1;
+                for (int i = input.position(); i < input.limit(); i++) {
+                    if (input.get(i) == '\n') {
+                        end = i;
+                        break;
+                    }
+                }
+                if (end < 0) {
+                    break;
+                }
+                int start = input.position();
+                input.position(end + 1);
+                if (discarding) {
+                    discarding = false;
+                    send(error("Requests can be at most " + MAX_LINE + " bytes long."));
+                    continue;
+                }
+                int length = end > start && input.get(end - 1) == '\r' ? end - 1 - start : end - start;
+                String line = new String(input.array(), start, length, StandardCharsets.UTF_8);
+                requests.incrementAndGet();
+                handle(line.trim());
+            }
+            input.compact();
+            if (!input.hasRemaining() && !hasLineEnd()) {
+                // a full buffer without a line end: drop it and answer once the line ends
+                input.clear();
+                discarding = true;
+            }
+            processing = false;
+            updateInterest();
+        }
+
+        // whether the unprocessed input, after compact(), holds a whole request
+        private boolean hasLineEnd() {
+            for (int i = 0; i < input.position(); i++) {
+                if (input.get(i) == '\n') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // reads more only when the replies so far are out of the way
+        private void updateInterest() {
+            if (closed || !key.isValid()) {
+                return;
+            }
+            int interest = 0;
+            if (!busy && !quitting && pendingBytes < MAX_PENDING_OUTPUT) {
+                interest |= SelectionKey.OP_READ;
+            }
+            if (!output.isEmpty()) {
+                interest |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(interest);
+        }
+
+        private void send(Reply reply) {
+            for (ByteBuffer part : reply.finish()) {
+                output.add(part);
+                pendingBytes += part.remaining();
+            }
+            try {
+                write();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void write() throws IOException {
+            boolean wasBlocked = pendingBytes >= MAX_PENDING_OUTPUT;
+            while (!output.isEmpty()) {
+                ByteBuffer part = output.peek();
+                int written = channel.write(part);
+                pendingBytes -= written;
+                if (part.hasRemaining()) {
+                    break; // the socket is full, wait for OP_WRITE
+                }
+                output.poll();
+            }
+            if (output.isEmpty() && quitting) {
+                close();
+                return;
+            }
+            if (wasBlocked && !processing && pendingBytes < MAX_PENDING_OUTPUT) {
+                processInput(); // lines that arrived while the output was backed up
+            } else {
+                updateInterest();
+            }
+        }
+
+        // Runs the work on the worker thread and sends its reply when done.
+        private void offload(java.util.concurrent.Callable<Reply> work) {
+            busy = true;
+            updateInterest();
+            worker.execute(() -> {
+                Reply reply;
+                try {
+                    reply = work.call();
+                } catch (Exception e) {
+                    reply = error(e.getMessage() != null ? e.getMessage() : e.toString());
+                }
+                Reply done = reply;
+                complete(() -> finish(done));
+            });
+        }
+
+        // sends a reply that was worked out on another thread and goes back to reading requests
+        private void finish(Reply reply) {
+            if (closed) {
+                return;
+            }
+            busy = false;
+            send(reply);
+            if (!closed) {
+                processInput();
+            }
+        }
+
+        // Sends reply(result) once the result is ready. The reply is made on the selector thread, so
+        // it can use the connection's state.
+        private <T> void whenDone(CompletableFuture<T> result, java.util.function.Function<T, Reply> reply) {
+            java.util.function.Function<T, Reply> safeReply = done -> {
+                try {
+                    return reply.apply(done);
+                } catch (RuntimeException e) {
+                    return error(e.getMessage());
+                }
+            };
+            if (result.isDone() && !result.isCompletedExceptionally()) {
+                send(safeReply.apply(result.join()));
+                return;
+            }
+            busy = true;
+            updateInterest();
+            result.whenComplete((done, failure) -> complete(() -> {
+                Throwable cause = failure instanceof java.util.concurrent.CompletionException && failure.getCause() != null
+                        ? failure.getCause() : failure;
+                finish(failure != null ? error(cause.getMessage()) : safeReply.apply(done));
+            }));
+        }
+
+        private void handle(String line) {
+            String[] words = line.split(" +", 2);
+            String command = words[0].toUpperCase(Locale.ROOT);
+            String rest = words.length > 1 ? words[1] : "";
+            try {
+                switch (command) {
+                    case "MENU": {
+                        MenuVersion version = session.getMenuVersion();
+                        if (version.getRenderCache().isRendered()) {
+                            send(menu(version));
+                        } else {
+                            offload(() -> menu(version)); // rendering a large menu takes a while
+                        }
+                        break;
+                    }
+                    case "ADD":
+                        add(rest);
+                        break;
+                    case "ORDER": {
+                        Reply reply = ok("order " + session.getId());
+                        if (session.getOrder().getPriceBreakdown().getSubtotal() > Main.TEA_OFFER_THRESHOLD) {
+                            reply.line("Your order exceeds 50000: ADD 2 Tea and you pay for 1.");
+                        }
+                        send(invoice(reply, session.getOrder()));
+                        break;
+                    }
+                    case "CHECKOUT":
+                        checkout();
+                        break;
+                    case "INVOICE":
+                        printInvoice();
+                        break;
+                    case "CANCEL":
+                        session.cancel();
+                        session.getOrder().release();
+                        session = service.openSession();
+                        send(ok("Your order has been cancelled."));
+                        break;
+                    case "SEARCH":
+                        search(rest);
+                        break;
+                    case "ADMIN":
+                        admin(rest);
+                        break;
+                    case "QUIT":
+                        send(ok("Thank you for visiting our restaurant."));
+                        quitting = true;
+                        if (output.isEmpty()) {
+                            close();
+                        }
+                        break;
+                    case "":
+                        send(error("Empty request."));
+                        break;
+                    default:
+                        send(error("Unknown request " + words[0] + "."));
+                }
+            } catch (NumberFormatException e) {
+                send(error("Not a number: " + e.getMessage()));
+            } catch (RuntimeException e) {
+                send(error(e.getMessage() != null ? e.getMessage() : e.toString()));
+            }
+        }
+
+        private void add(String arguments) {
+            String[] words = arguments.split(" +", 2);
+            if (words.length < 2) {
+                send(error("Usage: ADD <quantity> <item name>"));
+                return;
+            }
+            int quantity = Integer.parseInt(words[0]);
+            MenuItem item = session.findItem(words[1]);
+            if (item == null) {
+                Reply reply = error("Invalid item name.");
+                String suggestions = suggest(words[1]);
+                if (!suggestions.isEmpty()) {
+                    reply.line("Did you mean: " + suggestions + "?");
+                }
+                send(reply);
+            } else if (quantity <= 0) {
+                send(error("Please order at least 1."));
+            } else if (session.getOrder().getLines().size() >= MAX_ORDER_LINES
+                    && session.getOrder().getLines().indexOf(item.getKey()) < 0) {
+                send(error("An order can have at most " + MAX_ORDER_LINES + " different items."));
+            } else if (session.addItem(item, quantity)) {
+                send(ok("You added " + quantity + " " + item.getName() + " to your order."));
+            } else {
+                Inventory inventory = service.getInventory();
+                send(error(inventory != null ? "Sorry, only " + inventory.getStock(item.getKey()) + " " + item.getName() + " left."
+                        : "Could not add " + item.getName() + "."));
+            }
+        }
+
+        private String suggest(String name) {
+            if (searchIndex == null) {
+                return "";
+            }
+            StringBuilder names = new StringBuilder();
+            for (MenuItem suggestion : searchIndex.search(session.getMenuVersion(), name, 3)) {
+                names.append(names.length() > 0 ? ", " : "").append(suggestion.getName());
+            }
+            return names.toString();
+        }
+
+        private void search(String text) {
+            Reply reply = ok("search");
+            if (searchIndex != null && !text.isEmpty()) {
+                for (MenuItem item : searchIndex.search(session.getMenuVersion(), text, 10)) {
+                    reply.line(item.getName() + " $" + Money.format(item.getPrice()));
+                }
+            }
+            send(reply);
+        }
+
+        private Reply invoice(Reply reply, Order order) {
+            InvoiceBuffer invoice = InvoiceRenderer.DEFAULT.render(order);
+            try {
+                // copied, so the pooled buffer can go back straight away
+                return reply.bytes(Arrays.copyOf(invoice.array(), invoice.length()), invoice.length());
+            } finally {
+                invoice.release();
+            }
+        }
+
+        private Reply menu(MenuVersion version) {
+            byte[] menu = version.getRenderCache().render(version);
+            return ok("menu version " + version.getNumber()).bytes(menu, menu.length);
+        }
+
+        private void checkout() {
+            OrderService.Session checking = session;
+            if (checking.getOrder().getLines().size() == 0) {
+                send(error("Your order is empty."));
+                return;
+            }
+            session = service.openSession();
+            whenDone(checking.checkoutAsync(), price -> {
+                if (closed) {
+                    checking.getOrder().release();
+                    return null;
+                }
+                if (checkedOut != null) {
+                    checkedOut.getOrder().release();
+                }
+                checkedOut = checking;
+                return invoice(ok("order " + checking.getId() + " total $" + Money.format(price.getTotal())), checking.getOrder());
+            });
+        }
+
+        private void printInvoice() {
+            if (checkedOut == null) {
+                send(error("No order has been checked out yet."));
+                return;
+            }
+            if (invoices == null) {
+                send(error("Invoices can't be printed."));
+                return;
+            }
+            whenDone(invoices.write(checkedOut.getId(), InvoiceRenderer.DEFAULT.render(checkedOut.getOrder())),
+                    path -> ok("Invoice has been printed to " + path));
+        }
+
+        private void admin(String arguments) {
+            String[] words = arguments.split(" +", 2);
+            String command = words[0].toUpperCase(Locale.ROOT);
+            String rest = words.length > 1 ? words[1] : "";
+            if (admin.getReadOnlyReason() != null
+                    && (command.equals("ADD") || command.equals("UPDATE") || command.equals("REMOVE"))) {
+                send(error(admin.getReadOnlyReason()));
+                return;
+            }
+            switch (command) {
+                case "ADD": {
+                    String[] fields = rest.split(" +", 4);
+                    if (fields.length < 4) {
+                        send(error("Usage: ADMIN ADD FOOD|DRINK <price> <type> <name>"));
+                        return;
+                    }
+                    long price = Money.fromDouble(Double.parseDouble(fields[1]));
+                    MenuItem item;
+                    if (fields[0].equalsIgnoreCase("FOOD")) {
+                        item = new Food(fields[3], price, fields[2]);
+                    } else if (fields[0].equalsIgnoreCase("DRINK")) {
+                        item = new Drink(fields[3], price, fields[2]);
+                    } else {
+                        send(error("The category is FOOD or DRINK."));
+                        return;
+                    }
+                    offload(() -> {
+                        admin.addItem((MenuDisplayable) item);
+                        return ok("Item added successfully.");
+                    });
+                    break;
+                }
+                case "UPDATE": {
+                    String[] fields = rest.split(" +", 3);
+                    if (fields.length < 3) {
+                        send(error("Usage: ADMIN UPDATE <item number> <price> <name>"));
+                        return;
+                    }
+                    long number = Menu.parseKey(fields[0]);
+                    long price = Money.fromDouble(Double.parseDouble(fields[1]));
+                    offload(() -> admin.updateItem(number, fields[2], price)
+                            ? ok("Item updated successfully.") : error("Invalid item number."));
+                    break;
+                }
+                case "REMOVE": {
+                    String[] fields = rest.trim().split(" +");
+                    long[] numbers = new long[fields.length];
+                    for (int i = 0; i < fields.length; i++) {
+                        numbers[i] = Menu.parseKey(fields[i]);
+                    }
+                    offload(() -> {
+                        int removed = admin.removeItems(numbers); // one menu edit however many there are
+                        if (removed == 0) {
+                            return error("Invalid item number.");
+                        }
+                        return ok(numbers.length == 1 ? "Item removed successfully."
+                                : removed + " of " + numbers.length + " items removed.");
+                    });
+                    break;
+                }
+                case "STOCK": {
+                    String[] fields = rest.split(" +", 2);
+                    if (fields.length < 2) {
+                        send(error("Usage: ADMIN STOCK <item number> <count>"));
+                        return;
+                    }
+                    MenuItem item = service.getMenu().getItemByKey(Menu.parseKey(fields[0]));
+                    int count = Integer.parseInt(fields[1]);
+                    if (service.getInventory() == null) {
+                        send(error("Stock isn't tracked."));
+                    } else if (item != null) {
+                        service.getInventory().setStock(item.getKey(), count < 0 ? Inventory.UNLIMITED : count);
+                        send(ok("Stock of " + item.getName() + " set to " + (count < 0 ? "unlimited" : count) + "."));
+                    } else {
+                        send(error("Invalid item number."));
+                    }
+                    break;
+                }
+                case "IMPORT": {
+                    Path path = Paths.get(rest.trim());
+                    offload(() -> {
+                        MenuImporter.Result result = MenuImporter.importFile(path, admin);
+                        Reply reply = ok("Menu imported successfully. " + result.getAdded() + " items added, "
+                                + result.getUpdated() + " updated, " + result.getUnchanged() + " already on the menu.");
+                        if (!result.getRejects().isEmpty()) {
+                            Path report = MenuImporter.writeRejectReport(path, result.getRejects());
+                            reply.line(result.getRejects().size() + " rows were rejected, see " + report + " for details.");
+                        }
+                        return reply;
+                    });
+                    break;
+                }
+                case "EXPORT": {
+                    String[] fields = rest.split(" +", 2);
+                    if (fields.length < 2) {
+                        send(error("Usage: ADMIN EXPORT CSV|JSON|SNAPSHOT <file>"));
+                        return;
+                    }
+                    MenuExporter.Format format;
+                    switch (fields[0].toUpperCase(Locale.ROOT)) {
+                        case "CSV":
+                            format = MenuExporter.CSV;
+                            break;
+                        case "JSON":
+                            format = MenuExporter.JSON_LINES;
+                            break;
+                        case "SNAPSHOT":
+                            format = MenuExporter.SNAPSHOT;
+                            break;
+                        default:
+                            send(error("The format is CSV, JSON or SNAPSHOT."));
+                            return;
+                    }
+                    Path path = Paths.get(fields[1]);
+                    offload(() -> {
+                        MenuExporter.Result result = MenuExporter.export(service.getMenu(), path, format);
+                        Reply reply = ok("Menu exported successfully. " + result.getItems() + " items written as " + format.getName() + ".");
+                        if (result.getSkipped() > 0) {
+                            reply.line(result.getSkipped() + " items can't be written as " + format.getName() + " and were skipped.");
+                        }
+                        return reply;
+                    });
+                    break;
+                }
+                case "REPORT":
+                    if (analytics == null) {
+                        send(error("Sales aren't recorded."));
+                    } else {
+                        send(ok("sales report").line(print(analytics::printReport)));
+                    }
+                    break;
+                case "METRICS":
+                    send(ok("metrics").line(print(Metrics.DEFAULT::writeText)));
+                    break;
+                default:
+                    send(error("Unknown admin request " + words[0] + "."));
+            }
+        }
+
+        private String print(java.util.function.Consumer<PrintStream> report) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            PrintStream out = new PrintStream(bytes, false, StandardCharsets.UTF_8);
+            report.accept(out);
+            out.flush();
+            String text = bytes.toString(StandardCharsets.UTF_8);
+            return text.endsWith("\n") ? text.substring(0, text.length() - 1) : text;
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            connections--;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+            session.cancel(); // gives back its reserved stock
+            session.getOrder().release();
+            if (checkedOut != null) {
+                checkedOut.getOrder().release();
+            }
+        }
+    }
+}
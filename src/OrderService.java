@@ -0,0 +1,245 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+// Serves ordering sessions against one shared menu. Each customer gets a Session holding their own
+// Order. A session is pinned to the menu version that was current when it opened, so the customer
+// orders from one consistent menu even while an admin edits it.
+class OrderService {
+    // Told about every order once it has been checked out (and recorded in the journal, if any).
+    // Called on the checking-out thread, or for an async checkout on its executor, so it should be
+    // quick and thread safe.
+    interface CheckoutListener {
+        void orderCompleted(long orderId, Order order, PriceBreakdown price);
+    }
+
+    private final Menu menu;
+    private final PromotionEngine promotions;
+    private final OrderJournal journal; // may be null
+    private final Inventory inventory; // may be null
+    private final AtomicLong nextSessionId;
+    private final AtomicLong completedOrders = new AtomicLong();
+    private final CopyOnWriteArrayList<CheckoutListener> listeners = new CopyOnWriteArrayList<>();
+
+    public OrderService(Menu menu, PromotionEngine promotions) {
+        this(menu, promotions, null, 1);
+    }
+
+    // Completed orders are written to the journal before checkout returns. Session (and so order)
+    // ids start at firstSessionId, so they don't repeat ids already in the journal.
+    public OrderService(Menu menu, PromotionEngine promotions, OrderJournal journal, long firstSessionId) {
+        this(menu, promotions, journal, firstSessionId, null);
+    }
+
+    // With an inventory, adding an item to an order reserves its stock, and cancelling the order
+    // puts the stock back.
+    public OrderService(Menu menu, PromotionEngine promotions, OrderJournal journal, long firstSessionId, Inventory inventory) {
+        this.menu = menu;
+        this.promotions = promotions;
+        this.journal = journal;
+        this.inventory = inventory;
+        this.nextSessionId = new AtomicLong(firstSessionId);
+    }
+
+    public Menu getMenu() {
+        return menu;
+    }
+
+    public Inventory getInventory() {
+        return inventory;
+    }
+
+    public Session openSession() {
+        return new Session(nextSessionId.getAndIncrement(), new Order(promotions, menu.current()));
+    }
+
+    public void addCheckoutListener(CheckoutListener listener) {
+        listeners.add(listener);
+    }
+
+    private void completed(long orderId, Order order, PriceBreakdown price) {
+        completedOrders.incrementAndGet();
+        for (CheckoutListener listener : listeners) {
+            listener.orderCompleted(orderId, order, price);
+        }
+    }
+
+    public PromotionEngine getPromotions() {
+        return promotions;
+    }
+
+    public long getCompletedOrders() {
+        return completedOrders.get();
+    }
+
+    // One virtual thread per session when the JDK has them (21+), otherwise a pool of platform
+    // threads sized for the mostly CPU-bound sessions.
+    public static ExecutorService newSessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2);
+        }
+    }
+
+    // A single customer's order. Not shared between threads, except that an async checkout finishes
+    // on its executor.
+    class Session {
+        private final long id;
+        private final Order order;
+        private volatile PriceBreakdown checkout; // set once the order is durable
+        private volatile CompletableFuture<PriceBreakdown> pending; // an async checkout still syncing
+        private boolean cancelled;
+
+        private Session(long id, Order order) {
+            this.id = id;
+            this.order = order;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public Order getOrder() {
+            return order;
+        }
+
+        public MenuVersion getMenuVersion() {
+            return order.getMenuVersion();
+        }
+
+        public MenuItem findItem(String name) {
+            return order.getMenuVersion().findItem(name);
+        }
+
+        // returns the item that was added, or null if there is no such item or not enough of it
+        public MenuItem addItem(String name, int quantity) {
+            MenuItem item = findItem(name);
+            if (item != null && addItem(item, quantity)) {
+                return item;
+            }
+            return null;
+        }
+
+        // Returns false if there isn't enough stock left (or the order can't take the item).
+        // Adding an item that is already in the order adds to its quantity.
+        public boolean addItem(MenuItem item, int quantity) {
+            if (checkout != null || cancelled) {
+                throw new IllegalStateException("Session " + id + " is already " + (cancelled ? "cancelled" : "checked out"));
+            }
+            if (inventory == null || quantity <= 0) {
+                return order.addItem(item, quantity); // refuses a quantity below 1 itself
+            }
+            if (!inventory.reserve(item.getKey(), quantity)) {
+                return false;
+            }
+            if (!order.addItem(item, quantity)) {
+                inventory.release(item.getKey(), quantity);
+                return false;
+            }
+            return true;
+        }
+
+        // Drops the order and gives its reserved stock back. Does nothing once checked out.
+        public void cancel() {
+            if (checkout != null || cancelled) {
+                return;
+            }
+            cancelled = true;
+            if (inventory != null) {
+                OrderLines lines = order.getLines();
+                for (int line = 0; line < lines.size(); line++) {
+                    inventory.release(lines.getItemKey(line), lines.getQuantity(line));
+                }
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        // Prices the order and, if there is a journal, waits until the order is durable in it.
+        public PriceBreakdown checkout() {
+            if (cancelled) {
+                throw new IllegalStateException("Session " + id + " is cancelled");
+            }
+            CompletableFuture<PriceBreakdown> syncing = pending;
+            if (checkout == null && syncing != null) {
+                try {
+                    return syncing.join();
+                } catch (CompletionException e) {
+                    throw (UncheckedIOException) e.getCause();
+                }
+            }
+            if (checkout == null) {
+                PriceBreakdown price = order.getPriceBreakdown();
+                if (journal != null) {
+                    try {
+                        journal.appendAndSync(id, order);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Could not record order " + id, e);
+                    }
+                }
+                checkout = price;
+                completed(id, order, price);
+            }
+            return checkout;
+        }
+
+        // Like checkout(), but doesn't block the calling thread while the journal syncs. The session
+        // only counts as checked out once the journal write has succeeded; if it fails, the future
+        // fails and the order can be checked out again. The checkout listeners, and whatever is
+        // chained onto the future, run on CompletableFuture's default async pool.
+        public CompletableFuture<PriceBreakdown> checkoutAsync() {
+            return checkoutAsync(null);
+        }
+
+        // Like checkoutAsync(), with the listeners and the future's dependents on the given
+        // executor (the session executor, say) instead of the default pool.
+        public CompletableFuture<PriceBreakdown> checkoutAsync(Executor executor) {
+            CompletableFuture<PriceBreakdown> syncing = pending;
+            if (syncing != null) {
+                return syncing;
+            }
+            if (checkout != null || journal == null || cancelled) {
+                return CompletableFuture.completedFuture(checkout());
+            }
+            PriceBreakdown price = order.getPriceBreakdown();
+            CompletableFuture<PriceBreakdown> future = new CompletableFuture<>();
+            pending = future;
+            BiConsumer<Void, Throwable> finish = (done, failure) -> {
+                if (failure != null) {
+                    Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+                    pending = null;
+                    future.completeExceptionally(new UncheckedIOException("Could not record order " + id,
+                            cause instanceof IOException ? (IOException) cause : new IOException(cause)));
+                    return;
+                }
+                checkout = price;
+                pending = null;
+                completed(id, order, price);
+                future.complete(price);
+            };
+            // never on the journal's thread: a listener that waits (the search index's lock during
+            // a rebuild, say) would hold up the fsync of every order behind it
+            CompletableFuture<Void> durable = journal.appendAsync(id, order);
+            if (executor != null) {
+                durable.whenCompleteAsync(finish, executor);
+            } else {
+                durable.whenCompleteAsync(finish);
+            }
+            return future;
+        }
+
+        public boolean isCheckedOut() {
+            return checkout != null;
+        }
+    }
+}
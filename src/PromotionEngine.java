@@ -0,0 +1,438 @@
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.*;
+
+// A promotion declared as data. Every rule can be limited to orders whose subtotal exceeds
+// minSubtotal, to a daily time window [start, end) and to some days of the week. A window that
+// ends before it starts wraps past midnight; start == end means all day. The days are the days the
+// minute falls on, so the after-midnight part of a Friday night window needs Saturday too.
+class PromotionRule {
+    enum Kind {
+        ORDER_PERCENT,    // percent off the whole order
+        CATEGORY_PERCENT, // percent off every item in a category
+        CATEGORY_AMOUNT,  // a fixed amount off an order with items in a category, at most their price
+        BUY_ONE_GET_ONE   // every second unit of an item is free
+    }
+
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    private static final int ALL_DAYS = (1 << 7) - 1; // a bit per DayOfWeek.ordinal()
+
+    private final String name;
+    private final Kind kind;
+    private final int percent;
+    private final long amount; // CATEGORY_AMOUNT only
+    private final long minSubtotal;
+    private final Category category;
+    private final int itemId;
+    private final int itemGeneration; // so the rule doesn't pass to a new item that reuses the id
+    private final int startMinute;
+    private final int endMinute;
+    private final int days;
+
+    private PromotionRule(String name, Kind kind, int percent, long amount, long minSubtotal, Category category, int itemId,
+                          int itemGeneration, int startMinute, int endMinute, int days) {
+        if (percent < 0 || percent > 100) {
+            throw new IllegalArgumentException("Percent must be between 0 and 100: " + percent);
+        }
+        if (amount < 0) {
+            throw new IllegalArgumentException("Amount can't be negative: " + amount);
+        }
+        this.name = name;
+        this.kind = kind;
+        this.percent = percent;
+        this.amount = amount;
+        this.minSubtotal = minSubtotal;
+        this.category = category;
+        this.itemId = itemId;
+        this.itemGeneration = itemGeneration;
+        this.startMinute = startMinute;
+        this.endMinute = endMinute;
+        this.days = days;
+    }
+
+    public static PromotionRule orderDiscount(String name, long minSubtotal, int percent) {
+        return new PromotionRule(name, Kind.ORDER_PERCENT, percent, 0, minSubtotal, null, -1, 0, 0, 0, ALL_DAYS);
+    }
+
+    public static PromotionRule categoryDiscount(String name, Category category, long minSubtotal, int percent) {
+        return new PromotionRule(name, Kind.CATEGORY_PERCENT, percent, 0, minSubtotal, category, -1, 0, 0, 0, ALL_DAYS);
+    }
+
+    public static PromotionRule categoryAmountOff(String name, Category category, long minSubtotal, long amount) {
+        return new PromotionRule(name, Kind.CATEGORY_AMOUNT, 0, amount, minSubtotal, category, -1, 0, 0, 0, ALL_DAYS);
+    }
+
+    public static PromotionRule buyOneGetOne(String name, MenuItem item, long minSubtotal) {
+        return new PromotionRule(name, Kind.BUY_ONE_GET_ONE, 0, 0, minSubtotal, item.getCategory(), item.getId(), item.getGeneration(),
+                0, 0, ALL_DAYS);
+    }
+
+    // the same rule, only active between start and end
+    public PromotionRule during(LocalTime start, LocalTime end) {
+        return new PromotionRule(name, kind, percent, amount, minSubtotal, category, itemId, itemGeneration, minuteOfDay(start),
+                minuteOfDay(end), days);
+    }
+
+    // the same rule, only active on these days
+    public PromotionRule on(DayOfWeek first, DayOfWeek... rest) {
+        int mask = 1 << first.ordinal();
+        for (DayOfWeek day : rest) {
+            mask |= 1 << day.ordinal();
+        }
+        return new PromotionRule(name, kind, percent, amount, minSubtotal, category, itemId, itemGeneration, startMinute, endMinute, mask);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public int getPercent() {
+        return percent;
+    }
+
+    public long getAmount() {
+        return amount;
+    }
+
+    public long getMinSubtotal() {
+        return minSubtotal;
+    }
+
+    public Category getCategory() {
+        return category;
+    }
+
+    public int getItemId() {
+        return itemId;
+    }
+
+    public int getItemGeneration() {
+        return itemGeneration;
+    }
+
+    public int getStartMinute() {
+        return startMinute;
+    }
+
+    public int getEndMinute() {
+        return endMinute;
+    }
+
+    public boolean isActiveOn(DayOfWeek day) {
+        return (days & 1 << day.ordinal()) != 0;
+    }
+
+    public boolean isActiveAt(DayOfWeek day, int minute) {
+        return isActiveOn(day) && isActiveAt(minute);
+    }
+
+    // ignoring the days
+    public boolean isActiveAt(int minute) {
+        if (startMinute == endMinute) {
+            return true;
+        }
+        if (startMinute < endMinute) {
+            return minute >= startMinute && minute < endMinute;
+        }
+        return minute >= startMinute || minute < endMinute;
+    }
+
+    static int minuteOfDay(LocalTime time) {
+        return time.getHour() * 60 + time.getMinute();
+    }
+
+    static int minutesPerDay() {
+        return MINUTES_PER_DAY;
+    }
+}
+
+// Holds the declared rules and hands out the compiled plan for the current time. Each day is cut
+// into segments at every window boundary; the set of active rules is constant inside a segment of
+// a given day, so each segment is compiled once and reused until the clock leaves it.
+class PromotionEngine {
+    private final List<PromotionRule> rules;
+    private final int[] boundaries;
+    private volatile PromotionPlan currentPlan;
+    private volatile PlanForMinute planForMinute; // what currentPlan() returned this minute
+
+    // LocalTime.now() costs more than pricing a small order, so the clock is read once a minute
+    private static final class PlanForMinute {
+        final long epochMinute;
+        final PromotionPlan plan;
+
+        PlanForMinute(long epochMinute, PromotionPlan plan) {
+            this.epochMinute = epochMinute;
+            this.plan = plan;
+        }
+    }
+
+    public PromotionEngine(List<PromotionRule> rules) {
+        this.rules = List.copyOf(rules);
+        TreeSet<Integer> cuts = new TreeSet<>();
+        cuts.add(0);
+        cuts.add(PromotionRule.minutesPerDay());
+        for (PromotionRule rule : this.rules) {
+            cuts.add(rule.getStartMinute());
+            cuts.add(rule.getEndMinute());
+        }
+        this.boundaries = new int[cuts.size()];
+        int i = 0;
+        for (int cut : cuts) {
+            boundaries[i++] = cut;
+        }
+    }
+
+    public List<PromotionRule> getRules() {
+        return rules;
+    }
+
+    public PromotionPlan currentPlan() {
+        long epochMinute = System.currentTimeMillis() / 60_000;
+        PlanForMinute cached = planForMinute;
+        if (cached != null && cached.epochMinute == epochMinute) {
+            return cached.plan;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        PromotionPlan plan = planAt(now.getDayOfWeek(), PromotionRule.minuteOfDay(now.toLocalTime()));
+        planForMinute = new PlanForMinute(epochMinute, plan);
+        return plan;
+    }
+
+    public PromotionPlan planAt(DayOfWeek day, int minute) {
+        PromotionPlan plan = currentPlan;
+        if (plan == null || plan.getDay() != day || minute < plan.getFromMinute() || minute >= plan.getToMinute()) {
+            int segment = Arrays.binarySearch(boundaries, minute);
+            if (segment < 0) {
+                segment = -segment - 2;
+            }
+            plan = new PromotionPlan(rules, day, boundaries[segment], boundaries[segment + 1]);
+            currentPlan = plan;
+        }
+        return plan;
+    }
+}
+
+// The rules active in one time segment, flattened into arrays. Pricing an order is at most one pass
+// over its lines and a few binary searches, so the cost doesn't grow with the number of rules.
+//
+// All rules are computed on list prices and stack: buy-one-get-one and category discounts first,
+// then the best order discount on what is left. Of several category percent or amount rules for
+// the same category, only the best one the subtotal qualifies for applies.
+class PromotionPlan {
+    private final DayOfWeek day;
+    private final int fromMinute;
+    private final int toMinute;
+
+    // order discounts: thresholds ascending, best percent for any threshold up to that one
+    private final long[] orderThresholds;
+    private final int[] orderPercents;
+
+    // same for each category, indexed by Category.ordinal()
+    private final long[][] categoryThresholds;
+    private final int[][] categoryPercents;
+
+    // fixed amounts off per category, thresholds ascending and best amount up to that one
+    private final long[][] amountThresholds;
+    private final long[][] categoryAmounts;
+    private final List<String> ruleNames;
+
+    // buy-one-get-one: item id -> tier, tiers ordered by their minimum subtotal, and the generation
+    // the item with that id must have
+    private final int[] bogoTierByItem;
+    private final int[] bogoGenerationByItem;
+    private final long[] bogoTierThresholds;
+
+    PromotionPlan(List<PromotionRule> rules, DayOfWeek day, int fromMinute, int toMinute) {
+        this.day = day;
+        this.fromMinute = fromMinute;
+        this.toMinute = toMinute;
+
+        List<PromotionRule> orderRules = new ArrayList<>();
+        List<List<PromotionRule>> categoryRules = new ArrayList<>();
+        List<List<PromotionRule>> amountRules = new ArrayList<>();
+        for (int i = 0; i < Category.values().length; i++) {
+            categoryRules.add(new ArrayList<>());
+            amountRules.add(new ArrayList<>());
+        }
+        // buy-one-get-one: the easiest rule for each item, keyed by item id. Rules for an item that
+        // has since been removed share its id with its successor; the easiest one decides both the
+        // threshold and which of them gets the offer.
+        Map<Integer, PromotionRule> bogoByItem = new HashMap<>();
+        List<String> names = new ArrayList<>();
+        for (PromotionRule rule : rules) {
+            if (!rule.isActiveAt(day, fromMinute)) {
+                continue;
+            }
+            names.add(rule.getName());
+            switch (rule.getKind()) {
+                case ORDER_PERCENT:
+                    orderRules.add(rule);
+                    break;
+                case CATEGORY_PERCENT:
+                    categoryRules.get(rule.getCategory().ordinal()).add(rule);
+                    break;
+                case CATEGORY_AMOUNT:
+                    amountRules.get(rule.getCategory().ordinal()).add(rule);
+                    break;
+                case BUY_ONE_GET_ONE:
+                    bogoByItem.merge(rule.getItemId(), rule, (a, b) -> b.getMinSubtotal() < a.getMinSubtotal() ? b : a);
+                    break;
+            }
+        }
+        this.ruleNames = List.copyOf(names);
+
+        this.orderThresholds = thresholds(orderRules);
+        this.orderPercents = bestPercents(orderRules);
+        this.categoryThresholds = new long[categoryRules.size()][];
+        this.categoryPercents = new int[categoryRules.size()][];
+        for (int i = 0; i < categoryRules.size(); i++) {
+            categoryThresholds[i] = thresholds(categoryRules.get(i));
+            categoryPercents[i] = bestPercents(categoryRules.get(i));
+        }
+        this.amountThresholds = new long[amountRules.size()][];
+        this.categoryAmounts = new long[amountRules.size()][];
+        for (int i = 0; i < amountRules.size(); i++) {
+            amountThresholds[i] = thresholds(amountRules.get(i));
+            categoryAmounts[i] = bestAmounts(amountRules.get(i));
+        }
+
+        TreeSet<Long> tiers = new TreeSet<>();
+        int maxItemId = -1;
+        for (PromotionRule rule : bogoByItem.values()) {
+            tiers.add(rule.getMinSubtotal());
+            maxItemId = Math.max(maxItemId, rule.getItemId());
+        }
+        this.bogoTierThresholds = new long[tiers.size()];
+        int t = 0;
+        for (long threshold : tiers) {
+            bogoTierThresholds[t++] = threshold;
+        }
+        this.bogoTierByItem = new int[maxItemId + 1];
+        this.bogoGenerationByItem = new int[maxItemId + 1];
+        Arrays.fill(bogoTierByItem, -1);
+        for (PromotionRule rule : bogoByItem.values()) {
+            if (rule.getItemId() >= 0) {
+                bogoTierByItem[rule.getItemId()] = Arrays.binarySearch(bogoTierThresholds, rule.getMinSubtotal());
+                bogoGenerationByItem[rule.getItemId()] = rule.getItemGeneration();
+            }
+        }
+    }
+
+    public DayOfWeek getDay() {
+        return day;
+    }
+
+    // names of the rules active in this plan, in the order they were declared
+    public List<String> getRuleNames() {
+        return ruleNames;
+    }
+
+    public int getFromMinute() {
+        return fromMinute;
+    }
+
+    public int getToMinute() {
+        return toMinute;
+    }
+
+    // Prices the lines at the unit prices they were added with. The subtotals come from the running
+    // totals OrderLines keeps, so only buy-one-get-one needs a pass over the lines, and nothing is
+    // allocated but the breakdown itself. Units made free by buy-one-get-one are taken out of
+    // their category's amount before the category rules apply, so a free unit isn't discounted twice.
+    public PriceBreakdown price(OrderLines lines, int taxPercent, long serviceFee) {
+        long subtotal = lines.getSubtotal();
+        long discount = 0;
+        boolean bogo = bogoTierThresholds.length > 0 && bogoTierThresholds[0] < subtotal;
+        for (int c = 0; c < categoryThresholds.length; c++) {
+            long free = bogo ? freeUnitsAmount(lines, c, subtotal) : 0;
+            discount += free;
+            long categoryAmount = lines.getCategoryAmount(c) - free;
+            discount += Money.percent(categoryAmount, bestPercent(categoryThresholds[c], categoryPercents[c], subtotal));
+            int qualified = qualifiedRules(amountThresholds[c], subtotal);
+            if (qualified > 0) {
+                discount += Math.min(categoryAmounts[c][qualified - 1], categoryAmount);
+            }
+        }
+        discount = Math.min(discount, subtotal);
+        discount += Money.percent(subtotal - discount, bestPercent(orderThresholds, orderPercents, subtotal));
+
+        long tax = Money.percent(subtotal - discount, taxPercent);
+        return new PriceBreakdown(subtotal, discount, tax, serviceFee);
+    }
+
+    // what buy-one-get-one takes off the lines of one category: a pass over the lines per category,
+    // and there are only a few
+    private long freeUnitsAmount(OrderLines lines, int categoryOrdinal, long subtotal) {
+        long free = 0;
+        for (int line = 0; line < lines.size(); line++) {
+            if (lines.getCategoryOrdinal(line) != categoryOrdinal) {
+                continue;
+            }
+            long key = lines.getItemKey(line);
+            int id = Menu.keyId(key);
+            if (id >= 0 && id < bogoTierByItem.length && bogoTierByItem[id] >= 0 && bogoTierThresholds[bogoTierByItem[id]] < subtotal
+                    && Menu.keyGeneration(key) == bogoGenerationByItem[id]) {
+                free += lines.getPrice(line) * (lines.getQuantity(line) / 2);
+            }
+        }
+        return free;
+    }
+
+    // best percent among the rules whose threshold the subtotal exceeds
+    private static int bestPercent(long[] thresholds, int[] percents, long subtotal) {
+        int qualified = qualifiedRules(thresholds, subtotal);
+        return qualified > 0 ? percents[qualified - 1] : 0;
+    }
+
+    // how many of the ascending thresholds the subtotal exceeds
+    private static int qualifiedRules(long[] thresholds, long subtotal) {
+        // find the first threshold the subtotal does not exceed
+        int low = 0;
+        int high = thresholds.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (thresholds[mid] < subtotal) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static long[] thresholds(List<PromotionRule> rules) {
+        rules.sort(Comparator.comparingLong(PromotionRule::getMinSubtotal));
+        long[] thresholds = new long[rules.size()];
+        for (int i = 0; i < thresholds.length; i++) {
+            thresholds[i] = rules.get(i).getMinSubtotal();
+        }
+        return thresholds;
+    }
+
+    // expects rules already sorted by thresholds()
+    private static int[] bestPercents(List<PromotionRule> rules) {
+        int[] percents = new int[rules.size()];
+        int best = 0;
+        for (int i = 0; i < percents.length; i++) {
+            best = Math.max(best, rules.get(i).getPercent());
+            percents[i] = best;
+        }
+        return percents;
+    }
+
+    // expects rules already sorted by thresholds()
+    private static long[] bestAmounts(List<PromotionRule> rules) {
+        long[] amounts = new long[rules.size()];
+        long best = 0;
+        for (int i = 0; i < amounts.length; i++) {
+            best = Math.max(best, rules.get(i).getAmount());
+            amounts[i] = best;
+        }
+        return amounts;
+    }
+}
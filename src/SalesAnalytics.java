@@ -0,0 +1,318 @@
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Running sales figures over completed orders. Every counter is a LongAdder, so any number of
+// checkout threads can record at once without contending on a lock. Memory stays bounded: at most
+// one entry per menu slot, one per category, a fixed ring of per-minute buckets and a fixed-size
+// histogram of order values.
+//
+// Item totals live in pages of atomic arrays indexed by item id, like Inventory's counts, so
+// recording a line boxes nothing. An entry belongs to one generation of its slot: a newer item in
+// the slot replaces it and starts from zero, and a late sale of the older item only counts towards
+// its category. Registered with the menu (menu.addChangeListener), it also drops an item's entry
+// when the item is removed.
+class SalesAnalytics implements OrderService.CheckoutListener, MenuChangeListener {
+    static final int MINUTES_KEPT = 60;
+    private static final int PAGE_BITS = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    // totals for one menu item, under its key (MenuItem.getKey())
+    static class ItemSales {
+        private final long itemKey;
+        private volatile String name;
+        private final Category category;
+        private final LongAdder quantity = new LongAdder();
+        private final LongAdder revenue = new LongAdder();
+
+        ItemSales(MenuItem item) {
+            this.itemKey = item.getKey();
+            this.name = item.getName();
+            this.category = item.getCategory();
+        }
+
+        public long getItemKey() {
+            return itemKey;
+        }
+
+        // the name the item had the last time it was sold
+        public String getName() {
+            return name;
+        }
+
+        public Category getCategory() {
+            return category;
+        }
+
+        public long getQuantity() {
+            return quantity.sum();
+        }
+
+        public long getRevenue() {
+            return revenue.sum();
+        }
+    }
+
+    // orders and revenue within one minute
+    static class MinuteSales {
+        private final long minute; // minutes since the epoch
+        private final LongAdder orders = new LongAdder();
+        private final LongAdder revenue = new LongAdder();
+
+        MinuteSales(long minute) {
+            this.minute = minute;
+        }
+
+        public long getMinute() {
+            return minute;
+        }
+
+        public long getOrders() {
+            return orders.sum();
+        }
+
+        public long getRevenue() {
+            return revenue.sum();
+        }
+    }
+
+    private final LongAdder orders = new LongAdder();
+    private final LongAdder revenue = new LongAdder();
+    // one page of PAGE_SIZE item slots
+    private static class Page {
+        final AtomicReferenceArray<ItemSales> items = new AtomicReferenceArray<>(PAGE_SIZE);
+    }
+
+    private volatile Page[] pages = new Page[0];
+    private final Object growLock = new Object();
+    private final EnumMap<Category, LongAdder> categoryQuantity = new EnumMap<>(Category.class);
+    private final EnumMap<Category, LongAdder> categoryRevenue = new EnumMap<>(Category.class);
+    private final AtomicReferenceArray<MinuteSales> minutes = new AtomicReferenceArray<>(MINUTES_KEPT);
+    private final LogLinearHistogram orderValues = new LogLinearHistogram();
+
+    public SalesAnalytics() {
+        for (Category category : Category.values()) {
+            categoryQuantity.put(category, new LongAdder());
+            categoryRevenue.put(category, new LongAdder());
+        }
+    }
+
+    @Override
+    public void orderCompleted(long orderId, Order order, PriceBreakdown price) {
+        record(order, price, System.currentTimeMillis());
+    }
+
+    @Override
+    public void menuChanged(MenuVersion version, List<MenuChange> changes) {
+        for (MenuChange change : changes) {
+            if (change.getKind() == MenuChange.Kind.REMOVED) {
+                long itemKey = change.getItem().getKey();
+                Page page = page(Menu.keyId(itemKey));
+                if (page != null) {
+                    int offset = Menu.keyId(itemKey) & (PAGE_SIZE - 1);
+                    ItemSales sales = page.items.get(offset);
+                    if (sales != null && sales.itemKey == itemKey) {
+                        page.items.compareAndSet(offset, sales, null);
+                    }
+                }
+            }
+        }
+    }
+
+    // Revenue per item and category is the price the item was ordered at times quantity; the
+    // order's revenue is its total after discounts, tax and the service fee.
+    public void record(Order order, PriceBreakdown price, long timestamp) {
+        OrderLines lines = order.getLines();
+        for (int line = 0; line < lines.size(); line++) {
+            MenuItem item = lines.getItem(line);
+            int quantity = lines.getQuantity(line);
+            long amount = lines.getAmount(line);
+            ItemSales sales = itemSales(item);
+            if (sales != null) {
+                if (sales.name != item.getName()) {
+                    sales.name = item.getName(); // only on a rename, so checkouts don't all write one shared field
+                }
+                sales.quantity.add(quantity);
+                sales.revenue.add(amount);
+            }
+            categoryQuantity.get(item.getCategory()).add(quantity);
+            categoryRevenue.get(item.getCategory()).add(amount);
+        }
+        orders.increment();
+        revenue.add(price.getTotal());
+        orderValues.record(Math.max(0, price.getTotal()));
+
+        MinuteSales bucket = minuteBucket(timestamp / 60_000);
+        bucket.orders.increment();
+        bucket.revenue.add(price.getTotal());
+    }
+
+    // The item's entry, created if its slot is empty or holds an older generation. null if a newer
+    // item already has the slot.
+    private ItemSales itemSales(MenuItem item) {
+        int itemId = item.getId();
+        Page page = pageForWrite(itemId);
+        int offset = itemId & (PAGE_SIZE - 1);
+        while (true) {
+            ItemSales sales = page.items.get(offset);
+            if (sales != null && sales.itemKey == item.getKey()) {
+                return sales;
+            }
+            if (sales != null && Menu.keyGeneration(sales.itemKey) > item.getGeneration()) {
+                return null;
+            }
+            ItemSales fresh = new ItemSales(item);
+            if (page.items.compareAndSet(offset, sales, fresh)) {
+                return fresh;
+            }
+        }
+    }
+
+    private Page page(int itemId) {
+        Page[] current = pages;
+        int index = itemId >>> PAGE_BITS;
+        return itemId >= 0 && index < current.length ? current[index] : null;
+    }
+
+    private Page pageForWrite(int itemId) {
+        if (itemId < 0) {
+            throw new IllegalArgumentException("Item has no id yet: " + itemId);
+        }
+        Page page = page(itemId);
+        if (page != null) {
+            return page;
+        }
+        synchronized (growLock) {
+            Page[] current = pages;
+            int index = itemId >>> PAGE_BITS;
+            if (index >= current.length) {
+                Page[] grown = Arrays.copyOf(current, Math.max(index + 1, current.length * 2));
+                for (int i = current.length; i < grown.length; i++) {
+                    grown[i] = new Page();
+                }
+                pages = grown;
+                current = grown;
+            }
+            return current[index];
+        }
+    }
+
+    // The bucket for this minute, replacing whatever older minute held its slot in the ring.
+    private MinuteSales minuteBucket(long minute) {
+        int slot = (int) (minute % MINUTES_KEPT);
+        while (true) {
+            MinuteSales bucket = minutes.get(slot);
+            if (bucket != null && bucket.minute >= minute) {
+                return bucket; // an order stamped a little late still counts in the newer minute
+            }
+            MinuteSales fresh = new MinuteSales(minute);
+            if (minutes.compareAndSet(slot, bucket, fresh)) {
+                return fresh;
+            }
+        }
+    }
+
+    public long getOrders() {
+        return orders.sum();
+    }
+
+    public long getRevenue() {
+        return revenue.sum();
+    }
+
+    public long getCategoryQuantity(Category category) {
+        return categoryQuantity.get(category).sum();
+    }
+
+    public long getCategoryRevenue(Category category) {
+        return categoryRevenue.get(category).sum();
+    }
+
+    // null if the item hasn't been sold, or its entry was dropped or taken over
+    public ItemSales getItemSales(long itemKey) {
+        Page page = page(Menu.keyId(itemKey));
+        if (page == null) {
+            return null;
+        }
+        ItemSales sales = page.items.get(Menu.keyId(itemKey) & (PAGE_SIZE - 1));
+        return sales != null && sales.itemKey == itemKey ? sales : null;
+    }
+
+    // The n items sold most (by quantity), best first. Keeps an n-sized min-heap over the items.
+    public List<ItemSales> getBestsellers(int n) {
+        if (n <= 0) {
+            return Collections.emptyList();
+        }
+        PriorityQueue<ItemSales> heap = new PriorityQueue<>(n, Comparator.comparingLong(ItemSales::getQuantity));
+        for (Page page : pages) {
+            for (int offset = 0; offset < PAGE_SIZE; offset++) {
+                ItemSales sales = page.items.get(offset);
+                if (sales == null) {
+                    continue;
+                }
+                if (heap.size() < n) {
+                    heap.offer(sales);
+                } else if (sales.getQuantity() > heap.peek().getQuantity()) {
+                    heap.poll();
+                    heap.offer(sales);
+                }
+            }
+        }
+        List<ItemSales> best = new ArrayList<>(heap);
+        best.sort(Comparator.comparingLong(ItemSales::getQuantity).reversed());
+        return best;
+    }
+
+    // a snapshot of the order value (total, in cents) histogram
+    public LogLinearHistogram getOrderValues() {
+        return orderValues.snapshot();
+    }
+
+    // The per-minute buckets for the last count minutes up to now, oldest first. Minutes without
+    // orders are left out.
+    public List<MinuteSales> getRecentMinutes(int count, long now) {
+        long currentMinute = now / 60_000;
+        List<MinuteSales> recent = new ArrayList<>();
+        for (long minute = currentMinute - Math.min(count, MINUTES_KEPT) + 1; minute <= currentMinute; minute++) {
+            MinuteSales bucket = minutes.get((int) (minute % MINUTES_KEPT));
+            if (bucket != null && bucket.minute == minute) {
+                recent.add(bucket);
+            }
+        }
+        return recent;
+    }
+
+    public void printReport(PrintStream out) {
+        long orderCount = getOrders();
+        out.println("Orders: " + orderCount);
+        out.println("Revenue: $" + Money.format(getRevenue()));
+        if (orderCount == 0) {
+            return;
+        }
+        LogLinearHistogram values = getOrderValues();
+        out.println("Average order: $" + Money.format(getRevenue() / orderCount));
+        out.println("Order value p50: $" + Money.format(values.getPercentile(50))
+                + ", p99: $" + Money.format(values.getPercentile(99))
+                + ", max: $" + Money.format(values.getMax()));
+
+        out.println();
+        out.println("BESTSELLERS:");
+        int rank = 1;
+        for (ItemSales sales : getBestsellers(5)) {
+            out.printf("%d. %-20s x%-6d $%s%n", rank++, sales.getName(), sales.getQuantity(), Money.format(sales.getRevenue()));
+        }
+
+        out.println();
+        out.println("BY CATEGORY:");
+        for (Category category : Category.values()) {
+            out.printf("%-10s x%-6d $%s%n", category, getCategoryQuantity(category), Money.format(getCategoryRevenue(category)));
+        }
+
+        out.println();
+        out.println("LAST 10 MINUTES:");
+        for (MinuteSales minute : getRecentMinutes(10, System.currentTimeMillis())) {
+            out.printf("%tR  %-6d $%s%n", minute.getMinute() * 60_000, minute.getOrders(), Money.format(minute.getRevenue()));
+        }
+    }
+}
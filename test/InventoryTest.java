@@ -0,0 +1,150 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Contention stress tests: many threads ordering the same popular item at once.
+class InventoryTest {
+    private static final int THREADS = Math.max(8, Inventory.STRIPES * 2);
+    private static final long TEA = Menu.key(7, 0);
+
+    private final Inventory inventory = new Inventory();
+
+    // runs the task on THREADS threads, all started together
+    private static void race(Runnable task) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                task.run();
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    // Every thread reserves until it is refused. Nothing is oversold, and a refusal only comes
+    // once the stock is really gone: the last units are sold too, whichever stripes they are in.
+    @Test
+    void sellsExactlyTheStockUnderContention() throws InterruptedException {
+        for (int round = 0; round < 50; round++) {
+            int stock = 1000 + round;
+            inventory.setStock(TEA, stock);
+            AtomicInteger sold = new AtomicInteger();
+            race(() -> {
+                int quantity = 1 + (int) (Thread.currentThread().getId() % 3);
+                while (inventory.reserve(TEA, quantity)) {
+                    sold.addAndGet(quantity);
+                }
+                while (inventory.reserve(TEA, 1)) {
+                    sold.incrementAndGet();
+                }
+            });
+            assertEquals(stock, sold.get(), "round " + round);
+            assertEquals(0, inventory.getStock(TEA));
+        }
+    }
+
+    // Reservations and cancellations interleaved: the stock always balances, and never goes negative.
+    @Test
+    void reserveAndReleaseBalance() throws InterruptedException {
+        int stock = 500;
+        inventory.setStock(TEA, stock);
+        AtomicInteger held = new AtomicInteger();
+        AtomicBoolean negative = new AtomicBoolean();
+        race(() -> {
+            for (int i = 0; i < 20000; i++) {
+                int quantity = 1 + i % 4;
+                if (inventory.reserve(TEA, quantity)) {
+                    held.addAndGet(quantity);
+                    if (i % 2 == 0) {
+                        inventory.release(TEA, quantity);
+                        held.addAndGet(-quantity);
+                    }
+                }
+                if (inventory.getStock(TEA) < 0) {
+                    negative.set(true);
+                }
+            }
+        });
+        assertFalse(negative.get());
+        assertEquals(stock, inventory.getStock(TEA) + held.get());
+    }
+
+    // An admin switching tracking off while orders are being taken: the item ends up untracked,
+    // not with UNLIMITED minus whatever the racing reservations took.
+    @Test
+    void untrackingWhileReservingStaysUnlimited() throws InterruptedException {
+        for (int round = 0; round < 200; round++) {
+            inventory.setStock(TEA, 10000);
+            AtomicBoolean stop = new AtomicBoolean();
+            Thread admin = new Thread(() -> {
+                inventory.setStock(TEA, Inventory.UNLIMITED);
+                stop.set(true);
+            });
+            race(() -> {
+                if (Thread.currentThread().getId() % THREADS == 0) {
+                    admin.start();
+                }
+                for (int i = 0; i < 200 && !stop.get(); i++) {
+                    inventory.reserve(TEA, 1 + i % 5);
+                    inventory.release(TEA, 1);
+                }
+                for (int i = 0; i < 20; i++) {
+                    inventory.reserve(TEA, 7);
+                }
+            });
+            if (admin.getState() == Thread.State.NEW) {
+                admin.start();
+            }
+            admin.join();
+            assertEquals(Inventory.UNLIMITED, inventory.getStock(TEA), "round " + round);
+            assertFalse(inventory.isTracked(TEA));
+        }
+    }
+
+    @Test
+    void lowStockIsReportedOnce() {
+        List<Integer> alerts = new ArrayList<>();
+        inventory.addLowStockListener((itemKey, remaining) -> alerts.add(remaining));
+        inventory.setStock(TEA, 8, 5);
+        assertTrue(inventory.reserve(TEA, 3));
+        assertTrue(inventory.reserve(TEA, 1));
+        assertTrue(inventory.reserve(TEA, 1));
+        assertFalse(inventory.reserve(TEA, 4));
+        assertEquals(List.of(5), alerts);
+        inventory.release(TEA, 5);
+        assertTrue(inventory.reserve(TEA, 4));
+        assertEquals(List.of(5, 4), alerts);
+    }
+
+    // Tracking an item with a high id leaves the ids below it (whose pages were never written)
+    // untracked, and they can still be tracked later.
+    @Test
+    void highIdsLeaveTheIdsBelowThemUntracked() {
+        long far = Menu.key(1_000_000, 3);
+        inventory.setStock(far, 10);
+        assertEquals(10, inventory.getStock(far));
+        assertFalse(inventory.isTracked(TEA));
+        assertTrue(inventory.reserve(Menu.key(500_000, 0), 1_000));
+        assertEquals(Inventory.UNLIMITED, inventory.getStock(Menu.key(500_000, 0)));
+        inventory.setStock(TEA, 2);
+        assertFalse(inventory.reserve(TEA, 3));
+        assertTrue(inventory.reserve(far, 10));
+        assertEquals(0, inventory.getStock(far));
+    }
+}
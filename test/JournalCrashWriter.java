@@ -0,0 +1,34 @@
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Run by OrderJournalTest in a separate JVM that gets killed mid-write: appends orders from a
+// few threads until it is killed, printing "durable <order id>" once each order is on disk.
+public class JournalCrashWriter {
+    public static void main(String[] args) throws Exception {
+        Menu menu = new Menu();
+        OrderJournal journal = OrderJournal.open(Paths.get(args[0]), Integer.parseInt(args[1]));
+        AtomicLong nextOrderId = new AtomicLong(journal.getLastOrderId() + 1);
+        String[] names = {"Pizza", "Soda", "Tea", "Steak"};
+        for (int t = 0; t < 4; t++) {
+            new Thread(() -> {
+                while (true) {
+                    long orderId = nextOrderId.getAndIncrement();
+                    Order order = new Order(Order.DEFAULT_PROMOTIONS, menu.current());
+                    for (int line = 0; line <= orderId % names.length; line++) {
+                        order.addItem(menu.findItem(names[line]), 1 + (int) (orderId % 3));
+                    }
+                    try {
+                        journal.appendAndSync(orderId, order);
+                    } catch (Exception e) {
+                        return;
+                    }
+                    synchronized (System.out) {
+                        System.out.println("durable " + orderId);
+                        System.out.flush();
+                    }
+                }
+            }).start();
+        }
+        Thread.sleep(Long.MAX_VALUE);
+    }
+}
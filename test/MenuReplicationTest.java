@@ -0,0 +1,133 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Deltas applied by hand, twice and out of order, and a publisher and a replica talking over
+// localhost.
+class MenuReplicationTest {
+    private static final long EPOCH = 7;
+
+    // every item as "id/generation kind name price type discount", in id order
+    private static List<String> describe(Menu menu) {
+        List<String> items = new ArrayList<>();
+        for (MenuDisplayable displayable : menu.current().getMenuItems()) {
+            MenuItem item = (MenuItem) displayable;
+            String extra = item instanceof Food ? ((Food) item).getType()
+                    : item instanceof Drink ? ((Drink) item).getType() : Long.toString(((Discount) item).getDiscount());
+            items.add(item.getId() + "/" + item.getGeneration() + " " + item.getClass().getSimpleName() + " "
+                    + item.getName() + " " + item.getBasePrice() + " " + extra);
+        }
+        return items;
+    }
+
+    private static MenuDelta roundTrip(MenuDelta delta) throws IOException {
+        return MenuDelta.decode(delta.encode());
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(5);
+        }
+    }
+
+    // the publisher's changes for one edit, as MenuPublisher would number them
+    private static MenuDelta edit(Menu menu, long sequence, Runnable change) {
+        List<MenuChange> changes = new ArrayList<>();
+        MenuChangeListener listener = (version, batch) -> changes.addAll(batch);
+        menu.addChangeListener(listener);
+        change.run();
+        menu.removeChangeListener(listener);
+        return MenuDelta.of(EPOCH, sequence, changes);
+    }
+
+    @Test
+    void aFullDeltaRoundTripsEveryKindOfItem() throws IOException {
+        Menu source = new Menu();
+        source.addItem(new Discount("Happy hour", Money.of(5000), Category.DRINK, Money.of(1500)));
+        source.removeItem(source.findItem("Tea").getKey());
+        source.addItem(new Drink("Chai", Money.of(30000), "Hot")); // Tea's id, a later generation
+
+        MenuReplica replica = new MenuReplica(new Menu(List.of()));
+        MenuDelta full = roundTrip(MenuDelta.full(EPOCH, 3, source.current()));
+        assertTrue(full.isFull());
+        assertEquals(3, full.getSequence());
+        assertTrue(replica.apply(full));
+        assertEquals(describe(source), describe(replica.getMenu()));
+    }
+
+    @Test
+    void applyingADeltaTwiceChangesNothing() throws IOException {
+        Menu source = new Menu();
+        MenuReplica replica = new MenuReplica(new Menu(List.of()));
+        replica.apply(roundTrip(MenuDelta.full(EPOCH, 0, source.current())));
+        MenuItem soda = source.findItem("Soda");
+        MenuDelta reprice = roundTrip(edit(source, 1, () -> source.updateItem(soda.getKey(), "Soda", Money.of(12000))));
+
+        assertTrue(replica.apply(reprice));
+        MenuVersion once = replica.getMenu().current();
+        assertFalse(replica.apply(reprice));
+        assertSame(once, replica.getMenu().current());
+        assertEquals(describe(source), describe(replica.getMenu()));
+    }
+
+    // A delta after a gap is refused and changes nothing; a FULL delta brings the replica back,
+    // removing the item it had that the publisher no longer has.
+    @Test
+    void aGapIsRefusedAndAFullDeltaResyncs() throws IOException {
+        Menu source = new Menu();
+        MenuReplica replica = new MenuReplica(new Menu(List.of()));
+        replica.apply(roundTrip(MenuDelta.full(EPOCH, 0, source.current())));
+        MenuItem pizza = source.findItem("Pizza");
+        MenuDelta missed = roundTrip(edit(source, 1, () -> source.removeItem(pizza.getKey())));
+        MenuDelta later = roundTrip(edit(source, 2, () -> source.addItem(new Food("Bakso", Money.of(35000), "Indonesian"))));
+
+        MenuVersion before = replica.getMenu().current();
+        assertThrows(IllegalStateException.class, () -> replica.apply(later));
+        assertSame(before, replica.getMenu().current());
+        assertEquals(0, replica.getAppliedSequence());
+
+        assertTrue(replica.apply(roundTrip(MenuDelta.full(EPOCH, 2, source.current()))));
+        assertNull(replica.getMenu().findItem("Pizza"));
+        assertEquals(describe(source), describe(replica.getMenu()));
+        assertFalse(replica.apply(missed)); // already covered by the full copy
+        assertFalse(replica.apply(later));
+    }
+
+    // An outlet catches up with a full copy, then each edit costs it about the same few bytes
+    // whatever the catalog's size.
+    @Test
+    void aReplicaFollowsAPublisherOverLocalhost() throws Exception {
+        long[] editBytes = new long[2];
+        int[] sizes = {1_000, 20_000};
+        for (int run = 0; run < sizes.length; run++) {
+            List<MenuDisplayable> items = new ArrayList<>();
+            for (int i = 0; i < sizes[run]; i++) {
+                items.add(new Food("Dish " + i, Money.of(10000 + i), "Test"));
+            }
+            Menu source = new Menu(items);
+            try (MenuPublisher publisher = new MenuPublisher(source);
+                 MenuReplica replica = new MenuReplica(new Menu(List.of()))) {
+                replica.follow("localhost", publisher.listen(0));
+                await(() -> replica.getMenu().current().getMenuItems().size() == items.size());
+                long fullBytes = replica.getBytesReceived();
+                assertTrue(fullBytes > sizes[run] * 10L, "a full copy of every item: " + fullBytes);
+
+                MenuItem dish = source.findItem("Dish 42");
+                source.updateItem(dish.getKey(), "Dish 42", Money.of(99000));
+                source.removeItem(source.findItem("Dish 7").getKey());
+                await(() -> replica.getAppliedSequence() == publisher.getSequence());
+                editBytes[run] = replica.getBytesReceived() - fullBytes;
+                assertEquals(describe(source), describe(replica.getMenu()));
+            }
+        }
+        assertTrue(editBytes[0] < 200, "two edits took " + editBytes[0] + " bytes");
+        assertEquals(editBytes[0], editBytes[1], "edit bytes grew with the catalog");
+    }
+}
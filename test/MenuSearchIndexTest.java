@@ -0,0 +1,146 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// The index's walk skips whole runs of keys and keeps the automaton's states across keys, so it is
+// checked against a plain scan over every name, on small alphabets where keys share long prefixes
+// and edits keep splitting and emptying blocks.
+class MenuSearchIndexTest {
+    private static final String[] ALPHABETS = {"abc", "abcde ", "abéбвxyz"};
+
+    private static int distance(String a, String b) {
+        int[] above = new int[b.length() + 1];
+        int[] row = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            above[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            row[0] = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                row[j] = Math.min(Math.min(row[j - 1] + 1, above[j] + 1), above[j - 1] + cost);
+            }
+            int[] swap = above;
+            above = row;
+            row = swap;
+        }
+        return above[b.length()];
+    }
+
+    private static String randomName(Random random, String alphabet, int maxLength) {
+        StringBuilder name = new StringBuilder();
+        for (int length = 1 + random.nextInt(maxLength); name.length() < length; ) {
+            name.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return name.toString();
+    }
+
+    // up to two random edits of the name, so most queries land near some key
+    private static String misspell(Random random, String name, String alphabet) {
+        StringBuilder query = new StringBuilder(name);
+        for (int edits = random.nextInt(3); edits > 0 && query.length() > 0; edits--) {
+            int at = random.nextInt(query.length());
+            char c = alphabet.charAt(random.nextInt(alphabet.length()));
+            switch (random.nextInt(3)) {
+                case 0 -> query.deleteCharAt(at);
+                case 1 -> query.setCharAt(at, c);
+                default -> query.insert(at, c);
+            }
+        }
+        return query.toString();
+    }
+
+    private static List<MenuItem> items(MenuVersion version) {
+        List<MenuItem> items = new ArrayList<>();
+        for (MenuDisplayable item : version.getMenuItems()) {
+            if (item instanceof MenuItem) {
+                items.add((MenuItem) item);
+            }
+        }
+        return items;
+    }
+
+    private static Set<Long> set(long[] keys) {
+        Set<Long> set = new TreeSet<>();
+        for (long key : keys) {
+            set.add(key);
+        }
+        return set;
+    }
+
+    @Test
+    void findsWhatAScanFindsThroughEdits() {
+        for (int seed = 0; seed < 8; seed++) {
+            Random random = new Random(seed);
+            String alphabet = ALPHABETS[seed % ALPHABETS.length];
+            // short names give deep shared prefixes; seed % 4 == 3 also gives queries past 64 characters
+            int maxLength = seed % 4 == 3 ? 70 : 10;
+            Set<String> names = new HashSet<>();
+            List<MenuDisplayable> initial = new ArrayList<>();
+            for (int i = 0, count = maxLength > 10 ? 600 : 3000; i < count; i++) {
+                String name = randomName(random, alphabet, maxLength);
+                if (names.add(name)) {
+                    initial.add(new Food(name, Money.of(100), "Test"));
+                }
+            }
+            Menu menu = new Menu(initial);
+            MenuSearchIndex index = new MenuSearchIndex(menu);
+
+            for (int edit = 0; edit < 1000; edit++) {
+                List<MenuItem> items = items(menu.current());
+                MenuItem some = items.get(random.nextInt(items.size()));
+                String name = randomName(random, alphabet, maxLength);
+                switch (random.nextInt(3)) {
+                    case 0 -> {
+                        if (names.add(name)) {
+                            menu.addItem(new Food(name, Money.of(100), "Test"));
+                        }
+                    }
+                    case 1 -> {
+                        names.remove(some.getName());
+                        menu.removeItem(some.getKey());
+                    }
+                    default -> {
+                        if (names.add(name)) {
+                            names.remove(some.getName());
+                            menu.updateItem(some.getKey(), name, some.getPrice());
+                        }
+                    }
+                }
+                if (edit % 50 != 0) {
+                    continue;
+                }
+
+                items = items(menu.current());
+                assertEquals(items.size(), index.size());
+                for (int q = 0; q < 10; q++) {
+                    String query = MenuSearchIndex.normalize(q % 2 == 0
+                            ? misspell(random, items.get(random.nextInt(items.size())).getName(), alphabet)
+                            : randomName(random, alphabet, maxLength));
+                    int maxEdits = query.length() >= 9 ? 2 : query.length() >= 4 ? 1 : 0;
+                    Set<Long> close = new TreeSet<>();
+                    Set<Long> completions = new TreeSet<>();
+                    for (MenuItem item : items) {
+                        String key = MenuSearchIndex.normalize(item.getName());
+                        if (maxEdits > 0 && distance(key, query) <= maxEdits) {
+                            close.add(item.getKey());
+                        }
+                        if (!query.isEmpty() && key.startsWith(query)) {
+                            completions.add(item.getKey());
+                        }
+                    }
+                    String where = "seed " + seed + ", edit " + edit + ", query '" + query + "'";
+                    assertEquals(close, set(index.fuzzyKeys(query, items.size())), where);
+                    assertEquals(completions, set(index.completeKeys(query, items.size())), where);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// A menu loaded from a snapshot reads its items straight from the file. It has to give the same
+// answers as the menu that wrote it, keys included, and edits made after loading have to hide the
+// snapshot's items they replace.
+class MenuSnapshotTest {
+    private static Menu reload(Menu menu) throws Exception {
+        Path file = Files.createTempFile("menu", ".snapshot");
+        try {
+            MenuSnapshot.write(menu, file);
+            return MenuSnapshot.open(file).toMenu();
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static List<String> names(List<MenuItem> items) {
+        List<String> names = new ArrayList<>();
+        for (MenuItem item : items) {
+            names.add(item.getName());
+        }
+        return names;
+    }
+
+    @Test
+    void itemsKeepTheirKeysAndFreeSlotsTheirGenerations() throws Exception {
+        Menu menu = new Menu();
+        MenuItem tea = menu.findItem("Tea");
+        menu.removeItem(tea.getKey());
+        MenuItem pizza = menu.findItem("Pizza");
+        menu.updateItem(pizza.getKey(), "Pizza", Money.of(35000));
+
+        Menu loaded = reload(menu);
+        assertEquals(menu.current().getItemCount(), loaded.current().getItemCount());
+        for (MenuDisplayable displayable : menu.getMenuItems()) {
+            MenuItem item = (MenuItem) displayable;
+            MenuItem same = loaded.getItemByKey(item.getKey());
+            assertNotNull(same, item.getName());
+            assertTrue(same.hasSameContent(item), item.getName());
+        }
+        assertEquals(Money.of(35000), loaded.findItem("PIZZA").getPrice());
+        assertNull(loaded.findItem("tea"));
+        assertNull(loaded.getItemByKey(tea.getKey()));
+        for (Category category : Category.values()) {
+            assertEquals(names(menu.getItemsByCategory(category)), names(loaded.getItemsByCategory(category)));
+        }
+
+        // Tea's slot comes back as it would have on the menu that wrote the snapshot
+        loaded.addItem(new Drink("Chai", Money.of(30000), "Hot"));
+        MenuItem chai = loaded.findItem("Chai");
+        assertEquals(tea.getId(), chai.getId());
+        assertEquals(tea.getGeneration() + 1, chai.getGeneration());
+    }
+
+    @Test
+    void editsAfterLoadingHideTheSnapshotsItems() throws Exception {
+        Menu loaded = reload(new Menu());
+        MenuVersion before = loaded.current();
+        MenuItem pizza = loaded.findItem("Pizza");
+        MenuItem soda = loaded.findItem("Soda");
+
+        loaded.removeItem(soda.getKey());
+        loaded.updateItem(pizza.getKey(), "Calzone", Money.of(32000));
+        loaded.addItem(new Food("Pizza", Money.of(28000), "Italian"));
+
+        MenuItem newPizza = loaded.findItem("pizza");
+        assertNotEquals(pizza.getKey(), newPizza.getKey());
+        assertEquals(Money.of(28000), newPizza.getPrice());
+        assertEquals(pizza.getKey(), loaded.findItem("calzone").getKey());
+        assertNull(loaded.findItem("Soda"));
+        assertEquals(List.of("Juice", "Coffee", "Tea"), names(loaded.getItemsByCategory(Category.DRINK)));
+        assertEquals(List.of("Calzone", "Burger", "Pasta", "Steak", "Pizza"), names(loaded.getItemsByCategory(Category.FOOD)));
+        assertEquals("Juice", loaded.getItemsByCategory(Category.DRINK).get(0).getName());
+        assertEquals(8, loaded.current().getItemCount());
+
+        // the version readers had before the edits still has the snapshot's items
+        assertSame(pizza, before.findItem("Pizza"));
+        assertSame(soda, before.getItemByKey(soda.getKey()));
+        assertEquals(4, before.getItemsByCategory(Category.DRINK).size());
+    }
+}
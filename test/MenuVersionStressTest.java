@@ -0,0 +1,107 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Readers take versions of the live menu while an admin thread keeps editing it in batches. Each
+// version has to be whole on its own (a batch is in it completely or not at all), has to stay as
+// it was for as long as a reader holds it, and newer readers never get an older one.
+class MenuVersionStressTest {
+    private static final int PAIRS = 50;
+    private static final int BATCHES = 3000;
+    private static final int READERS = 3;
+
+    @Test
+    void readersOnlyEverSeeWholeBatches() throws Exception {
+        // every batch reprices both items of a pair together and swaps the one drink for a new one
+        List<MenuDisplayable> items = new ArrayList<>();
+        for (int i = 0; i < PAIRS; i++) {
+            items.add(new Food("Left " + i, Money.of(1000), "Test"));
+            items.add(new Food("Right " + i, Money.of(1000), "Test"));
+        }
+        items.add(new Drink("Special 0", Money.of(1000), "Test"));
+        Menu menu = new Menu(items);
+        MenuVersion first = menu.current();
+        long firstTotal = total(first);
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < READERS; r++) {
+            Thread reader = new Thread(() -> {
+                try {
+                    long lastNumber = 0;
+                    while (!done.get()) {
+                        MenuVersion version = menu.current();
+                        assertTrue(version.getNumber() >= lastNumber, "went back to an older version");
+                        lastNumber = version.getNumber();
+                        long total = total(version);
+                        checkWhole(version);
+                        assertEquals(total, total(version), "a held version changed");
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        try {
+            for (int b = 1; b <= BATCHES && failure.get() == null; b++) {
+                int pair = b % PAIRS;
+                long price = Money.of(1000 + b);
+                String special = "Special " + b;
+                menu.edit(batch -> {
+                    MenuItem left = batch.getItemById(2 * pair);
+                    MenuItem right = batch.getItemById(2 * pair + 1);
+                    batch.updatePrice(left.getKey(), price);
+                    batch.updatePrice(right.getKey(), price);
+                    batch.retainItems(item -> !(item instanceof Drink));
+                    batch.addItem(new Drink(special, price, "Test"));
+                });
+            }
+        } finally {
+            done.set(true);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+        if (failure.get() != null) {
+            fail(failure.get());
+        }
+        checkWhole(menu.current());
+        assertEquals(first.getNumber() + BATCHES, menu.current().getNumber());
+        assertEquals(firstTotal, total(first), "the first version changed");
+        assertEquals(Money.of(1000), first.findItem("Left 7").getPrice());
+    }
+
+    private static long total(MenuVersion version) {
+        long total = 0;
+        for (MenuDisplayable item : version.getMenuItems()) {
+            total += ((MenuItem) item).getPrice();
+        }
+        return total;
+    }
+
+    private static void checkWhole(MenuVersion version) {
+        assertEquals(2 * PAIRS + 1, version.getItemCount());
+        assertEquals(version.getItemCount(), version.getMenuItems().size());
+        for (int i = 0; i < PAIRS; i++) {
+            MenuItem left = version.findItem("left " + i);
+            MenuItem right = version.findItem("RIGHT " + i);
+            assertEquals(left.getPrice(), right.getPrice(), "half a batch in version " + version.getNumber());
+            assertSame(left, version.getItemByKey(left.getKey()));
+        }
+        List<MenuItem> drinks = version.getItemsByCategory(Category.DRINK);
+        assertEquals(1, drinks.size());
+        MenuItem special = drinks.get(0);
+        assertSame(special, version.findItem(special.getName()));
+        assertSame(special, version.getItemById(special.getId()));
+        assertEquals(2 * PAIRS, version.getItemsByCategory(Category.FOOD).size());
+    }
+}
@@ -0,0 +1,129 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OrderJournalTest {
+    private static final int SEGMENT_SIZE = 64 * 1024; // small, so the crash run rolls segments
+
+    private final Menu menu = new Menu();
+
+    private Order order(String name, int quantity) {
+        Order order = new Order(Order.DEFAULT_PROMOTIONS, menu.current());
+        order.addItem(menu.findItem(name), quantity);
+        return order;
+    }
+
+    // Kills a JVM that is appending from several threads, then checks every order it was told was
+    // durable comes back intact, and that the journal takes new orders after it.
+    @Test
+    void recoversEveryDurableOrderAfterAKill() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        Process writer = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), "JournalCrashWriter", directory.toString(),
+                Integer.toString(SEGMENT_SIZE))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        Set<Long> durable = new HashSet<>();
+        try (BufferedReader out = new BufferedReader(new InputStreamReader(writer.getInputStream()))) {
+            String line;
+            while (durable.size() < 3000 && (line = out.readLine()) != null) {
+                durable.add(Long.parseLong(line.substring("durable ".length())));
+            }
+            writer.destroyForcibly();
+            assertTrue(writer.waitFor(30, TimeUnit.SECONDS));
+        }
+        assertEquals(3000, durable.size(), "the writer stopped early");
+
+        Map<Long, JournalRecord> recovered = new HashMap<>();
+        OrderJournal.replay(directory, record -> assertNull(recovered.put(record.getOrderId(), record)));
+        for (long orderId : durable) {
+            JournalRecord record = recovered.get(orderId);
+            assertNotNull(record, "lost durable order " + orderId);
+            assertEquals(1 + orderId % 4, record.getLineCount());
+            assertEquals(menu.findItem("Pizza").getKey(), record.getItemKey(0));
+            assertEquals(1 + orderId % 3, record.getQuantity(0));
+            assertEquals(record.getSubtotal() - record.getDiscount() + record.getTax() + record.getServiceFee(), record.getTotal());
+        }
+        assertTrue(Files.list(directory).count() > 1, "expected the run to roll over segments");
+
+        long last;
+        try (OrderJournal journal = OrderJournal.open(directory, SEGMENT_SIZE)) {
+            assertEquals(recovered.size(), journal.getRecoveredRecords());
+            last = journal.getLastOrderId();
+            journal.appendAndSync(last + 1, order("Tea", 2));
+        }
+        try (OrderJournal journal = OrderJournal.open(directory, SEGMENT_SIZE)) {
+            assertEquals(recovered.size() + 1, journal.getRecoveredRecords());
+            assertEquals(last + 1, journal.getLastOrderId());
+        }
+    }
+
+    // A torn record in the middle: the records after it must stay gone even when a new record of
+    // the same length ends right where one of them started.
+    @Test
+    void recordsAfterATornOneDoNotComeBack() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        long firstEnd;
+        try (OrderJournal journal = OrderJournal.open(directory, SEGMENT_SIZE)) {
+            firstEnd = journal.append(1, order("Tea", 1));
+            journal.append(2, order("Tea", 1));
+            journal.append(3, order("Tea", 1));
+        }
+        Path segment = directory.resolve("orders-000001.log");
+        int secondPayload = (int) (firstEnd - SEGMENT_SIZE) + 8;
+        try (FileChannel file = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer oneByte = ByteBuffer.allocate(1);
+            file.read(oneByte, secondPayload);
+            oneByte.put(0, (byte) (oneByte.get(0) ^ 1)).rewind();
+            file.write(oneByte, secondPayload);
+        }
+
+        try (OrderJournal journal = OrderJournal.open(directory, SEGMENT_SIZE)) {
+            assertEquals(1, journal.getRecoveredRecords());
+            journal.appendAndSync(4, order("Tea", 1));
+        }
+        Set<Long> orderIds = new HashSet<>();
+        OrderJournal.replay(directory, record -> orderIds.add(record.getOrderId()));
+        assertEquals(Set.of(1L, 4L), orderIds);
+    }
+
+    // Whatever a caller chains onto appendAsync's future runs off the flusher: one that blocks
+    // doesn't hold up the next order's fsync.
+    @Test
+    void aBlockedDependentDoesNotStallTheFlusher() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        CountDownLatch release = new CountDownLatch(1);
+        Thread test = Thread.currentThread();
+        try (OrderJournal journal = OrderJournal.open(directory, SEGMENT_SIZE)) {
+            journal.appendAsync(1, order("Tea", 1)).thenRun(() -> {
+                try {
+                    // a future that is already done runs it right here, where blocking would hang the test
+                    if (Thread.currentThread() != test) {
+                        release.await();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            try {
+                journal.appendAsync(2, order("Tea", 1)).get(10, TimeUnit.SECONDS);
+            } finally {
+                release.countDown();
+            }
+        }
+    }
+}
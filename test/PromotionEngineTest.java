@@ -0,0 +1,76 @@
+import org.junit.jupiter.api.Test;
+
+import java.time.DayOfWeek;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PromotionEngineTest {
+    private static final int NOON = 12 * 60;
+
+    private final Menu menu = new Menu();
+
+    private PromotionPlan plan(DayOfWeek day, PromotionRule... rules) {
+        return new PromotionEngine(List.of(rules)).planAt(day, NOON);
+    }
+
+    private OrderLines lines(Object... itemsAndQuantities) {
+        OrderLines lines = OrderLines.acquire();
+        for (int i = 0; i < itemsAndQuantities.length; i += 2) {
+            lines.add((MenuItem) itemsAndQuantities[i], (Integer) itemsAndQuantities[i + 1]);
+        }
+        return lines;
+    }
+
+    // Tea has two offers, then is replaced by Chai in the same slot. Only the easiest offer counts,
+    // and it belongs to whichever item it was made for.
+    @Test
+    void buyOneGetOneGoesToTheItemOfTheEasiestRule() {
+        MenuItem tea = menu.findItem("Tea");
+        PromotionRule hardTeaOffer = PromotionRule.buyOneGetOne("tea over 500000", tea, Money.of(500000));
+        menu.removeItem(tea.getKey());
+        menu.addItem(new Drink("Chai", Money.of(25000), "Hot"));
+        MenuItem chai = menu.findItem("Chai");
+        assertEquals(tea.getId(), chai.getId());
+        PromotionRule easyChaiOffer = PromotionRule.buyOneGetOne("chai over 0", chai, 0);
+
+        PromotionPlan plan = plan(DayOfWeek.MONDAY, hardTeaOffer, easyChaiOffer);
+        assertEquals(Money.of(25000), plan.price(lines(chai, 2), 0, 0).getDiscount());
+        assertEquals(0, plan.price(lines(tea, 2), 0, 0).getDiscount());
+
+        plan = plan(DayOfWeek.MONDAY, easyChaiOffer, hardTeaOffer);
+        assertEquals(Money.of(25000), plan.price(lines(chai, 2), 0, 0).getDiscount());
+    }
+
+    @Test
+    void weekendAmountOffOnlyAppliesOnTheWeekend() {
+        PromotionRule weekend = PromotionRule.categoryAmountOff("weekend", Category.FOOD, 0, Money.of(5000))
+                .on(DayOfWeek.SATURDAY, DayOfWeek.SUNDAY);
+        OrderLines order = lines(menu.findItem("Pizza"), 1, menu.findItem("Soda"), 1);
+        assertEquals(Money.of(5000), plan(DayOfWeek.SATURDAY, weekend).price(order, 0, 0).getDiscount());
+        assertEquals(Money.of(5000), plan(DayOfWeek.SUNDAY, weekend).price(order, 0, 0).getDiscount());
+        assertEquals(0, plan(DayOfWeek.FRIDAY, weekend).price(order, 0, 0).getDiscount());
+        assertEquals(List.of(), plan(DayOfWeek.FRIDAY, weekend).getRuleNames());
+    }
+
+    // an amount off never takes more than the category's items cost, and drinks don't count for food
+    @Test
+    void amountOffIsCappedAtTheCategory() {
+        PromotionRule foodOff = PromotionRule.categoryAmountOff("food", Category.FOOD, 0, Money.of(100000));
+        PromotionPlan plan = plan(DayOfWeek.MONDAY, foodOff);
+        assertEquals(Money.of(30000), plan.price(lines(menu.findItem("Pizza"), 1, menu.findItem("Tea"), 4), 0, 0).getDiscount());
+        assertEquals(0, plan.price(lines(menu.findItem("Tea"), 4), 0, 0).getDiscount());
+    }
+
+    // A drink percent stacked on a Tea offer only takes its percent off the drinks that are still
+    // paid for: the free Tea isn't discounted a second time.
+    @Test
+    void categoryPercentSkipsUnitsMadeFree() {
+        MenuItem tea = menu.findItem("Tea");
+        PromotionPlan plan = plan(DayOfWeek.MONDAY, PromotionRule.buyOneGetOne("tea", tea, 0),
+                PromotionRule.categoryDiscount("drinks", Category.DRINK, 0, 10));
+        // one Tea free, then 10% off the other Tea and the Soda
+        assertEquals(Money.of(25000) + Money.of(3500), plan.price(lines(tea, 2, menu.findItem("Soda"), 1), 0, 0).getDiscount());
+        assertEquals(Money.of(25000) + Money.of(2500), plan.price(lines(tea, 2), 0, 0).getDiscount());
+    }
+}
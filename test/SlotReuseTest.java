@@ -0,0 +1,144 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// A session pinned to an old menu version still holds an item whose id has since gone to a new
+// item. Nothing downstream may mistake the one for the other.
+class SlotReuseTest {
+    private final Menu menu = new Menu();
+    private final Inventory inventory = new Inventory();
+    private final OrderService service;
+    private final MenuSearchIndex searchIndex;
+
+    SlotReuseTest() {
+        menu.addChangeListener(inventory);
+        service = new OrderService(menu, Order.DEFAULT_PROMOTIONS, null, 1, inventory);
+        searchIndex = new MenuSearchIndex(menu);
+        service.addCheckoutListener(searchIndex);
+    }
+
+    // removes Tea and adds Chai, which takes over Tea's id
+    private MenuItem replaceTeaWithChai(MenuItem tea) {
+        assertNotNull(menu.removeItem(tea.getKey()));
+        menu.addItem(new Drink("Chai", Money.of(30000), "Hot"));
+        MenuItem chai = menu.findItem("Chai");
+        assertEquals(tea.getId(), chai.getId());
+        assertNotEquals(tea.getKey(), chai.getKey());
+        return chai;
+    }
+
+    @Test
+    void staleItemDoesNotTouchTheNewItemsStock() {
+        OrderService.Session old = service.openSession();
+        MenuItem tea = old.findItem("Tea");
+        MenuItem chai = replaceTeaWithChai(tea);
+        inventory.setStock(chai.getKey(), 5);
+
+        assertTrue(old.addItem(tea, 3)); // Tea's stock went with Tea: untracked
+        assertEquals(5, inventory.getStock(chai.getKey()));
+        old.cancel();
+        assertEquals(5, inventory.getStock(chai.getKey()));
+
+        OrderService.Session fresh = service.openSession();
+        assertFalse(fresh.addItem(chai, 6));
+        assertTrue(fresh.addItem(chai, 5));
+        assertEquals(0, inventory.getStock(chai.getKey()));
+        assertEquals(Inventory.UNLIMITED, inventory.getStock(tea.getKey()));
+    }
+
+    @Test
+    void oldAndNewItemKeepSeparateOrderLines() {
+        OrderService.Session session = service.openSession();
+        MenuItem tea = session.findItem("Tea");
+        MenuItem chai = replaceTeaWithChai(tea);
+
+        Order order = session.getOrder();
+        order.addItem(tea, 1);
+        order.addItem(chai, 2);
+        OrderLines lines = order.getLines();
+        assertEquals(2, lines.size());
+        assertEquals(1, lines.getQuantityOf(tea.getKey()));
+        assertEquals(2, lines.getQuantityOf(chai.getKey()));
+    }
+
+    @Test
+    void searchAnswersOnlyWithTheCallersItems() {
+        MenuVersion old = menu.current();
+        MenuItem tea = old.findItem("Tea");
+        replaceTeaWithChai(tea);
+
+        // the index now has Chai under Tea's id; the old version must not get Tea back for it
+        assertTrue(searchIndex.complete(old, "cha", 5).isEmpty());
+        assertEquals(List.of("Chai"), names(searchIndex.complete(menu.current(), "cha", 5)));
+    }
+
+    @Test
+    void saleOfARemovedItemIsNotCreditedToItsSuccessor() {
+        OrderService.Session old = service.openSession();
+        MenuItem tea = old.findItem("Tea");
+        MenuItem coffee = old.findItem("Coffee");
+        replaceTeaWithChai(tea);
+        menu.updateItem(coffee.getKey(), "Chai Latte", coffee.getPrice());
+
+        old.addItem(tea, 50);
+        old.checkout();
+
+        // with no sales either way, the completions stay in name order
+        assertEquals(List.of("Chai", "Chai Latte"), names(searchIndex.complete(menu.current(), "chai", 5)));
+        searchIndex.recordSale(menu.findItem("Chai Latte").getKey(), 1);
+        assertEquals(List.of("Chai Latte", "Chai"), names(searchIndex.complete(menu.current(), "chai", 5)));
+    }
+
+    @Test
+    void salesOfARemovedItemAreDroppedAndNotPassedOn() {
+        SalesAnalytics analytics = new SalesAnalytics();
+        menu.addChangeListener(analytics);
+        service.addCheckoutListener(analytics);
+        OrderService.Session before = service.openSession();
+        MenuItem tea = before.findItem("Tea");
+        before.addItem(tea, 3);
+        before.checkout();
+        assertEquals(3, analytics.getItemSales(tea.getKey()).getQuantity());
+
+        OrderService.Session late = service.openSession();
+        late.addItem(tea, 2);
+        MenuItem chai = replaceTeaWithChai(tea);
+        assertNull(analytics.getItemSales(tea.getKey()));
+
+        OrderService.Session fresh = service.openSession();
+        fresh.addItem(chai, 1);
+        fresh.checkout();
+        late.checkout(); // Tea, sold after Chai took its slot
+        assertEquals(1, analytics.getItemSales(chai.getKey()).getQuantity());
+        assertNull(analytics.getItemSales(tea.getKey()));
+        assertEquals(6, analytics.getCategoryQuantity(Category.DRINK));
+    }
+
+    @Test
+    void journalRecordsTheItemKey() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        MenuItem tea = menu.findItem("Tea");
+        MenuItem chai = replaceTeaWithChai(tea);
+        try (OrderJournal journal = OrderJournal.open(directory, 1 << 16)) {
+            Order order = new Order(Order.DEFAULT_PROMOTIONS, menu.current());
+            order.addItem(chai, 1);
+            journal.appendAndSync(1, order);
+        }
+        List<Long> keys = new ArrayList<>();
+        OrderJournal.replay(directory, record -> keys.add(record.getItemKey(0)));
+        assertEquals(List.of(chai.getKey()), keys);
+    }
+
+    private static List<String> names(List<MenuItem> items) {
+        List<String> names = new ArrayList<>();
+        for (MenuItem item : items) {
+            names.add(item.getName());
+        }
+        return names;
+    }
+}